@@ -3,6 +3,7 @@ package BenTrapani.CryptoArbitrage;
 import java.io.IOException;
 import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
@@ -239,24 +240,46 @@ public class ArbitrageExecutor implements OrderGraphAnalysisHandler {
 		}
 	}
 
+	// Takes loops in ranked order, skipping any loop that shares an order
+	// with one already taken, since the same order cannot fill both
+	static List<AnalysisResult> selectDisjointLoops(List<AnalysisResult> rankedLoops, Fraction minAcceptableRatio) {
+		List<AnalysisResult> selectedLoops = new ArrayList<AnalysisResult>(rankedLoops.size());
+		HashSet<TwoSidedGraphEdge> usedEdges = new HashSet<TwoSidedGraphEdge>();
+		for (AnalysisResult loop : rankedLoops) {
+			if (loop.maxRatio.compareTo(minAcceptableRatio) <= 0) {
+				break;
+			}
+			if (!Collections.disjoint(usedEdges, loop.tradesToExecute)) {
+				continue;
+			}
+			usedEdges.addAll(loop.tradesToExecute);
+			selectedLoops.add(loop);
+		}
+		return selectedLoops;
+	}
+
+	// Called from the analyzer thread and, with a SpreadDetector, from the
+	// order book threads, so results are handled one at a time
 	@Override
-	public void onOrderBookAnalysisComplete(AnalysisResult analysisResult) {
-		if (analysisResult.maxRatio.compareTo(minAcceptableRatio) > 0) {
+	public synchronized void onOrderBookAnalysisComplete(AnalysisResult analysisResult) {
+		List<AnalysisResult> loopsToExecute = selectDisjointLoops(analysisResult.rankedLoops, minAcceptableRatio);
+		if (loopsToExecute.isEmpty()) {
+			System.out.println("No profitable path found");
+			return;
+		}
+		for (AnalysisResult loop : loopsToExecute) {
 			String allTrades = "Trades: \n";
-			for (TwoSidedGraphEdge trade : analysisResult.tradesToExecute) {
+			for (TwoSidedGraphEdge trade : loop.tradesToExecute) {
 				allTrades += trade.toString();
 			}
-			System.out.println(
-					"Profitable trade found with ratio " + analysisResult.maxRatio.toString() + "\n" + allTrades);
+			System.out.println("Profitable trade found with ratio " + loop.maxRatio.toString() + "\n" + allTrades);
 
 			List<ExecutableTrade> executableTrades = null;
 			synchronized (currencyBalanceDS) {
-				executableTrades = buildExecutableTrades(analysisResult.tradesToExecute, currencyBalanceDS);
+				executableTrades = buildExecutableTrades(loop.tradesToExecute, currencyBalanceDS);
 			}
 			System.out.println(executableTrades.toString());
 			// placeOrders(executableTrades);
-		} else {
-			System.out.println("No profitable path found");
 		}
 	}
 }
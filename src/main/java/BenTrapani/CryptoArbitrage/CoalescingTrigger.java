@@ -0,0 +1,107 @@
+package BenTrapani.CryptoArbitrage;
+
+import java.util.concurrent.TimeUnit;
+
+/***
+ *
+ * Wakes a single worker thread when work is requested. Any number of requests
+ * made while a run is pending or in progress collapse into one further run,
+ * so the worker always starts from the latest state instead of working
+ * through a backlog of stale ones.
+ *
+ * Runs start at least minInterval apart. If a debounce window is set, a run
+ * waits until no request has arrived for that long, but never longer than
+ * twice the window after the first pending request, so a steady stream of
+ * requests cannot starve the worker.
+ *
+ */
+public class CoalescingTrigger {
+	private final Object lock = new Object();
+	private final long minIntervalNanos;
+	private final long debounceNanos;
+
+	private boolean pending = false;
+	private boolean closed = false;
+	private long firstPendingNanos;
+	private long lastTriggerNanos;
+	private long lastRunNanos;
+	private boolean hasRun = false;
+
+	private long triggersReceived = 0;
+	private long runsStarted = 0;
+
+	public CoalescingTrigger(long minIntervalMillis, long debounceMillis) {
+		if (minIntervalMillis < 0 || debounceMillis < 0) {
+			throw new IllegalArgumentException("Trigger intervals cannot be negative");
+		}
+		this.minIntervalNanos = TimeUnit.MILLISECONDS.toNanos(minIntervalMillis);
+		this.debounceNanos = TimeUnit.MILLISECONDS.toNanos(debounceMillis);
+	}
+
+	public void trigger() {
+		synchronized (lock) {
+			final long now = System.nanoTime();
+			triggersReceived++;
+			if (!pending) {
+				pending = true;
+				firstPendingNanos = now;
+			}
+			lastTriggerNanos = now;
+			lock.notifyAll();
+		}
+	}
+
+	// Blocks until a run is due. Returns false once the trigger is closed.
+	public boolean awaitRun() throws InterruptedException {
+		synchronized (lock) {
+			while (!closed) {
+				if (!pending) {
+					lock.wait();
+					continue;
+				}
+				final long now = System.nanoTime();
+				final long waitNanos = getNanosUntilDue(now);
+				if (waitNanos <= 0) {
+					pending = false;
+					hasRun = true;
+					lastRunNanos = now;
+					runsStarted++;
+					return true;
+				}
+				TimeUnit.NANOSECONDS.timedWait(lock, waitNanos);
+			}
+			return false;
+		}
+	}
+
+	private long getNanosUntilDue(long now) {
+		long dueNanos = now;
+		if (hasRun) {
+			dueNanos = Math.max(dueNanos, lastRunNanos + minIntervalNanos);
+		}
+		if (debounceNanos > 0) {
+			final long debounceDue = Math.min(lastTriggerNanos + debounceNanos, firstPendingNanos + 2 * debounceNanos);
+			dueNanos = Math.max(dueNanos, debounceDue);
+		}
+		return dueNanos - now;
+	}
+
+	public void close() {
+		synchronized (lock) {
+			closed = true;
+			lock.notifyAll();
+		}
+	}
+
+	public long getTriggersReceived() {
+		synchronized (lock) {
+			return triggersReceived;
+		}
+	}
+
+	public long getRunsStarted() {
+		synchronized (lock) {
+			return runsStarted;
+		}
+	}
+}
@@ -17,8 +17,10 @@ public class CryptoArbitrageManager {
 	private StreamingExchangeSubset[] exchanges;
 	private OrderGraph orderGraph = new OrderGraph();
 	private ArbitrageExecutor arbitrageExecutor = new ArbitrageExecutor(new Fraction(1));
-	private OrderBookAnalyzer orderBookAnalyzer = new OrderBookAnalyzer(orderGraph, Currency.BTC, 4, arbitrageExecutor);
+	private OrderBookAnalyzer orderBookAnalyzer = new OrderBookAnalyzer(orderGraph, Currency.BTC, 4, arbitrageExecutor,
+			CryptoConfigs.searchAlgorithm, CryptoConfigs.minAnalysisIntervalMillis, CryptoConfigs.analysisDebounceMillis);
 	private OrderBookAggregator orderBookAggregator = new OrderBookAggregator(orderGraph, orderBookAnalyzer, 1, 1);
+	private IngestPipeline ingestPipeline = null;
 
 	public CryptoArbitrageManager(StreamingExchangeSubset[] exchanges) {
 		subscriptions = new ArrayList<Disposable>(exchanges.length);
@@ -32,9 +34,23 @@ public class CryptoArbitrageManager {
 		}
 		this.exchanges = exchanges.clone();
 		arbitrageExecutor.setExchanges(this.exchanges);
+		orderBookAnalyzer.setSearchRoots(CryptoConfigs.parallelSearchRoots);
+		orderBookAnalyzer.setMaxRankedLoops(CryptoConfigs.maxRankedLoops);
+		orderBookAnalyzer.setScreeningSlack(CryptoConfigs.loopScreeningSlack);
+		orderBookAnalyzer.setAnalysisDeadlineMillis(CryptoConfigs.analysisDeadlineMillis);
+		if (CryptoConfigs.detectCrossExchangeSpreads) {
+			orderBookAggregator.setSpreadDetector(new SpreadDetector(arbitrageExecutor));
+		}
+		if (CryptoConfigs.ingestRingCapacity > 0) {
+			ingestPipeline = new IngestPipeline(orderGraph, orderBookAnalyzer, CryptoConfigs.ingestRingCapacity);
+			orderBookAggregator.setIngestPipeline(ingestPipeline);
+		}
 	}
 
 	public void startArbitrage() {
+		if (ingestPipeline != null) {
+			ingestPipeline.start();
+		}
 		for (int i = 0; i < exchanges.length; i++) {
 			Disposable[] tempDisposables = orderBookAggregator.createConsumerForExchange(exchanges[i]);
 			List<Disposable> subsList = new ArrayList<Disposable>(Arrays.asList(tempDisposables));
@@ -52,6 +68,9 @@ public class CryptoArbitrageManager {
 			}
 		}
 		try {
+			if (ingestPipeline != null) {
+				ingestPipeline.stop();
+			}
 			orderBookAnalyzer.stopAnalyzingOrderBook();
 		} catch (InterruptedException e) {
 			// TODO Auto-generated catch block
@@ -1,9 +1,38 @@
 package BenTrapani.CryptoArbitrage;
 
 import java.math.BigDecimal;
+import java.util.List;
+
+import org.knowm.xchange.currency.Currency;
 
 public class CryptoConfigs {
 	public static final int decimalScale = 20;
 	public static final BigDecimal decimalRoundAdjustDigit = BigDecimal.ONE.divide(BigDecimal.TEN.pow(decimalScale - 3),
 			decimalScale, BigDecimal.ROUND_DOWN);
+	// Algorithm the analyzer uses to look for arbitrage loops
+	public static final OrderBookAnalyzer.SearchAlgorithm searchAlgorithm =
+			OrderBookAnalyzer.SearchAlgorithm.INCREMENTAL_BELLMAN_FORD;
+	// Number of distinct loops each analysis ranks for the executor
+	public static final int maxRankedLoops = 4;
+	// Candidate loops must look more profitable than this margin with double
+	// weights before they are checked exactly. Tune with the analyzer's false
+	// positive count.
+	public static final double loopScreeningSlack = 0;
+	// Roots for the parallel search, null to search from every currency
+	public static final List<Currency> parallelSearchRoots = null;
+	// Order book analysis runs at most once per interval, and waits for order
+	// books to stop changing for the debounce window (0 to disable)
+	public static final long minAnalysisIntervalMillis = 10;
+	public static final long analysisDebounceMillis = 0;
+	// Longest an analysis may run before it reports the best loops found so
+	// far and starts over on the newest order books (0 for no limit). Doubles
+	// for each analysis in a row that runs out of time.
+	public static final long analysisDeadlineMillis = 20;
+	// Report a pair that can be bought on one exchange and sold on another
+	// for a profit straight from the order book threads
+	public static final boolean detectCrossExchangeSpreads = true;
+	// Order book updates are queued in a ring of this many slots and applied
+	// to the graph by one writer thread (0 to update from the exchange
+	// threads directly)
+	public static final int ingestRingCapacity = 1024;
 }
@@ -0,0 +1,22 @@
+package BenTrapani.CryptoArbitrage;
+
+import org.knowm.xchange.currency.Currency;
+
+import BenTrapani.CryptoArbitrage.OrderBookAnalyzer.AnalysisResult;
+import BenTrapani.CryptoArbitrage.OrderBookAnalyzer.LoopCollector;
+
+/***
+ *
+ * Looks for arbitrage loops in a snapshot of the order graph. The analyzer
+ * runs one engine, picked with SearchAlgorithm or passed in directly, once per
+ * analysis and always from its analyzer thread, so an engine may keep state
+ * from one search to the next.
+ *
+ */
+public interface CycleSearchEngine {
+	// Offers candidate loops to loops, which holds the trade and ranking
+	// limits and checks each candidate exactly, and returns its
+	// getResultOrNone(). Which loops are found relative to root depends on the
+	// engine.
+	public AnalysisResult search(IndexedOrderGraph graph, Currency root, LoopCollector loops);
+}
@@ -5,60 +5,148 @@ import java.math.BigInteger;
 import java.math.RoundingMode;
 
 /***
- * 
+ *
  * @author benjamintrapani
  *
  *         Fraction class because standard library doesn't have one it seems...
  *
+ *         Reduced fractions whose numerator and denominator both fit in a long
+ *         are stored in compact form and all arithmetic on them is done with
+ *         overflow-checked long math. A result is only promoted to BigInteger
+ *         when it would overflow, and demoted again once it fits, so every
+ *         value has exactly one representation.
+ *
  */
 public class Fraction implements Comparable<Fraction> {
-	public final BigInteger numerator;
-	public final BigInteger denominator;
+	private static final long[] powersOfTen = new long[19];
+	static {
+		powersOfTen[0] = 1;
+		for (int i = 1; i < powersOfTen.length; i++) {
+			powersOfTen[i] = powersOfTen[i - 1] * 10;
+		}
+	}
+
+	// Compact form is in use when bigNumerator is null
+	private final long compactNumerator;
+	private final long compactDenominator;
+	private final BigInteger bigNumerator;
+	private final BigInteger bigDenominator;
 
 	public Fraction(int value) {
-		numerator = BigInteger.valueOf(value);
-		denominator = BigInteger.ONE;
+		this(value, 1, null, null);
 	}
 
 	public Fraction(BigInteger val) {
-		numerator = val;
-		denominator = BigInteger.ONE;
+		this(reduce(val, BigInteger.ONE));
 	}
 
 	public Fraction(BigInteger num, BigInteger denom) {
-		BigIntPair reducedPair = computeReduced(num, denom);
-		numerator = reducedPair.n1;
-		denominator = reducedPair.n2;
+		this(reduce(num, denom));
 	}
 
 	public Fraction(long num, long denom) {
-		this(BigInteger.valueOf(num), BigInteger.valueOf(denom));
+		this(reduce(num, denom));
 	}
 
 	public Fraction(BigDecimal val) {
+		this(fromBigDecimal(val));
+	}
+
+	private Fraction(Fraction canonical) {
+		this(canonical.compactNumerator, canonical.compactDenominator, canonical.bigNumerator,
+				canonical.bigDenominator);
+	}
+
+	private Fraction(long compactNumerator, long compactDenominator, BigInteger bigNumerator,
+			BigInteger bigDenominator) {
+		this.compactNumerator = compactNumerator;
+		this.compactDenominator = compactDenominator;
+		this.bigNumerator = bigNumerator;
+		this.bigDenominator = bigDenominator;
+	}
+
+	private static Fraction fromBigDecimal(BigDecimal val) {
+		final int scale = val.scale();
+		if (scale >= 0 && scale < powersOfTen.length && val.precision() < powersOfTen.length) {
+			// Unscaled value has at most 18 digits, so it fits in a long
+			return reduce(val.movePointRight(scale).longValue(), powersOfTen[scale]);
+		}
 		BigInteger unscaledValue = val.unscaledValue();
 		BigInteger tempDenom;
-		if (val.scale() < 0) {
-			unscaledValue = unscaledValue.multiply(BigInteger.valueOf(val.scale() * -1));
+		if (scale < 0) {
+			unscaledValue = unscaledValue.multiply(BigInteger.valueOf(scale * -1));
 			tempDenom = BigInteger.ONE;
 		} else {
-			tempDenom = BigInteger.TEN.pow(val.scale());
+			tempDenom = BigInteger.TEN.pow(scale);
 		}
-		BigIntPair reducedPair = computeReduced(unscaledValue, tempDenom);
-		numerator = reducedPair.n1;
-		denominator = reducedPair.n2;
+		return reduce(unscaledValue, tempDenom);
+	}
+
+	private boolean isCompact() {
+		return bigNumerator == null;
+	}
+
+	public BigInteger getNumerator() {
+		return isCompact() ? BigInteger.valueOf(compactNumerator) : bigNumerator;
+	}
+
+	public BigInteger getDenominator() {
+		return isCompact() ? BigInteger.valueOf(compactDenominator) : bigDenominator;
+	}
+
+	private BigDecimal numeratorAsBigDecimal() {
+		return isCompact() ? BigDecimal.valueOf(compactNumerator) : new BigDecimal(bigNumerator);
+	}
+
+	private BigDecimal denominatorAsBigDecimal() {
+		return isCompact() ? BigDecimal.valueOf(compactDenominator) : new BigDecimal(bigDenominator);
 	}
 
 	public BigDecimal convertToBigDecimal(int scale, int roundingMode) {
-		return new BigDecimal(numerator).divide(new BigDecimal(denominator), scale, roundingMode);
+		return numeratorAsBigDecimal().divide(denominatorAsBigDecimal(), scale, roundingMode);
 	}
 
 	public Fraction multiply(Fraction other) {
-		return new Fraction(other.numerator.multiply(numerator), other.denominator.multiply(denominator));
+		if (isCompact() && other.isCompact()) {
+			Fraction product = multiplyCompact(compactNumerator, compactDenominator, other.compactNumerator,
+					other.compactDenominator);
+			if (product != null) {
+				return product;
+			}
+		}
+		return reduce(other.getNumerator().multiply(getNumerator()),
+				other.getDenominator().multiply(getDenominator()));
 	}
 
 	public Fraction divide(Fraction other) {
-		return new Fraction(other.denominator.multiply(numerator), other.numerator.multiply(denominator));
+		if (isCompact() && other.isCompact()) {
+			Fraction quotient = multiplyCompact(compactNumerator, compactDenominator, other.compactDenominator,
+					other.compactNumerator);
+			if (quotient != null) {
+				return quotient;
+			}
+		}
+		return reduce(other.getDenominator().multiply(getNumerator()),
+				other.getNumerator().multiply(getDenominator()));
+	}
+
+	// Computes (n1 * n2) / (d1 * d2) for reduced inputs, cancelling common
+	// factors across the two fractions first so fewer products overflow. The
+	// result is already reduced. Returns null if the long math would overflow.
+	private static Fraction multiplyCompact(long n1, long d1, long n2, long d2) {
+		final long gcd1 = gcd(Math.abs(n1), Math.abs(d2));
+		final long gcd2 = gcd(Math.abs(n2), Math.abs(d1));
+		if (gcd1 == 0 || gcd2 == 0) {
+			return null;
+		}
+		final long a = n1 / gcd1;
+		final long b = n2 / gcd2;
+		final long c = d1 / gcd2;
+		final long d = d2 / gcd1;
+		if (multiplyOverflows(a, b) || multiplyOverflows(c, d)) {
+			return null;
+		}
+		return ofReduced(a * b, c * d);
 	}
 
 	private static class FractionPairWithCommonDenominator {
@@ -67,31 +155,61 @@ public class Fraction implements Comparable<Fraction> {
 		public final BigInteger commonDenominator;
 
 		public FractionPairWithCommonDenominator(final Fraction f1, final Fraction f2) {
-			commonDenominator = f1.denominator.multiply(f2.denominator);
-			BigInteger commonDenomFac1 = f2.denominator;
-			BigInteger commonDenomFac2 = f1.denominator;
-			numerator1 = f1.numerator.multiply(commonDenomFac1);
-			numerator2 = f2.numerator.multiply(commonDenomFac2);
+			final BigInteger f1Denominator = f1.getDenominator();
+			final BigInteger f2Denominator = f2.getDenominator();
+			commonDenominator = f1Denominator.multiply(f2Denominator);
+			BigInteger commonDenomFac1 = f2Denominator;
+			BigInteger commonDenomFac2 = f1Denominator;
+			numerator1 = f1.getNumerator().multiply(commonDenomFac1);
+			numerator2 = f2.getNumerator().multiply(commonDenomFac2);
 		}
 	}
 
 	public Fraction add(Fraction other) {
+		if (isCompact() && other.isCompact()) {
+			final long n1 = compactNumerator;
+			final long d1 = compactDenominator;
+			final long n2 = other.compactNumerator;
+			final long d2 = other.compactDenominator;
+			if (!multiplyOverflows(n1, d2) && !multiplyOverflows(n2, d1) && !multiplyOverflows(d1, d2)
+					&& !addOverflows(n1 * d2, n2 * d1)) {
+				return reduce(n1 * d2 + n2 * d1, d1 * d2);
+			}
+		}
 		FractionPairWithCommonDenominator fracPair = new FractionPairWithCommonDenominator(this, other);
-		return new Fraction(fracPair.numerator1.add(fracPair.numerator2), fracPair.commonDenominator);
+		return reduce(fracPair.numerator1.add(fracPair.numerator2), fracPair.commonDenominator);
 	}
 
 	public Fraction subtract(Fraction other) {
+		if (isCompact() && other.isCompact()) {
+			final long n1 = compactNumerator;
+			final long d1 = compactDenominator;
+			final long n2 = other.compactNumerator;
+			final long d2 = other.compactDenominator;
+			if (!multiplyOverflows(n1, d2) && !multiplyOverflows(n2, d1) && !multiplyOverflows(d1, d2)
+					&& !subtractOverflows(n1 * d2, n2 * d1)) {
+				return reduce(n1 * d2 - n2 * d1, d1 * d2);
+			}
+		}
 		FractionPairWithCommonDenominator fracPair = new FractionPairWithCommonDenominator(this, other);
-		return new Fraction(fracPair.numerator1.subtract(fracPair.numerator2), fracPair.commonDenominator);
+		return reduce(fracPair.numerator1.subtract(fracPair.numerator2), fracPair.commonDenominator);
 	}
 
 	// This converts to double, and will reduce precision.
 	// The precision will be reduced so that the ratio expressed is smaller than
 	// it really is.
 	public Fraction logLossy() {
-		BigDecimal divResult = new BigDecimal(numerator).divide(new BigDecimal(denominator), 20, RoundingMode.DOWN);
-		double doubleDivRes = divResult.doubleValue();
-		return new Fraction(new BigDecimal(Math.log(doubleDivRes)));
+		return new Fraction(new BigDecimal(logLossyAsDouble()));
+	}
+
+	public double logLossyAsDouble() {
+		return Math.log(doubleValueLossy());
+	}
+
+	// Rounds down like logLossy
+	public double doubleValueLossy() {
+		BigDecimal divResult = numeratorAsBigDecimal().divide(denominatorAsBigDecimal(), 20, RoundingMode.DOWN);
+		return divResult.doubleValue();
 	}
 
 	public Fraction max(Fraction other) {
@@ -125,6 +243,79 @@ public class Fraction implements Comparable<Fraction> {
 		return new BigIntPair(reducedNum, reducedDenom);
 	}
 
+	private static Fraction reduce(BigInteger tempNum, BigInteger tempDenom) {
+		if (fitsCompact(tempNum) && fitsCompact(tempDenom)) {
+			return reduce(tempNum.longValue(), tempDenom.longValue());
+		}
+		BigIntPair reducedPair = computeReduced(tempNum, tempDenom);
+		if (fitsCompact(reducedPair.n1) && fitsCompact(reducedPair.n2)) {
+			return new Fraction(reducedPair.n1.longValue(), reducedPair.n2.longValue(), null, null);
+		}
+		return new Fraction(0, 0, reducedPair.n1, reducedPair.n2);
+	}
+
+	private static Fraction reduce(long tempNum, long tempDenom) {
+		if (tempNum == Long.MIN_VALUE || tempDenom == Long.MIN_VALUE) {
+			return reduce(BigInteger.valueOf(tempNum), BigInteger.valueOf(tempDenom));
+		}
+		final long gcd = gcd(Math.abs(tempNum), Math.abs(tempDenom));
+		if (gcd == 0) {
+			// 0 / 0, let BigInteger raise the same error as before
+			computeReduced(BigInteger.ZERO, BigInteger.ZERO);
+		}
+		return new Fraction(tempNum / gcd, tempDenom / gcd, null, null);
+	}
+
+	private static Fraction ofReduced(long num, long denom) {
+		// Long.MIN_VALUE has no positive counterpart, so keep it out of the
+		// compact form
+		if (num == Long.MIN_VALUE || denom == Long.MIN_VALUE) {
+			return new Fraction(0, 0, BigInteger.valueOf(num), BigInteger.valueOf(denom));
+		}
+		return new Fraction(num, denom, null, null);
+	}
+
+	private static boolean fitsCompact(BigInteger val) {
+		return val.bitLength() < Long.SIZE && val.longValue() != Long.MIN_VALUE;
+	}
+
+	private static long gcd(long a, long b) {
+		while (b != 0) {
+			final long remainder = a % b;
+			a = b;
+			b = remainder;
+		}
+		return a;
+	}
+
+	// Same checks as Math.*Exact, without the cost of throwing on overflow
+	private static boolean multiplyOverflows(long a, long b) {
+		final long product = a * b;
+		if (((Math.abs(a) | Math.abs(b)) >>> 31) != 0) {
+			return (b != 0 && product / b != a) || (a == Long.MIN_VALUE && b == -1);
+		}
+		return false;
+	}
+
+	private static boolean addOverflows(long a, long b) {
+		final long sum = a + b;
+		return ((a ^ sum) & (b ^ sum)) < 0;
+	}
+
+	private static boolean subtractOverflows(long a, long b) {
+		final long difference = a - b;
+		return ((a ^ b) & (a ^ difference)) < 0;
+	}
+
+	// Matches BigInteger.valueOf(val).hashCode() without allocating
+	private static int bigIntegerHashCode(long val) {
+		final long magnitude = Math.abs(val);
+		final int high = (int) (magnitude >>> 32);
+		final int low = (int) magnitude;
+		final int hash = high == 0 ? low : 31 * high + low;
+		return hash * Long.signum(val);
+	}
+
 	@Override
 	public boolean equals(Object obj) {
 		if (obj == null) {
@@ -134,22 +325,38 @@ public class Fraction implements Comparable<Fraction> {
 			return false;
 		}
 		final Fraction other = (Fraction) obj;
-		return numerator.equals(other.numerator) && denominator.equals(other.denominator);
+		if (isCompact() != other.isCompact()) {
+			return false;
+		}
+		if (isCompact()) {
+			return compactNumerator == other.compactNumerator && compactDenominator == other.compactDenominator;
+		}
+		return bigNumerator.equals(other.bigNumerator) && bigDenominator.equals(other.bigDenominator);
 	}
 
 	@Override
 	public int hashCode() {
-		return numerator.hashCode() + denominator.hashCode() * 51;
+		if (isCompact()) {
+			return bigIntegerHashCode(compactNumerator) + bigIntegerHashCode(compactDenominator) * 51;
+		}
+		return bigNumerator.hashCode() + bigDenominator.hashCode() * 51;
 	}
 
 	@Override
 	public int compareTo(Fraction o) {
+		if (isCompact() && o.isCompact() && !multiplyOverflows(compactNumerator, o.compactDenominator)
+				&& !multiplyOverflows(o.compactNumerator, compactDenominator)) {
+			return Long.compare(compactNumerator * o.compactDenominator, o.compactNumerator * compactDenominator);
+		}
 		FractionPairWithCommonDenominator pair = new FractionPairWithCommonDenominator(this, o);
 		return pair.numerator1.compareTo(pair.numerator2);
 	}
 
 	@Override
 	public String toString() {
-		return numerator.toString() + " / " + denominator.toString();
+		if (isCompact()) {
+			return compactNumerator + " / " + compactDenominator;
+		}
+		return bigNumerator.toString() + " / " + bigDenominator.toString();
 	}
 }
@@ -0,0 +1,240 @@
+package BenTrapani.CryptoArbitrage;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.knowm.xchange.currency.Currency;
+
+import BenTrapani.CryptoArbitrage.OrderBookAnalyzer.AnalysisResult;
+import BenTrapani.CryptoArbitrage.OrderBookAnalyzer.LoopCollector;
+import BenTrapani.CryptoArbitrage.OrderGraph.TwoSidedGraphEdge;
+
+/***
+ *
+ * Howard's policy iteration for the minimum mean cycle over the -log ratio
+ * edge weights, which is the loop with the best average return per trade.
+ *
+ * Every currency follows one of its trades, its policy, so following the
+ * policy from any currency ends in a cycle. Each round computes the mean
+ * weight of the cycle each currency ends in and its weight relative to that
+ * cycle, then switches currencies to trades that lead to a lower mean cycle
+ * or a lower relative weight. When no switch helps, the policy contains the
+ * minimum mean cycle. Each round is O(E), and in practice few rounds are
+ * needed, although there is no useful bound on how many.
+ *
+ * Only currencies reachable from the root that can keep trading are
+ * considered. Every negative cycle of the final policy is offered, and loops
+ * longer than maxTrades are dropped.
+ *
+ */
+public class HowardCycleSearch implements CycleSearchEngine {
+	// Guards against rounding making the policy switch back and forth
+	private static final int maxPolicyRounds = 1000;
+	private static final double epsilon = 1e-12;
+
+	public AnalysisResult search(IndexedOrderGraph graph, Currency root, LoopCollector loops) {
+		final int rootId = graph.getCurrencyId(root);
+		if (rootId >= 0) {
+			findLoops(graph, rootId, loops);
+		}
+		return loops.getResultOrNone();
+	}
+
+	private static void findLoops(IndexedOrderGraph graph, int rootId, LoopCollector loops) {
+		final int numVertices = graph.getVertexCount();
+		final boolean[] alive = findAliveVertices(graph, rootId);
+		final int[] policy = new int[numVertices];
+		for (int u = 0; u < numVertices; u++) {
+			policy[u] = -1;
+			if (!alive[u]) {
+				continue;
+			}
+			final int edgeCount = graph.getEdgeCount(u);
+			for (int e = 0; e < edgeCount; e++) {
+				if (isAliveEdge(graph, alive, u, e) && (policy[u] < 0
+						|| graph.getEdgeNegativeLogRatio(u, e) < graph.getEdgeNegativeLogRatio(u, policy[u]))) {
+					policy[u] = e;
+				}
+			}
+		}
+
+		final PolicyValues values = new PolicyValues(numVertices);
+		for (int round = 0; round < maxPolicyRounds; round++) {
+			values.evaluate(graph, alive, policy);
+			// Out of time, offer the cycles of the current policy
+			if (loops.isPastDeadline() || !improvePolicy(graph, alive, policy, values)) {
+				break;
+			}
+		}
+
+		for (int i = 0; i < values.numCycles; i++) {
+			final int head = values.cycleHeads[i];
+			if (values.cycleMean[head] >= 0) {
+				continue;
+			}
+			HashSet<TwoSidedGraphEdge> tradesToExecute = new HashSet<TwoSidedGraphEdge>();
+			int current = head;
+			do {
+				tradesToExecute.add(graph.getEdge(current, policy[current]));
+				current = graph.getEdgeDestId(current, policy[current]);
+			} while (current != head);
+			loops.offer(tradesToExecute);
+		}
+	}
+
+	// Mean weight of the cycle each currency's policy ends in, and the weight
+	// of its policy path relative to that mean
+	private static class PolicyValues {
+		final double[] cycleMean;
+		final double[] potential;
+		final int[] cycleHeads;
+		int numCycles = 0;
+		private final int[] walkStamp;
+		private final int[] path;
+		private final boolean[] evaluated;
+		private int stamp = 0;
+
+		PolicyValues(int numVertices) {
+			cycleMean = new double[numVertices];
+			potential = new double[numVertices];
+			cycleHeads = new int[numVertices];
+			walkStamp = new int[numVertices];
+			path = new int[numVertices];
+			evaluated = new boolean[numVertices];
+		}
+
+		void evaluate(IndexedOrderGraph graph, boolean[] alive, int[] policy) {
+			final int numVertices = alive.length;
+			numCycles = 0;
+			Arrays.fill(evaluated, false);
+			for (int start = 0; start < numVertices; start++) {
+				if (!alive[start] || evaluated[start]) {
+					continue;
+				}
+				// Follow the policy until reaching a currency that has been
+				// evaluated or one already on this walk
+				stamp++;
+				int pathLength = 0;
+				int current = start;
+				while (!evaluated[current] && walkStamp[current] != stamp) {
+					walkStamp[current] = stamp;
+					path[pathLength++] = current;
+					current = graph.getEdgeDestId(current, policy[current]);
+				}
+				if (!evaluated[current]) {
+					// New cycle starting at current
+					double cycleWeight = 0;
+					int cycleLength = 0;
+					int cycleStart = pathLength - 1;
+					while (path[cycleStart] != current) {
+						cycleStart--;
+					}
+					for (int i = cycleStart; i < pathLength; i++) {
+						cycleWeight += graph.getEdgeNegativeLogRatio(path[i], policy[path[i]]);
+						cycleLength++;
+					}
+					final double mean = cycleWeight / cycleLength;
+					cycleHeads[numCycles++] = current;
+					cycleMean[current] = mean;
+					potential[current] = 0;
+					evaluated[current] = true;
+					// Potentials around the cycle, walking back from its head
+					for (int i = pathLength - 1; i > cycleStart; i--) {
+						setFromSuccessor(graph, policy, path[i], mean);
+					}
+					pathLength = cycleStart;
+				}
+				for (int i = pathLength - 1; i >= 0; i--) {
+					setFromSuccessor(graph, policy, path[i], cycleMean[graph.getEdgeDestId(path[i], policy[path[i]])]);
+				}
+			}
+		}
+
+		private void setFromSuccessor(IndexedOrderGraph graph, int[] policy, int u, double mean) {
+			final int v = graph.getEdgeDestId(u, policy[u]);
+			cycleMean[u] = mean;
+			potential[u] = graph.getEdgeNegativeLogRatio(u, policy[u]) - mean + potential[v];
+			evaluated[u] = true;
+		}
+	}
+
+	// Returns false if no currency's policy could be improved
+	private static boolean improvePolicy(IndexedOrderGraph graph, boolean[] alive, int[] policy,
+			PolicyValues values) {
+		final double[] cycleMean = values.cycleMean;
+		final double[] potential = values.potential;
+		boolean changed = false;
+		for (int u = 0; u < alive.length; u++) {
+			if (!alive[u]) {
+				continue;
+			}
+			int bestEdge = policy[u];
+			double bestMean = cycleMean[u];
+			double bestPotential = potential[u];
+			final int edgeCount = graph.getEdgeCount(u);
+			for (int e = 0; e < edgeCount; e++) {
+				if (!isAliveEdge(graph, alive, u, e)) {
+					continue;
+				}
+				final int v = graph.getEdgeDestId(u, e);
+				final double edgePotential = graph.getEdgeNegativeLogRatio(u, e) - cycleMean[v] + potential[v];
+				if (cycleMean[v] < bestMean - epsilon
+						|| (cycleMean[v] <= bestMean + epsilon && edgePotential < bestPotential - epsilon)) {
+					bestEdge = e;
+					bestMean = cycleMean[v];
+					bestPotential = edgePotential;
+				}
+			}
+			if (bestEdge != policy[u]) {
+				policy[u] = bestEdge;
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	private static boolean isAliveEdge(IndexedOrderGraph graph, boolean[] alive, int u, int e) {
+		return graph.getEdgeQuantity(u, e) > 0 && alive[graph.getEdgeDestId(u, e)];
+	}
+
+	// Currencies reachable from the root that have a trade to another such
+	// currency, so that every one of them can be given a policy
+	private static boolean[] findAliveVertices(IndexedOrderGraph graph, int rootId) {
+		final int numVertices = graph.getVertexCount();
+		final boolean[] alive = new boolean[numVertices];
+		final int[] stack = new int[numVertices];
+		int stackSize = 0;
+		alive[rootId] = true;
+		stack[stackSize++] = rootId;
+		while (stackSize > 0) {
+			final int u = stack[--stackSize];
+			final int edgeCount = graph.getEdgeCount(u);
+			for (int e = 0; e < edgeCount; e++) {
+				final int v = graph.getEdgeDestId(u, e);
+				if (graph.getEdgeQuantity(u, e) > 0 && !alive[v]) {
+					alive[v] = true;
+					stack[stackSize++] = v;
+				}
+			}
+		}
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int u = 0; u < numVertices; u++) {
+				if (!alive[u]) {
+					continue;
+				}
+				boolean hasAliveEdge = false;
+				final int edgeCount = graph.getEdgeCount(u);
+				for (int e = 0; e < edgeCount && !hasAliveEdge; e++) {
+					hasAliveEdge = isAliveEdge(graph, alive, u, e);
+				}
+				if (!hasAliveEdge) {
+					alive[u] = false;
+					changed = true;
+				}
+			}
+		}
+		return alive;
+	}
+}
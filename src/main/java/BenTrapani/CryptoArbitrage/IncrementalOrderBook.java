@@ -0,0 +1,121 @@
+package BenTrapani.CryptoArbitrage;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+
+import org.knowm.xchange.dto.Order.OrderType;
+import org.knowm.xchange.dto.marketdata.OrderBook;
+import org.knowm.xchange.dto.trade.LimitOrder;
+
+import BenTrapani.CryptoArbitrage.OrderBookAggregator.KBestOrders;
+
+/***
+ *
+ * Order book for one currency pair on one exchange, kept up to date from
+ * changes to single price levels instead of rebuilt from every full book.
+ * Each side is a tree of price levels, best first.
+ *
+ * Only the k best levels of each side become graph edges, so the k best are
+ * kept ready and only rebuilt when a change reaches them. A change deeper in
+ * the book costs one tree update, and getKBest then returns the same
+ * KBestOrders as before, which callers can use to skip the graph update.
+ *
+ */
+public class IncrementalOrderBook {
+
+	private static class Side {
+		private final int maxLevels;
+		// Keyed by price, best price first
+		private final TreeMap<BigDecimal, LimitOrder> levels;
+		private List<LimitOrder> kBest = Collections.<LimitOrder> emptyList();
+		private boolean kBestChanged = false;
+
+		Side(int maxLevels, Comparator<BigDecimal> priceOrder) {
+			this.maxLevels = maxLevels;
+			this.levels = new TreeMap<BigDecimal, LimitOrder>(priceOrder);
+		}
+
+		void apply(LimitOrder level) {
+			final BigDecimal price = level.getLimitPrice();
+			final boolean changed;
+			if (level.getRemainingAmount().signum() <= 0) {
+				changed = levels.remove(price) != null;
+			} else {
+				levels.put(price, level);
+				changed = true;
+			}
+			// Levels behind the k best do not change them
+			if (changed && (kBest.size() < maxLevels || !kBest.isEmpty()
+					&& levels.comparator().compare(price, kBest.get(kBest.size() - 1).getLimitPrice()) <= 0)) {
+				kBestChanged = true;
+			}
+		}
+
+		void clear() {
+			levels.clear();
+			kBestChanged = true;
+		}
+
+		boolean updateKBest() {
+			if (!kBestChanged) {
+				return false;
+			}
+			final List<LimitOrder> result = new ArrayList<LimitOrder>(Math.min(maxLevels, levels.size()));
+			final Iterator<LimitOrder> iterator = levels.values().iterator();
+			while (result.size() < maxLevels && iterator.hasNext()) {
+				result.add(iterator.next());
+			}
+			kBest = result;
+			kBestChanged = false;
+			return true;
+		}
+	}
+
+	private final Side bids;
+	private final Side asks;
+	private KBestOrders kBest = new KBestOrders();
+
+	public IncrementalOrderBook(int maxBids, int maxAsks) {
+		this.bids = new Side(maxBids, Collections.<BigDecimal> reverseOrder());
+		this.asks = new Side(maxAsks, Comparator.<BigDecimal> naturalOrder());
+	}
+
+	// Sets or replaces the level at the order's price. An order with no
+	// amount removes the level.
+	public void applyLevel(LimitOrder level) {
+		if (level.getType() == OrderType.BID) {
+			bids.apply(level);
+		} else {
+			asks.apply(level);
+		}
+	}
+
+	// Starts over from a full book, for the first book and for resyncs
+	public void reset(OrderBook orderBook) {
+		bids.clear();
+		asks.clear();
+		for (LimitOrder bid : orderBook.getBids()) {
+			bids.apply(bid);
+		}
+		for (LimitOrder ask : orderBook.getAsks()) {
+			asks.apply(ask);
+		}
+	}
+
+	// The k best levels of each side. Returns the same instance until a
+	// change reaches them.
+	public KBestOrders getKBest() {
+		final boolean bidsChanged = bids.updateKBest();
+		final boolean asksChanged = asks.updateKBest();
+		if (bidsChanged || asksChanged) {
+			// Already sorted, so this only copies the references
+			kBest = new KBestOrders(bids.kBest, asks.kBest, bids.maxLevels, asks.maxLevels);
+		}
+		return kBest;
+	}
+}
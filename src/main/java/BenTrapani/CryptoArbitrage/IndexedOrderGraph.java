@@ -0,0 +1,382 @@
+package BenTrapani.CryptoArbitrage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.knowm.xchange.currency.Currency;
+
+import BenTrapani.CryptoArbitrage.OrderGraph.GraphEdge;
+import BenTrapani.CryptoArbitrage.OrderGraph.TwoSidedGraphEdge;
+
+/***
+ *
+ * Order graph keyed by dense integer ids instead of Currency objects. The
+ * edges leaving each source currency are stored as parallel primitive arrays
+ * (dest id, -log ratio, quantity, exchange id), so the analyzer can walk the
+ * graph with plain index loops and no hashing or allocation. The source id of
+ * an edge is the index of the bucket it is stored in.
+ *
+ * Instances are immutable versions of the graph. Updates return a new version
+ * that shares every bucket except the one that was changed, so a version can
+ * be handed to readers as a snapshot without copying or locking.
+ *
+ */
+public class IndexedOrderGraph {
+
+	// Assigns dense ids in order of first use. Copied when a value is added,
+	// which only happens while new currencies and exchanges are discovered.
+	// Ids never change once assigned.
+	static class IdRegistry<T> {
+		private final ArrayList<T> values;
+		private final HashMap<T, Integer> ids;
+
+		IdRegistry() {
+			values = new ArrayList<T>();
+			ids = new HashMap<T, Integer>();
+		}
+
+		private IdRegistry(IdRegistry<T> other, T newValue) {
+			values = new ArrayList<T>(other.values);
+			ids = new HashMap<T, Integer>(other.ids);
+			ids.put(newValue, values.size());
+			values.add(newValue);
+		}
+
+		int idOf(T value) {
+			final Integer id = ids.get(value);
+			return id == null ? -1 : id;
+		}
+
+		IdRegistry<T> with(T value) {
+			return ids.containsKey(value) ? this : new IdRegistry<T>(this, value);
+		}
+
+		T get(int id) {
+			return values.get(id);
+		}
+
+		int size() {
+			return values.size();
+		}
+	}
+
+	// An edge with its ids resolved, waiting to be added to a bucket
+	static class PendingEdge {
+		final TwoSidedGraphEdge edge;
+		final int destId;
+		final int exchangeId;
+
+		PendingEdge(TwoSidedGraphEdge edge, int destId, int exchangeId) {
+			this.edge = edge;
+			this.destId = destId;
+			this.exchangeId = exchangeId;
+		}
+	}
+
+	static class EdgeBucket {
+		static final EdgeBucket empty = new EdgeBucket(0);
+
+		final int[] destIds;
+		final double[] negativeLogRatios;
+		final double[] quantities;
+		final int[] exchangeIds;
+		final TwoSidedGraphEdge[] edges;
+		// Built on first use, see getBestEdges
+		private volatile EdgeBucket bestEdges = null;
+
+		EdgeBucket(int size) {
+			destIds = new int[size];
+			negativeLogRatios = new double[size];
+			quantities = new double[size];
+			exchangeIds = new int[size];
+			edges = new TwoSidedGraphEdge[size];
+		}
+
+		int size() {
+			return edges.length;
+		}
+
+		int indexOf(GraphEdge graphEdge) {
+			final int hash = graphEdge.hashCode();
+			for (int i = 0; i < edges.length; i++) {
+				final GraphEdge candidate = edges[i].graphEdge;
+				if (candidate.hashCode() == hash && candidate.equals(graphEdge)) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		// Matches by reference, so no hashing or Fraction comparisons
+		int indexOfSame(TwoSidedGraphEdge edge) {
+			for (int i = 0; i < edges.length; i++) {
+				if (edges[i] == edge) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		// The edge with the best ratio to each dest, among edges with
+		// quantity left. Buckets are immutable and shared between versions, so
+		// this is only worked out again for buckets that changed.
+		EdgeBucket getBestEdges() {
+			EdgeBucket result = bestEdges;
+			if (result == null) {
+				result = buildBestEdges();
+				bestEdges = result;
+			}
+			return result;
+		}
+
+		private EdgeBucket buildBestEdges() {
+			final int size = size();
+			// Index of the best edge so far to each dest, and whether each
+			// edge is the best to its dest
+			final HashMap<Integer, Integer> bestIndexByDest = new HashMap<Integer, Integer>();
+			final boolean[] kept = new boolean[size];
+			int numKept = 0;
+			for (int i = 0; i < size; i++) {
+				if (quantities[i] <= 0) {
+					continue;
+				}
+				final Integer bestIndex = bestIndexByDest.get(destIds[i]);
+				if (bestIndex == null) {
+					numKept++;
+				} else if (isBetter(i, bestIndex)) {
+					kept[bestIndex] = false;
+				} else {
+					continue;
+				}
+				bestIndexByDest.put(destIds[i], i);
+				kept[i] = true;
+			}
+			if (numKept == size) {
+				return this;
+			}
+			final EdgeBucket result = new EdgeBucket(numKept);
+			int next = 0;
+			for (int i = 0; i < size; i++) {
+				if (kept[i]) {
+					result.copyRange(this, i, next, 1);
+					next++;
+				}
+			}
+			result.bestEdges = result;
+			return result;
+		}
+
+		// Doubles decide unless they are equal, so rounding cannot hide a
+		// better ratio
+		private boolean isBetter(int index, int otherIndex) {
+			if (negativeLogRatios[index] != negativeLogRatios[otherIndex]) {
+				return negativeLogRatios[index] < negativeLogRatios[otherIndex];
+			}
+			return edges[index].graphEdge.ratio.compareTo(edges[otherIndex].graphEdge.ratio) > 0;
+		}
+
+		EdgeBucket withEdge(TwoSidedGraphEdge edge, int destId, int exchangeId) {
+			final int size = size();
+			final EdgeBucket result = new EdgeBucket(size + 1);
+			result.copyRange(this, 0, 0, size);
+			result.destIds[size] = destId;
+			result.negativeLogRatios[size] = edge.graphEdge.negativeLogRatio;
+			result.quantities[size] = edge.graphEdge.quantity.doubleValueLossy();
+			result.exchangeIds[size] = exchangeId;
+			result.edges[size] = edge;
+			return result;
+		}
+
+		// Removes edges by reference and appends the additions. Copies the
+		// bucket once for the whole edit. Returns null if a removed edge is
+		// not in this bucket.
+		EdgeBucket withEdits(List<TwoSidedGraphEdge> removals, List<PendingEdge> additions) {
+			final int size = size();
+			final boolean[] removed = new boolean[size];
+			for (TwoSidedGraphEdge removal : removals) {
+				final int index = indexOfSame(removal);
+				if (index < 0 || removed[index]) {
+					return null;
+				}
+				removed[index] = true;
+			}
+			if (removals.isEmpty() && additions.isEmpty()) {
+				return this;
+			}
+
+			final EdgeBucket result = new EdgeBucket(size - removals.size() + additions.size());
+			int next = 0;
+			int runStart = 0;
+			for (int i = 0; i <= size; i++) {
+				if (i == size || removed[i]) {
+					result.copyRange(this, runStart, next, i - runStart);
+					next += i - runStart;
+					runStart = i + 1;
+				}
+			}
+			for (PendingEdge addition : additions) {
+				result.destIds[next] = addition.destId;
+				result.negativeLogRatios[next] = addition.edge.graphEdge.negativeLogRatio;
+				result.quantities[next] = addition.edge.graphEdge.quantity.doubleValueLossy();
+				result.exchangeIds[next] = addition.exchangeId;
+				result.edges[next] = addition.edge;
+				next++;
+			}
+			return result;
+		}
+
+		EdgeBucket withoutEdge(int index) {
+			final EdgeBucket result = new EdgeBucket(size() - 1);
+			result.copyRange(this, 0, 0, index);
+			result.copyRange(this, index + 1, index, size() - index - 1);
+			return result;
+		}
+
+		private void copyRange(EdgeBucket source, int sourceStart, int destStart, int length) {
+			System.arraycopy(source.destIds, sourceStart, destIds, destStart, length);
+			System.arraycopy(source.negativeLogRatios, sourceStart, negativeLogRatios, destStart, length);
+			System.arraycopy(source.quantities, sourceStart, quantities, destStart, length);
+			System.arraycopy(source.exchangeIds, sourceStart, exchangeIds, destStart, length);
+			System.arraycopy(source.edges, sourceStart, edges, destStart, length);
+		}
+	}
+
+	private final long version;
+	private final IdRegistry<Currency> currencies;
+	private final IdRegistry<String> exchanges;
+	// Indexed by source currency id, null for currencies that have never been
+	// the source of an edge
+	private final EdgeBucket[] bucketsBySource;
+	// Built on first use, see getBestEdgeView
+	private volatile IndexedOrderGraph bestEdgeView = null;
+
+	public IndexedOrderGraph() {
+		this(0, new IdRegistry<Currency>(), new IdRegistry<String>(), new EdgeBucket[0]);
+	}
+
+	private IndexedOrderGraph(long version, IdRegistry<Currency> currencies, IdRegistry<String> exchanges,
+			EdgeBucket[] bucketsBySource) {
+		this.version = version;
+		this.currencies = currencies;
+		this.exchanges = exchanges;
+		this.bucketsBySource = bucketsBySource;
+	}
+
+	IdRegistry<Currency> getCurrencyRegistry() {
+		return currencies;
+	}
+
+	IdRegistry<String> getExchangeRegistry() {
+		return exchanges;
+	}
+
+	// Null if the currency has never been the source of an edge
+	EdgeBucket getBucket(int sourceId) {
+		return sourceId < bucketsBySource.length ? bucketsBySource[sourceId] : null;
+	}
+
+	// Registries must contain every id referenced by the new bucket and be the
+	// same as or newer than the ones this graph was built with
+	IndexedOrderGraph withBucket(IdRegistry<Currency> newCurrencies, IdRegistry<String> newExchanges, int sourceId,
+			EdgeBucket newBucket) {
+		final EdgeBucket[] newBuckets = new EdgeBucket[newCurrencies.size()];
+		System.arraycopy(bucketsBySource, 0, newBuckets, 0, bucketsBySource.length);
+		newBuckets[sourceId] = newBucket;
+		return new IndexedOrderGraph(version + 1, newCurrencies, newExchanges, newBuckets);
+	}
+
+	// Replaces several buckets in one new version
+	IndexedOrderGraph withBuckets(IdRegistry<Currency> newCurrencies, IdRegistry<String> newExchanges,
+			int[] sourceIds, EdgeBucket[] newBuckets) {
+		final EdgeBucket[] buckets = new EdgeBucket[newCurrencies.size()];
+		System.arraycopy(bucketsBySource, 0, buckets, 0, bucketsBySource.length);
+		for (int i = 0; i < sourceIds.length; i++) {
+			buckets[sourceIds[i]] = newBuckets[i];
+		}
+		return new IndexedOrderGraph(version + 1, newCurrencies, newExchanges, buckets);
+	}
+
+	// Same version of the graph with only the best edge from each source to
+	// each dest, ignoring edges with no quantity left. Cycle searches only
+	// need the best ratio for each pair of currencies, so this cuts their
+	// work from the number of orders to the number of pairs. The edges are
+	// the same objects as in the full graph.
+	public IndexedOrderGraph getBestEdgeView() {
+		IndexedOrderGraph result = bestEdgeView;
+		if (result == null) {
+			final EdgeBucket[] bestBuckets = new EdgeBucket[bucketsBySource.length];
+			for (int i = 0; i < bucketsBySource.length; i++) {
+				if (bucketsBySource[i] != null) {
+					bestBuckets[i] = bucketsBySource[i].getBestEdges();
+				}
+			}
+			result = new IndexedOrderGraph(version, currencies, exchanges, bestBuckets);
+			result.bestEdgeView = result;
+			bestEdgeView = result;
+		}
+		return result;
+	}
+
+	// Incremented by every update that changes the graph
+	public long getVersion() {
+		return version;
+	}
+
+	// Currencies that have been used as the source of an edge
+	public List<Currency> getSourceVertices() {
+		List<Currency> result = new ArrayList<Currency>();
+		for (int i = 0; i < bucketsBySource.length; i++) {
+			if (bucketsBySource[i] != null) {
+				result.add(currencies.get(i));
+			}
+		}
+		return result;
+	}
+
+	public int getVertexCount() {
+		return currencies.size();
+	}
+
+	public int getCurrencyId(Currency currency) {
+		return currencies.idOf(currency);
+	}
+
+	public Currency getCurrency(int currencyId) {
+		return currencies.get(currencyId);
+	}
+
+	public int getExchangeCount() {
+		return exchanges.size();
+	}
+
+	public String getExchangeName(int exchangeId) {
+		return exchanges.get(exchangeId);
+	}
+
+	public int getEdgeCount(int sourceId) {
+		final EdgeBucket bucket = bucketsBySource[sourceId];
+		return bucket == null ? 0 : bucket.size();
+	}
+
+	public int getEdgeDestId(int sourceId, int edgeIndex) {
+		return bucketsBySource[sourceId].destIds[edgeIndex];
+	}
+
+	public double getEdgeNegativeLogRatio(int sourceId, int edgeIndex) {
+		return bucketsBySource[sourceId].negativeLogRatios[edgeIndex];
+	}
+
+	// Lossy, use the quantity on the edge for sizing trades
+	public double getEdgeQuantity(int sourceId, int edgeIndex) {
+		return bucketsBySource[sourceId].quantities[edgeIndex];
+	}
+
+	public int getEdgeExchangeId(int sourceId, int edgeIndex) {
+		return bucketsBySource[sourceId].exchangeIds[edgeIndex];
+	}
+
+	public TwoSidedGraphEdge getEdge(int sourceId, int edgeIndex) {
+		return bucketsBySource[sourceId].edges[edgeIndex];
+	}
+}
@@ -0,0 +1,280 @@
+package BenTrapani.CryptoArbitrage;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import BenTrapani.CryptoArbitrage.OrderBookAggregator.KBestOrders;
+import BenTrapani.CryptoArbitrage.OrderBookAggregator.OrderBookConsumer;
+
+/***
+ *
+ * Moves order graph writes off the exchange threads. Order book consumers
+ * publish their new best orders into a preallocated ring, and a single writer
+ * thread owns every graph update. The writer drains whatever has been
+ * published, applies it to the graph as one batch and signals the analyzer
+ * once per batch, so writers never contend for the graph's locks and a burst
+ * of order books becomes one graph version.
+ *
+ * Any number of threads can publish. A publisher claims a sequence number,
+ * fills the slot for that sequence and then marks the slot as published with
+ * its sequence. The writer reads slots in sequence order and stops at the
+ * first one not yet published. If the ring is full, publishers wait for the
+ * writer, and getQueueDepth shows how far behind it is.
+ *
+ * Each order book has at most one event in the ring. An update to a book
+ * whose event is still waiting replaces the book's pending update instead,
+ * so a burst only costs the writer the newest state of each book.
+ *
+ * A batch that fails to apply leaves the graph unchanged, and the writer
+ * rebuilds the edges of every book in it from that book's newest orders, so
+ * one bad update does not stop the others.
+ *
+ */
+public class IngestPipeline {
+
+	private static final long idleParkNanos = TimeUnit.MILLISECONDS.toNanos(1);
+	private static final long fullParkNanos = TimeUnit.MICROSECONDS.toNanos(10);
+
+	// Consumer with a book waiting to be applied, see OrderBookConsumer's
+	// pendingKBest
+	private final OrderBookConsumer[] events;
+	// Sequence last published into each slot, -1 before the first
+	private final AtomicLongArray publishedSequences;
+	private final int mask;
+	private final AtomicLong nextSequence = new AtomicLong(0);
+	// Every sequence below this has been taken by the writer and its slot can
+	// be reused
+	private volatile long consumedSequence = 0;
+
+	private final OrderGraph sharedOrderGraph;
+	private final OrderGraphChangeHandler orderGraphChangeHandler;
+	private volatile Thread writerThread = null;
+	private volatile boolean writerWaiting = false;
+	private volatile boolean shouldExit = false;
+
+	private final AtomicLong publishWaits = new AtomicLong(0);
+	private final AtomicLong conflatedUpdates = new AtomicLong(0);
+	private volatile long eventsApplied = 0;
+	private volatile long batchesApplied = 0;
+	private volatile long failedUpdates = 0;
+	private final AtomicLong maxQueueDepth = new AtomicLong(0);
+
+	// Only used from the writer thread. Consumers already in the batch being
+	// built with the best orders each one added, and the stamp marking them.
+	private final ArrayList<OrderBookConsumer> batchConsumers = new ArrayList<OrderBookConsumer>();
+	private final ArrayList<KBestOrders> batchKBests = new ArrayList<KBestOrders>();
+	private long batchStamp = 0;
+
+	// Capacity is rounded up to a power of two
+	public IngestPipeline(OrderGraph orderGraph, OrderGraphChangeHandler orderGraphChangeHandler, int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Ring capacity must be positive");
+		}
+		int size = 1;
+		while (size < capacity) {
+			size <<= 1;
+		}
+		this.events = new OrderBookConsumer[size];
+		this.publishedSequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			publishedSequences.set(i, -1);
+		}
+		this.mask = size - 1;
+		this.sharedOrderGraph = orderGraph;
+		this.orderGraphChangeHandler = orderGraphChangeHandler;
+	}
+
+	// Called from the exchange threads. If the book's previous update has not
+	// been applied yet, it is replaced, so a book behind the writer skips to
+	// its newest state instead of queueing every one. Blocks while the ring
+	// is full, which can only happen with more books than slots.
+	void publish(OrderBookConsumer consumer, KBestOrders kBest) {
+		if (consumer.pendingKBest.getAndSet(kBest) != null) {
+			consumer.conflatedUpdates.incrementAndGet();
+			conflatedUpdates.incrementAndGet();
+			return;
+		}
+		final long sequence = nextSequence.getAndIncrement();
+		if (sequence - events.length >= consumedSequence) {
+			publishWaits.incrementAndGet();
+			while (sequence - events.length >= consumedSequence) {
+				LockSupport.parkNanos(fullParkNanos);
+			}
+		}
+		final int slot = (int) (sequence & mask);
+		events[slot] = consumer;
+		// Volatile write, so the writer sees the event once it sees the
+		// sequence
+		publishedSequences.set(slot, sequence);
+		maxQueueDepth.accumulateAndGet(sequence + 1 - consumedSequence, Math::max);
+		if (writerWaiting) {
+			LockSupport.unpark(writerThread);
+		}
+	}
+
+	// Applies everything published so far. Returns the number of events
+	// applied. Only called from the writer thread, or directly when no writer
+	// thread is running.
+	int drain() {
+		long sequence = consumedSequence;
+		OrderGraph.Batch batch = sharedOrderGraph.newBatch();
+		batchStamp++;
+		int numEvents = 0;
+		while (publishedSequences.get((int) (sequence & mask)) == sequence) {
+			final OrderBookConsumer consumer = events[(int) (sequence & mask)];
+			events[(int) (sequence & mask)] = null;
+			// Taken here so any later update publishes a new event, and the
+			// slot is free for it
+			final KBestOrders kBest = consumer.pendingKBest.getAndSet(null);
+			consumedSequence = sequence + 1;
+			// A book already in this batch depends on its earlier edges being
+			// in the graph, so it starts a new batch
+			if (consumer.batchStamp == batchStamp) {
+				applyBatch(batch);
+				batch = sharedOrderGraph.newBatch();
+				batchStamp++;
+			}
+			consumer.batchStamp = batchStamp;
+			try {
+				if (consumer.addToBatch(kBest, batch)) {
+					batchConsumers.add(consumer);
+					batchKBests.add(kBest);
+				}
+			} catch (RuntimeException e) {
+				// Nothing was added to the batch, so only this book needs
+				// rebuilding
+				System.out.println("Failed to diff order book, resyncing it: " + e.toString());
+				failedUpdates++;
+				consumer.resync(kBest);
+				orderGraphChangeHandler.onOrderGraphChanged();
+			}
+			sequence++;
+			numEvents++;
+		}
+		applyBatch(batch);
+		eventsApplied += numEvents;
+		return numEvents;
+	}
+
+	private void applyBatch(OrderGraph.Batch batch) {
+		if (batchConsumers.isEmpty()) {
+			return;
+		}
+		try {
+			if (batch.apply()) {
+				batchesApplied++;
+				// Returns immediately and analysis starts running in another
+				// thread
+				orderGraphChangeHandler.onOrderGraphChanged();
+				for (OrderBookConsumer consumer : batchConsumers) {
+					consumer.afterApply();
+				}
+				return;
+			}
+			// The graph is unchanged, but it is not known which book's edges
+			// were missing, so all of them start over
+			System.out.println("Failed to remove edge that should have existed according to diff, resyncing "
+					+ batchConsumers.size() + " order books on thread " + Thread.currentThread().getId());
+			failedUpdates += batchConsumers.size();
+			for (int i = 0; i < batchConsumers.size(); i++) {
+				batchConsumers.get(i).resync(batchKBests.get(i));
+			}
+			orderGraphChangeHandler.onOrderGraphChanged();
+		} finally {
+			batchConsumers.clear();
+			batchKBests.clear();
+		}
+	}
+
+	public void start() {
+		if (writerThread != null) {
+			return;
+		}
+		shouldExit = false;
+		writerThread = new Thread() {
+			public void run() {
+				while (!shouldExit) {
+					try {
+						if (drain() > 0) {
+							continue;
+						}
+					} catch (RuntimeException e) {
+						// Events taken so far are lost, but the rest of the
+						// ring and later books still get applied
+						System.out.println("Ingest writer failed to apply order books: " + e.toString());
+						continue;
+					}
+					// Publishers unpark the writer once they see it waiting,
+					// so check again after saying so
+					writerWaiting = true;
+					if (!isEmpty()) {
+						writerWaiting = false;
+						continue;
+					}
+					LockSupport.parkNanos(idleParkNanos);
+					writerWaiting = false;
+				}
+				drain();
+			}
+		};
+		writerThread.start();
+	}
+
+	public void stop() throws InterruptedException {
+		final Thread thread = writerThread;
+		if (thread != null) {
+			shouldExit = true;
+			LockSupport.unpark(thread);
+			thread.join();
+			writerThread = null;
+		}
+	}
+
+	private boolean isEmpty() {
+		final long sequence = consumedSequence;
+		return publishedSequences.get((int) (sequence & mask)) != sequence;
+	}
+
+	// Events published but not yet taken by the writer
+	public long getQueueDepth() {
+		return Math.max(0, nextSequence.get() - consumedSequence);
+	}
+
+	// Deepest the queue has been when an event was published
+	public long getMaxQueueDepth() {
+		return maxQueueDepth.get();
+	}
+
+	// Number of publishes that found the ring full and had to wait
+	public long getPublishWaits() {
+		return publishWaits.get();
+	}
+
+	// Updates replaced by a newer one for the same book before they were
+	// applied, over all books
+	public long getConflatedUpdates() {
+		return conflatedUpdates.get();
+	}
+
+	public long getEventsApplied() {
+		return eventsApplied;
+	}
+
+	// Number of graph updates made, each applying one or more order books
+	public long getBatchesApplied() {
+		return batchesApplied;
+	}
+
+	// Order book updates that could not be applied as a diff, so their books
+	// were rebuilt instead
+	public long getFailedUpdates() {
+		return failedUpdates;
+	}
+
+	public int getCapacity() {
+		return events.length;
+	}
+}
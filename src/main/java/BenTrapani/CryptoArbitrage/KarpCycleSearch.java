@@ -0,0 +1,121 @@
+package BenTrapani.CryptoArbitrage;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.knowm.xchange.currency.Currency;
+
+import BenTrapani.CryptoArbitrage.OrderBookAnalyzer.AnalysisResult;
+import BenTrapani.CryptoArbitrage.OrderBookAnalyzer.LoopCollector;
+import BenTrapani.CryptoArbitrage.OrderGraph.TwoSidedGraphEdge;
+
+/***
+ *
+ * Karp's minimum mean cycle over the -log ratio edge weights. A loop with a
+ * negative mean weight has a product of ratios above 1, and the minimum mean
+ * cycle is the loop with the best average return per trade.
+ *
+ * Computes the lowest weight walk of exactly k trades from the root to every
+ * currency for k up to V, which takes O(V * E) time and O(V^2) memory whether
+ * or not there is a loop. Each currency whose Karp value is negative has a
+ * negative cycle on its V trade walk, and those cycles are offered as
+ * candidates. Like Bellman Ford, only loops reachable from the root are found,
+ * and loops longer than maxTrades are dropped.
+ *
+ */
+public class KarpCycleSearch implements CycleSearchEngine {
+
+	public AnalysisResult search(IndexedOrderGraph graph, Currency root, LoopCollector loops) {
+		final int rootId = graph.getCurrencyId(root);
+		if (rootId >= 0) {
+			findLoops(graph, rootId, loops);
+		}
+		return loops.getResultOrNone();
+	}
+
+	private static void findLoops(IndexedOrderGraph graph, int rootId, LoopCollector loops) {
+		final int numVertices = graph.getVertexCount();
+		// walkWeights[k][v] is the lowest weight of a walk of exactly k trades
+		// from the root to v, and its last trade is edge lastEdges[k][v] out
+		// of lastSources[k][v]
+		final double[][] walkWeights = new double[numVertices + 1][numVertices];
+		final int[][] lastSources = new int[numVertices + 1][numVertices];
+		final int[][] lastEdges = new int[numVertices + 1][numVertices];
+		for (double[] layer : walkWeights) {
+			Arrays.fill(layer, Double.POSITIVE_INFINITY);
+		}
+		walkWeights[0][rootId] = 0;
+		for (int k = 1; k <= numVertices; k++) {
+			if (loops.isPastDeadline()) {
+				// No Karp values until every layer is done
+				return;
+			}
+			final double[] prevWeights = walkWeights[k - 1];
+			final double[] weights = walkWeights[k];
+			boolean anyReached = false;
+			for (int u = 0; u < numVertices; u++) {
+				if (prevWeights[u] == Double.POSITIVE_INFINITY) {
+					continue;
+				}
+				final int edgeCount = graph.getEdgeCount(u);
+				for (int e = 0; e < edgeCount; e++) {
+					if (graph.getEdgeQuantity(u, e) <= 0) {
+						continue;
+					}
+					final int v = graph.getEdgeDestId(u, e);
+					final double weight = prevWeights[u] + graph.getEdgeNegativeLogRatio(u, e);
+					if (weight < weights[v]) {
+						weights[v] = weight;
+						lastSources[k][v] = u;
+						lastEdges[k][v] = e;
+						anyReached = true;
+					}
+				}
+			}
+			if (!anyReached) {
+				// Every walk from the root ends within k trades, so there are
+				// no loops
+				return;
+			}
+		}
+
+		final int[] vertexAtLevel = new int[numVertices + 1];
+		final int[] seenStamp = new int[numVertices];
+		final int[] seenLevel = new int[numVertices];
+		int stamp = 0;
+		final double[] fullWalkWeights = walkWeights[numVertices];
+		for (int v = 0; v < numVertices; v++) {
+			if (fullWalkWeights[v] == Double.POSITIVE_INFINITY) {
+				continue;
+			}
+			double karpValue = Double.NEGATIVE_INFINITY;
+			for (int k = 0; k < numVertices; k++) {
+				if (walkWeights[k][v] != Double.POSITIVE_INFINITY) {
+					karpValue = Math.max(karpValue, (fullWalkWeights[v] - walkWeights[k][v]) / (numVertices - k));
+				}
+			}
+			if (karpValue >= 0) {
+				continue;
+			}
+			// Walk back along the V trade walk to v and offer each cycle on it
+			stamp++;
+			vertexAtLevel[numVertices] = v;
+			for (int k = numVertices; k > 0; k--) {
+				final int current = vertexAtLevel[k];
+				seenStamp[current] = stamp;
+				seenLevel[current] = k;
+				final int source = lastSources[k][current];
+				vertexAtLevel[k - 1] = source;
+				if (seenStamp[source] == stamp) {
+					HashSet<TwoSidedGraphEdge> tradesToExecute = new HashSet<TwoSidedGraphEdge>();
+					for (int level = k; level <= seenLevel[source]; level++) {
+						final int dest = vertexAtLevel[level];
+						tradesToExecute.add(graph.getEdge(lastSources[level][dest], lastEdges[level][dest]));
+					}
+					loops.offer(tradesToExecute);
+					stamp++;
+				}
+			}
+		}
+	}
+}
@@ -2,11 +2,15 @@ package BenTrapani.CryptoArbitrage;
 
 import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.knowm.xchange.currency.CurrencyPair;
 import org.knowm.xchange.dto.Order.OrderType;
@@ -17,6 +21,8 @@ import org.knowm.xchange.dto.trade.LimitOrder;
 import org.knowm.xchange.exceptions.NotAvailableFromExchangeException;
 import org.knowm.xchange.exceptions.NotYetImplementedForExchangeException;
 
+import BenTrapani.CryptoArbitrage.OrderGraph.EdgeHandle;
+import BenTrapani.CryptoArbitrage.OrderGraph.TwoSidedGraphEdge;
 import io.reactivex.disposables.Disposable;
 
 public class OrderBookAggregator {
@@ -25,12 +31,91 @@ public class OrderBookAggregator {
 		public final List<LimitOrder> kBestBids;
 		public final List<LimitOrder> kBestAsks;
 
+		// Same result as a stable sort followed by taking the first k. Deep
+		// books are not sorted, only searched for their k best orders.
 		private List<LimitOrder> sortAndTakeFirstK(List<LimitOrder> orders, int k) {
-			Collections.sort(orders);
-			if (k < orders.size()) {
-				orders = orders.subList(0, k);
+			final int size = orders.size();
+			if (k >= size) {
+				Collections.sort(orders);
+				return orders;
+			}
+			if (isSorted(orders)) {
+				return orders.subList(0, Math.max(k, 0));
+			}
+			if (k <= 0) {
+				return new ArrayList<LimitOrder>();
+			}
+			// Heap of the indices of the k best orders so far, worst at the
+			// root. Ties go to the lower index, as with a stable sort.
+			final int[] heap = new int[k];
+			for (int i = 0; i < k; i++) {
+				heap[i] = i;
+				siftUp(orders, heap, i);
+			}
+			for (int i = k; i < size; i++) {
+				if (compareOrders(orders, i, heap[0]) < 0) {
+					heap[0] = i;
+					siftDown(orders, heap, k);
+				}
+			}
+			final LimitOrder[] result = new LimitOrder[k];
+			for (int heapSize = k; heapSize > 0; heapSize--) {
+				result[heapSize - 1] = orders.get(heap[0]);
+				heap[0] = heap[heapSize - 1];
+				siftDown(orders, heap, heapSize - 1);
+			}
+			return new ArrayList<LimitOrder>(Arrays.asList(result));
+		}
+
+		private static boolean isSorted(List<LimitOrder> orders) {
+			LimitOrder prev = null;
+			for (LimitOrder order : orders) {
+				if (prev != null && prev.compareTo(order) > 0) {
+					return false;
+				}
+				prev = order;
+			}
+			return true;
+		}
+
+		// Orders by compareTo, then by index
+		private static int compareOrders(List<LimitOrder> orders, int first, int second) {
+			final int result = orders.get(first).compareTo(orders.get(second));
+			return result != 0 ? result : Integer.compare(first, second);
+		}
+
+		private static void siftUp(List<LimitOrder> orders, int[] heap, int index) {
+			while (index > 0) {
+				final int parent = (index - 1) / 2;
+				if (compareOrders(orders, heap[index], heap[parent]) <= 0) {
+					return;
+				}
+				swap(heap, index, parent);
+				index = parent;
+			}
+		}
+
+		private static void siftDown(List<LimitOrder> orders, int[] heap, int heapSize) {
+			int index = 0;
+			while (true) {
+				int largest = index;
+				for (int child = 2 * index + 1; child <= 2 * index + 2 && child < heapSize; child++) {
+					if (compareOrders(orders, heap[child], heap[largest]) > 0) {
+						largest = child;
+					}
+				}
+				if (largest == index) {
+					return;
+				}
+				swap(heap, index, largest);
+				index = largest;
 			}
-			return orders;
+		}
+
+		private static void swap(int[] heap, int first, int second) {
+			final int temp = heap[first];
+			heap[first] = heap[second];
+			heap[second] = temp;
 		}
 
 		public KBestOrders(List<LimitOrder> allBids, List<LimitOrder> allAsks, final int maxBids, final int maxAsks) {
@@ -48,6 +133,9 @@ public class OrderBookAggregator {
 	private OrderGraphChangeHandler orderGraphChangeHandler;
 	private final int numBestBids;
 	private final int numBestAsks;
+	private SpreadDetector spreadDetector = null;
+	private IngestPipeline ingestPipeline = null;
+	private final List<OrderBookConsumer> consumers = new ArrayList<OrderBookConsumer>();
 
 	public OrderBookAggregator(OrderGraph orderGraph, OrderGraphChangeHandler orderGraphChangeHandler, int numBestBids,
 			int numBestAsks) {
@@ -57,26 +145,90 @@ public class OrderBookAggregator {
 		this.numBestAsks = numBestAsks;
 	}
 
+	// Also checks each update for a crossed market on the same currency pair
+	// across exchanges. Applies to consumers created after this is set.
+	public void setSpreadDetector(SpreadDetector spreadDetector) {
+		this.spreadDetector = spreadDetector;
+	}
+
+	// Publishes order book changes to the pipeline, whose writer thread
+	// updates the graph. Applies to consumers created after this is set.
+	public void setIngestPipeline(IngestPipeline ingestPipeline) {
+		this.ingestPipeline = ingestPipeline;
+	}
+
+	// Order book updates skipped for each currency pair on the exchange,
+	// because a newer book arrived before the ingest pipeline applied them
+	public Map<CurrencyPair, Long> getConflatedUpdates(String exchangeName) {
+		Map<CurrencyPair, Long> result = new HashMap<CurrencyPair, Long>();
+		synchronized (consumers) {
+			for (OrderBookConsumer consumer : consumers) {
+				if (consumer.exchangeName.equals(exchangeName)) {
+					result.put(consumer.currencyPair, consumer.getConflatedUpdates());
+				}
+			}
+		}
+		return result;
+	}
+
+	// Orders are matched by side and price. An order at the same price with
+	// the same remaining amount is kept even if its id or timestamp changed.
+	// Sorted lists are merged in one pass, unsorted ones are sorted first.
 	protected static class OneSidedOrderBookDiff {
 		private List<LimitOrder> additions = new ArrayList<LimitOrder>();
 		private List<LimitOrder> deletions = new ArrayList<LimitOrder>();
+		// Orders in source matched by the order at the same index in
+		// retainedDests
+		private List<LimitOrder> retainedSources = new ArrayList<LimitOrder>();
+		private List<LimitOrder> retainedDests = new ArrayList<LimitOrder>();
 
 		public OneSidedOrderBookDiff(List<LimitOrder> source, List<LimitOrder> dest) {
-			HashSet<LimitOrder> sourceSet = new HashSet<LimitOrder>(source);
-			// Remove all elements in dest from source.
-			// If element is in dest and not in source set, it is an addition.
-			// Anything left in sourceSet is a deletion
-			for (LimitOrder destOrder : dest) {
-				if (!sourceSet.contains(destOrder)) {
+			source = sortedIfNeeded(source);
+			dest = sortedIfNeeded(dest);
+			int sourceIndex = 0;
+			int destIndex = 0;
+			while (sourceIndex < source.size() || destIndex < dest.size()) {
+				if (destIndex == dest.size()) {
+					deletions.add(source.get(sourceIndex++));
+					continue;
+				}
+				if (sourceIndex == source.size()) {
+					additions.add(dest.get(destIndex++));
+					continue;
+				}
+				final LimitOrder sourceOrder = source.get(sourceIndex);
+				final LimitOrder destOrder = dest.get(destIndex);
+				// Compares side, then price
+				final int order = sourceOrder.compareTo(destOrder);
+				if (order < 0) {
+					deletions.add(sourceOrder);
+					sourceIndex++;
+				} else if (order > 0) {
 					additions.add(destOrder);
+					destIndex++;
 				} else {
-					sourceSet.remove(destOrder);
+					if (sourceOrder.getRemainingAmount().compareTo(destOrder.getRemainingAmount()) == 0) {
+						retainedSources.add(sourceOrder);
+						retainedDests.add(destOrder);
+					} else {
+						deletions.add(sourceOrder);
+						additions.add(destOrder);
+					}
+					sourceIndex++;
+					destIndex++;
 				}
 			}
+		}
 
-			for (LimitOrder remainingOrder : sourceSet) {
-				deletions.add(remainingOrder);
+		private static List<LimitOrder> sortedIfNeeded(List<LimitOrder> orders) {
+			for (int i = 1; i < orders.size(); i++) {
+				if (orders.get(i - 1).compareTo(orders.get(i)) > 0) {
+					List<LimitOrder> sorted = new ArrayList<LimitOrder>(orders);
+					Collections.sort(sorted);
+					return sorted;
+				}
 			}
+			return orders;
 		}
 
 		List<LimitOrder> getAdditions() {
@@ -86,13 +238,20 @@ public class OrderBookAggregator {
 		List<LimitOrder> getDeletions() {
 			return deletions;
 		}
+
+		List<LimitOrder> getRetainedSources() {
+			return retainedSources;
+		}
+
+		List<LimitOrder> getRetainedDests() {
+			return retainedDests;
+		}
 	}
 
 	protected static class OrderBookDiff {
 		private final OneSidedOrderBookDiff buyDiffs;
 		private final OneSidedOrderBookDiff sellDiffs;
 
-		// Source expected to already be sorted
 		public OrderBookDiff(KBestOrders source, KBestOrders dest) {
 			buyDiffs = new OneSidedOrderBookDiff(source.kBestBids, dest.kBestBids);
 			sellDiffs = new OneSidedOrderBookDiff(source.kBestAsks, dest.kBestAsks);
@@ -109,12 +268,40 @@ public class OrderBookAggregator {
 			allDeletions.addAll(sellDiffs.getDeletions());
 			return allDeletions;
 		}
+
+		public List<LimitOrder> getRetainedSources() {
+			List<LimitOrder> allRetained = new ArrayList<LimitOrder>(buyDiffs.getRetainedSources());
+			allRetained.addAll(sellDiffs.getRetainedSources());
+			return allRetained;
+		}
+
+		public List<LimitOrder> getRetainedDests() {
+			List<LimitOrder> allRetained = new ArrayList<LimitOrder>(buyDiffs.getRetainedDests());
+			allRetained.addAll(sellDiffs.getRetainedDests());
+			return allRetained;
+		}
 	}
 
 	protected static class OrderBookConsumer implements io.reactivex.functions.Consumer<OrderBook> {
 
 		public OrderBookConsumer(int numBestBids, int numBestAsks, OrderGraph sharedOrderGraph, String exchangeName,
 				Fraction feeToTrade, CurrencyPair currencyPair, OrderGraphChangeHandler orderGraphChangeHandler) {
+			this(numBestBids, numBestAsks, sharedOrderGraph, exchangeName, feeToTrade, currencyPair,
+					orderGraphChangeHandler, null);
+		}
+
+		public OrderBookConsumer(int numBestBids, int numBestAsks, OrderGraph sharedOrderGraph, String exchangeName,
+				Fraction feeToTrade, CurrencyPair currencyPair, OrderGraphChangeHandler orderGraphChangeHandler,
+				SpreadDetector spreadDetector) {
+			this(numBestBids, numBestAsks, sharedOrderGraph, exchangeName, feeToTrade, currencyPair,
+					orderGraphChangeHandler, spreadDetector, null);
+		}
+
+		// With an ingest pipeline, the pipeline's writer thread updates the
+		// graph and signals orderGraphChangeHandler instead of this consumer
+		public OrderBookConsumer(int numBestBids, int numBestAsks, OrderGraph sharedOrderGraph, String exchangeName,
+				Fraction feeToTrade, CurrencyPair currencyPair, OrderGraphChangeHandler orderGraphChangeHandler,
+				SpreadDetector spreadDetector, IngestPipeline ingestPipeline) {
 			this.numBestBids = numBestBids;
 			this.numBestAsks = numBestAsks;
 			this.sharedOrderGraph = sharedOrderGraph;
@@ -122,57 +309,215 @@ public class OrderBookAggregator {
 			this.feeToTrade = feeToTrade;
 			this.currencyPair = currencyPair;
 			this.orderGraphChangeHandler = orderGraphChangeHandler;
+			this.spreadDetector = spreadDetector;
+			this.quoteHandle = spreadDetector == null ? null : spreadDetector.register(currencyPair);
+			this.ingestPipeline = ingestPipeline;
 		}
 
 		@Override
 		public void accept(OrderBook orderBook) throws Exception {
 			synchronized (lockObj) {
-				KBestOrders newKBest = new KBestOrders(new ArrayList<LimitOrder>(orderBook.getBids()),
-						new ArrayList<LimitOrder>(orderBook.getAsks()), numBestBids, numBestAsks);
-				OrderBookDiff diff;
-				diff = new OrderBookDiff(prevOrderBook, newKBest);
-				// System.out.println("Got order book update from exchange " +
-				// exchangeName + " on thread " +
-				// Thread.currentThread().getId());
-
-				List<LimitOrder> deletions = diff.getDeletions();
-				List<LimitOrder> additions = diff.getAdditions();
-				for (LimitOrder deletion : deletions) {
-					if (!sharedOrderGraph.removeEdge(deletion.getCurrencyPair().counter,
-							deletion.getCurrencyPair().base, exchangeName, getIsLimitOrderBuyForUs(deletion),
-							new Fraction(deletion.getRemainingAmount()), new Fraction(deletion.getLimitPrice()),
-							feeToTrade)) {
+				if (incrementalOrderBook != null) {
+					incrementalOrderBook.reset(orderBook);
+					publish(incrementalOrderBook.getKBest());
+				} else {
+					lastFullBook = orderBook;
+					publish(new KBestOrders(new ArrayList<LimitOrder>(orderBook.getBids()),
+							new ArrayList<LimitOrder>(orderBook.getAsks()), numBestBids, numBestAsks));
+				}
+			}
+		}
+
+		// For feeds that send changed price levels instead of full books.
+		// Each order replaces the level at its price, or removes it if it has
+		// no amount left. Call accept with a full book first, and again to
+		// resync, otherwise this throws. Only changes that reach the best
+		// levels update the graph.
+		public void acceptLevelUpdates(List<LimitOrder> levelUpdates) {
+			synchronized (lockObj) {
+				if (incrementalOrderBook == null) {
+					if (lastFullBook == null) {
 						throw new IllegalStateException(
-								"Failed to remove edge that should have existed according to diff: \n"
-										+ " updating currency " + currencyPair.toString() + " for exchange "
-										+ exchangeName + " on thread " + Thread.currentThread().getId());
+								"Level updates for " + exchangeName + " need a full order book first");
 					}
+					// Start from every level of the last full book, so levels
+					// behind the best ones can move up as the best are removed
+					incrementalOrderBook = new IncrementalOrderBook(numBestBids, numBestAsks);
+					incrementalOrderBook.reset(lastFullBook);
+					lastFullBook = null;
 				}
-				for (LimitOrder addition : additions) {
-					if (addition.getRemainingAmount().compareTo(BigDecimal.ZERO) < 0) {
-						throw new IllegalStateException("Negative remaining amount. Original qty: "
-								+ addition.getOriginalAmount() + ", cumulative qty: " + addition.getCumulativeAmount());
-					}
-					sharedOrderGraph.addEdge(addition.getCurrencyPair().counter, addition.getCurrencyPair().base,
-							exchangeName, getIsLimitOrderBuyForUs(addition),
-							new Fraction(addition.getRemainingAmount()), new Fraction(addition.getLimitPrice()),
-							feeToTrade);
+				for (LimitOrder levelUpdate : levelUpdates) {
+					incrementalOrderBook.applyLevel(levelUpdate);
+				}
+				publish(incrementalOrderBook.getKBest());
+			}
+		}
+
+		private void publish(KBestOrders newKBest) {
+			if (newKBest == publishedKBest) {
+				return;
+			}
+			publishedKBest = newKBest;
+			if (ingestPipeline != null) {
+				ingestPipeline.publish(this, newKBest);
+				return;
+			}
+			OrderGraph.Batch batch = sharedOrderGraph.newBatch();
+			if (!addToBatch(newKBest, batch)) {
+				return;
+			}
+			if (!batch.apply()) {
+				throw new IllegalStateException(
+						"Failed to remove edge that should have existed according to diff: \n"
+								+ " updating currency " + currencyPair.toString() + " for exchange "
+								+ exchangeName + " on thread " + Thread.currentThread().getId());
+			}
+
+			// Returns immediately and analysis starts running in another
+			// thread
+			orderGraphChangeHandler.onOrderGraphChanged();
+			afterApply();
+		}
+
+		// Adds the changes from the previous best orders to the batch.
+		// Returns false if there are none. The changes only take effect here
+		// once afterApply is called, and nothing is added to the batch if
+		// this throws. Called by whichever thread updates the graph for this
+		// consumer.
+		boolean addToBatch(KBestOrders newKBest, OrderGraph.Batch batch) {
+			OrderBookDiff diff;
+			diff = new OrderBookDiff(prevOrderBook, newKBest);
+			// System.out.println("Got order book update from exchange " +
+			// exchangeName + " on thread " +
+			// Thread.currentThread().getId());
+
+			// Orders that did not change keep their edges
+			final IdentityHashMap<LimitOrder, EdgeHandle> newEdgeHandles =
+					new IdentityHashMap<LimitOrder, EdgeHandle>();
+			List<LimitOrder> retainedSources = diff.getRetainedSources();
+			List<LimitOrder> retainedDests = diff.getRetainedDests();
+			for (int i = 0; i < retainedSources.size(); i++) {
+				newEdgeHandles.put(retainedDests.get(i), edgeHandles.get(retainedSources.get(i)));
+			}
+			List<LimitOrder> deletions = diff.getDeletions();
+			List<LimitOrder> additions = diff.getAdditions();
+			stagedOrderBook = newKBest;
+			stagedEdgeHandles = newEdgeHandles;
+			if (deletions.isEmpty() && additions.isEmpty()) {
+				commitStaged();
+				return false;
+			}
+			// Checked before anything is added to the batch
+			final List<EdgeHandle> removedHandles = new ArrayList<EdgeHandle>(deletions.size());
+			for (LimitOrder deletion : deletions) {
+				EdgeHandle edgeHandle = edgeHandles.get(deletion);
+				if (edgeHandle == null) {
+					throw new IllegalStateException(
+							"Missing edge handle for order that should have existed according to diff: \n"
+									+ " updating currency " + currencyPair.toString() + " for exchange "
+									+ exchangeName + " on thread " + Thread.currentThread().getId());
+				}
+				removedHandles.add(edgeHandle);
+			}
+			for (LimitOrder addition : additions) {
+				if (addition.getRemainingAmount().compareTo(BigDecimal.ZERO) < 0) {
+					throw new IllegalStateException("Negative remaining amount. Original qty: "
+							+ addition.getOriginalAmount() + ", cumulative qty: " + addition.getCumulativeAmount());
 				}
+			}
+			// The whole diff goes in one batch so the analyzer never sees a
+			// partially updated book
+			for (EdgeHandle edgeHandle : removedHandles) {
+				batch.removeEdge(edgeHandle);
+			}
+			for (LimitOrder addition : additions) {
+				EdgeHandle edgeHandle = batch.addEdge(addition.getCurrencyPair().counter,
+						addition.getCurrencyPair().base, exchangeName, getIsLimitOrderBuyForUs(addition),
+						new Fraction(addition.getRemainingAmount()), new Fraction(addition.getLimitPrice()),
+						feeToTrade);
+				newEdgeHandles.put(addition, edgeHandle);
+			}
+			return true;
+		}
 
-				// Returns immediately and analysis starts running in another
-				// thread
-				orderGraphChangeHandler.onOrderGraphChanged();
+		// Called once the batch from addToBatch has been applied
+		void afterApply() {
+			commitStaged();
+			if (spreadDetector != null) {
+				spreadDetector.update(quoteHandle, getBestEdge(prevOrderBook.kBestBids),
+						getBestEdge(prevOrderBook.kBestAsks));
+			}
+			// System.out.println("Finished order book update from exchange
+			// " + exchangeName + " on thread " +
+			// Thread.currentThread().getId());
+		}
+
+		private void commitStaged() {
+			prevOrderBook = stagedOrderBook;
+			edgeHandles = stagedEdgeHandles;
+			stagedOrderBook = null;
+			stagedEdgeHandles = null;
+		}
 
-				prevOrderBook = newKBest;
-				// System.out.println("Finished order book update from exchange
-				// " + exchangeName + " on thread " +
-				// Thread.currentThread().getId());
+		// Called instead of afterApply when the update could not be applied.
+		// Removes whatever edges this book still has in the graph and adds
+		// kBest again from scratch. If that fails too, the book is left
+		// without edges until its next update.
+		void resync(KBestOrders kBest) {
+			stagedOrderBook = null;
+			stagedEdgeHandles = null;
+			for (EdgeHandle edgeHandle : edgeHandles.values()) {
+				// Returns false for edges that are already gone
+				sharedOrderGraph.removeEdge(edgeHandle);
+			}
+			prevOrderBook = new KBestOrders();
+			edgeHandles = new IdentityHashMap<LimitOrder, EdgeHandle>();
+			try {
+				// Only additions, so the batch cannot fail
+				OrderGraph.Batch batch = sharedOrderGraph.newBatch();
+				if (addToBatch(kBest, batch) && batch.apply()) {
+					afterApply();
+				}
+			} catch (RuntimeException e) {
+				System.out.println("Failed to resync currency " + currencyPair.toString() + " for exchange "
+						+ exchangeName + ": " + e.toString());
 			}
 		}
 
-		private KBestOrders prevOrderBook = new KBestOrders();
+		public long getConflatedUpdates() {
+			return conflatedUpdates.get();
+		}
+
+		// Orders are sorted best first
+		private TwoSidedGraphEdge getBestEdge(List<LimitOrder> orders) {
+			return orders.isEmpty() ? null : edgeHandles.get(orders.get(0)).getEdge();
+		}
+
+		// Guarded by lockObj
+		private KBestOrders publishedKBest = new KBestOrders();
+		// Only created once level updates are used, from the last full book
+		private IncrementalOrderBook incrementalOrderBook = null;
+		private OrderBook lastFullBook = null;
 		private Object lockObj = new Object();
 
+		// Owned by the thread that updates the graph: the order book thread
+		// under lockObj, or the ingest pipeline's writer
+		private KBestOrders prevOrderBook = publishedKBest;
+		// Graph edges for the orders in prevOrderBook, by identity since
+		// orders are matched by price rather than equals
+		private IdentityHashMap<LimitOrder, EdgeHandle> edgeHandles = new IdentityHashMap<LimitOrder, EdgeHandle>();
+		// Replace prevOrderBook and edgeHandles once the batch from
+		// addToBatch has been applied
+		private KBestOrders stagedOrderBook = null;
+		private IdentityHashMap<LimitOrder, EdgeHandle> stagedEdgeHandles = null;
+		// Marks the ingest pipeline batch this consumer was last added to
+		long batchStamp = -1;
+		// Newest best orders waiting for the ingest pipeline's writer, null
+		// once it has taken them
+		final AtomicReference<KBestOrders> pendingKBest = new AtomicReference<KBestOrders>(null);
+		// Updates replaced by a newer one before the writer applied them
+		final AtomicLong conflatedUpdates = new AtomicLong(0);
+
 		private final int numBestBids;
 		private final int numBestAsks;
 		private final Fraction feeToTrade;
@@ -181,6 +526,9 @@ public class OrderBookAggregator {
 
 		private OrderGraphChangeHandler orderGraphChangeHandler;
 		private OrderGraph sharedOrderGraph;
+		private final SpreadDetector spreadDetector;
+		private final SpreadDetector.QuoteHandle quoteHandle;
+		private final IngestPipeline ingestPipeline;
 	}
 
 	private static boolean getIsLimitOrderBuyForUs(LimitOrder order) {
@@ -256,7 +604,11 @@ public class OrderBookAggregator {
 			} else {
 				Fraction feeToTrade = new Fraction(currentTradingFee);
 				OrderBookConsumer orderBookConsumer = new OrderBookConsumer(numBestBids, numBestAsks, sharedOrderGraph,
-						exchangeName, feeToTrade, currencyPair, orderGraphChangeHandler);
+						exchangeName, feeToTrade, currencyPair, orderGraphChangeHandler, spreadDetector,
+						ingestPipeline);
+				synchronized (consumers) {
+					consumers.add(orderBookConsumer);
+				}
 				try {
 					disposablesPerCurrency[idx] = exchange.getOrderBook(currencyPair).subscribe(orderBookConsumer);
 					System.out.println("Exchange " + exchangeName + " subscribing to " + currencyPair);
@@ -1,12 +1,16 @@
 package BenTrapani.CryptoArbitrage;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
-import java.util.Hashtable;
 import java.util.List;
 import java.util.Stack;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
 
 import org.apache.commons.lang3.mutable.MutableBoolean;
 import org.knowm.xchange.currency.Currency;
@@ -14,9 +18,34 @@ import org.knowm.xchange.currency.Currency;
 import BenTrapani.CryptoArbitrage.OrderGraph.TwoSidedGraphEdge;
 
 public class OrderBookAnalyzer implements OrderGraphChangeHandler {
+	public enum SearchAlgorithm {
+		// Depth first search over every loop of up to maxTrades trades
+		BRUTE_FORCE,
+		// Full Bellman Ford from the root on every analysis
+		BELLMAN_FORD,
+		// Queue based Bellman Ford that stops once distances converge
+		SPFA,
+		// Repairs the previous shortest paths from the edges that changed,
+		// falling back to a full Bellman Ford when needed
+		INCREMENTAL_BELLMAN_FORD,
+		// SPFA from several roots at once on all cores
+		PARALLEL_SPFA,
+		// Best loop of each length up to maxTrades, one hop per layer
+		DEPTH_BOUNDED_DP,
+		// Karp's minimum mean cycle, see KarpCycleSearch
+		KARP_MIN_MEAN_CYCLE,
+		// Howard's policy iteration, see HowardCycleSearch
+		HOWARD_POLICY_ITERATION,
+		// Only 3 trade loops, from a TriangleIndex kept up to date between
+		// analyses. Searches every currency, not just the root.
+		TRIANGLES
+	}
+
 	private OrderGraph sharedOrderGraph;
 	private Thread analyzerThread;
-	private Semaphore semaphore = new Semaphore(0);
+	// Bursts of graph changes collapse into a single analysis of the latest
+	// graph
+	private final CoalescingTrigger analysisTrigger;
 	// Currency to accumulate if using brute force algorithm, root of bellman
 	// ford search when using that.
 	// When using bellman ford, best to pick a currency that is exchangeable to
@@ -26,9 +55,62 @@ public class OrderBookAnalyzer implements OrderGraphChangeHandler {
 	private MutableBoolean shouldExit = new MutableBoolean(false);
 	private int maxTrades;
 	private OrderGraphAnalysisHandler analysisHandler;
+	private CycleSearchEngine searchEngine;
+	// Used by the parallel search, one worker per core. Created on first use
+	// and shut down with the analyzer.
+	private ForkJoinPool searchPool = null;
+	private volatile List<Currency> searchRoots = null;
+	private volatile int maxRankedLoops = 1;
+	private volatile double screeningSlack = 0;
+	private volatile long analysisDeadlineMillis = 0;
+	// Multiplies the deadline, doubled after each search cut short by it and
+	// reset once a search completes. Only changed from the analyzer thread.
+	private int deadlineScale = 1;
+	private static final int maxDeadlineScale = 1 << 16;
+	// Time source for deadlines, replaced by tests
+	private volatile LongSupplier nanoClock = System::nanoTime;
+	private final AtomicLong partialAnalyses = new AtomicLong(0);
+	// Only used from the analyzer thread
+	private final TriangleIndex triangleIndex = new TriangleIndex();
+	private volatile boolean triangleFastPath = false;
+	// Set after a pass reported only triangles, so the next one runs the
+	// full search even if triangles are still profitable
+	private boolean fullSearchPending = false;
+	private volatile boolean bestEdgesOnly = true;
+	private final AtomicLong loopsVerified = new AtomicLong(0);
+	private final AtomicLong falsePositiveLoops = new AtomicLong(0);
 
 	public OrderBookAnalyzer(OrderGraph sharedOrderGraph, Currency currencyToAccumulate, int maxTrades,
 			OrderGraphAnalysisHandler analysisHandler) {
+		this(sharedOrderGraph, currencyToAccumulate, maxTrades, analysisHandler, SearchAlgorithm.BELLMAN_FORD, 0, 0);
+	}
+
+	// Analyses start at least minAnalysisIntervalMillis apart. A non zero
+	// debounceMillis waits for the graph to stop changing for that long
+	// before analyzing.
+	public OrderBookAnalyzer(OrderGraph sharedOrderGraph, Currency currencyToAccumulate, int maxTrades,
+			OrderGraphAnalysisHandler analysisHandler, SearchAlgorithm searchAlgorithm, long minAnalysisIntervalMillis,
+			long debounceMillis) {
+		this(sharedOrderGraph, currencyToAccumulate, maxTrades, analysisHandler, minAnalysisIntervalMillis,
+				debounceMillis);
+		this.searchEngine = getBuiltInEngine(searchAlgorithm);
+	}
+
+	// Runs searchEngine instead of one of the built in algorithms
+	public OrderBookAnalyzer(OrderGraph sharedOrderGraph, Currency currencyToAccumulate, int maxTrades,
+			OrderGraphAnalysisHandler analysisHandler, CycleSearchEngine searchEngine, long minAnalysisIntervalMillis,
+			long debounceMillis) {
+		this(sharedOrderGraph, currencyToAccumulate, maxTrades, analysisHandler, minAnalysisIntervalMillis,
+				debounceMillis);
+		if (searchEngine == null) {
+			throw new IllegalArgumentException("Search engine cannot be null");
+		}
+		this.searchEngine = searchEngine;
+	}
+
+	private OrderBookAnalyzer(OrderGraph sharedOrderGraph, Currency currencyToAccumulate, int maxTrades,
+			OrderGraphAnalysisHandler analysisHandler, long minAnalysisIntervalMillis, long debounceMillis) {
+		this.analysisTrigger = new CoalescingTrigger(minAnalysisIntervalMillis, debounceMillis);
 		this.sharedOrderGraph = sharedOrderGraph;
 		this.currencyToAccumulate = currencyToAccumulate;
 		if (maxTrades <= 0) {
@@ -38,65 +120,158 @@ public class OrderBookAnalyzer implements OrderGraphChangeHandler {
 		this.analysisHandler = analysisHandler;
 	}
 
-	protected static class SearchCacheKey {
-		// Instead of number of edges to here, the key should have the set of
-		// edges remaining that are children of currency
-		// Computing this is likely slower than the brute force approach, so
-		// probably use that instead of the DP solution.
-		// Brute force solution key will replace numberOfEdgesToHere with a
-		// hashset of visited edges so far. This approach
-		// will catch a few repeated subproblems where same set of remaining
-		// edges needs to be evaluated and the order of
-		// previously visited edges is the same.
-		public final HashSet<TwoSidedGraphEdge> edgesVisited;
-		public final Currency currency;
+	// A point in the brute force search: the currency reached, the ratio of
+	// the trades taken to get there and the set of edges used. Edges are
+	// numbered across the whole snapshot and the set is kept as a bitset. The
+	// hash is of the set and currency only, and is updated incrementally as
+	// edges are added.
+	protected static class SearchState {
+		public final int currencyId;
+		public final SearchState parent;
+		public final Fraction ratio;
+		final long[] visitedEdges;
+		final int numVisitedEdges;
+		final long hash;
 
-		@SuppressWarnings("unchecked")
-		public SearchCacheKey(SearchState searchState) {
-			this.edgesVisited = (HashSet<TwoSidedGraphEdge>) searchState.visitedEdges.clone();
-			this.currency = searchState.currency;
+		public SearchState(int currencyId, int numEdges) {
+			this.currencyId = currencyId;
+			this.parent = null;
+			this.ratio = new Fraction(1);
+			this.visitedEdges = new long[(numEdges + 63) / 64];
+			this.numVisitedEdges = 0;
+			this.hash = hashOfCurrency(currencyId);
 		}
 
-		@Override
-		public int hashCode() {
-			return edgesVisited.hashCode() * 19203 + currency.hashCode();
+		private SearchState(SearchState parent, int currencyId, Fraction ratio, int edgeIndex) {
+			this.currencyId = currencyId;
+			this.parent = parent;
+			this.ratio = ratio;
+			this.visitedEdges = parent.visitedEdges.clone();
+			this.visitedEdges[edgeIndex >>> 6] |= 1L << edgeIndex;
+			this.numVisitedEdges = parent.numVisitedEdges + 1;
+			this.hash = parent.hash ^ hashOfCurrency(parent.currencyId) ^ hashOfCurrency(currencyId)
+					^ hashOfEdge(edgeIndex);
 		}
 
-		@Override
-		public boolean equals(Object obj) {
-			if (obj == null) {
-				return false;
-			}
-			if (getClass() != obj.getClass()) {
-				return false;
-			}
-			final SearchCacheKey other = (SearchCacheKey) obj;
-			return edgesVisited.equals(other.edgesVisited) && currency.equals(other.currency);
+		boolean hasVisited(int edgeIndex) {
+			return (visitedEdges[edgeIndex >>> 6] & (1L << edgeIndex)) != 0;
+		}
+
+		SearchState withEdge(int edgeIndex, int destId, Fraction edgeRatio) {
+			return new SearchState(this, destId, edgeRatio.multiply(ratio), edgeIndex);
+		}
+
+		boolean hasSameKey(SearchState other) {
+			return hash == other.hash && currencyId == other.currencyId
+					&& Arrays.equals(visitedEdges, other.visitedEdges);
+		}
+
+		private static long hashOfEdge(int edgeIndex) {
+			return mix(edgeIndex * 0x9E3779B97F4A7C15L);
+		}
+
+		private static long hashOfCurrency(int currencyId) {
+			return mix((currencyId + 1) * 0xC2B2AE3D27D4EB4FL);
+		}
+
+		// Finalizer from SplitMix64, spreads the bits of consecutive inputs
+		private static long mix(long z) {
+			z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+			z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+			return z ^ (z >>> 31);
 		}
 	}
 
-	protected static class SearchState {
-		public final Currency currency;
-		public final SearchState parent;
-		public final Fraction ratio;
-		public final HashSet<TwoSidedGraphEdge> visitedEdges;
+	// Best loop found from each expanded search state, keyed by the state's
+	// edge set and currency. Open addressing on the precomputed state hash,
+	// with the bitsets only compared when hashes match. A state that has been
+	// expanded without finding a loop maps to null.
+	protected static class SearchMemo {
+		private long[] hashes = new long[64];
+		private SearchState[] keys = new SearchState[64];
+		private SearchState[] bestLoops = new SearchState[64];
+		private int size = 0;
 
-		public SearchState(Currency currency, SearchState parent, Fraction ratio,
-				HashSet<TwoSidedGraphEdge> visitedEdges) {
-			this.currency = currency;
-			this.parent = parent;
-			this.ratio = ratio;
-			this.visitedEdges = visitedEdges;
+		private int indexOf(SearchState state) {
+			final int mask = keys.length - 1;
+			int index = (int) (state.hash ^ (state.hash >>> 32)) & mask;
+			while (keys[index] != null) {
+				if (hashes[index] == state.hash && keys[index].hasSameKey(state)) {
+					return index;
+				}
+				index = (index + 1) & mask;
+			}
+			return ~index;
+		}
+
+		boolean contains(SearchState state) {
+			return indexOf(state) >= 0;
+		}
+
+		SearchState getBestLoop(SearchState state) {
+			final int index = indexOf(state);
+			return index >= 0 ? bestLoops[index] : null;
+		}
+
+		void put(SearchState state, SearchState bestLoop) {
+			int index = indexOf(state);
+			if (index < 0) {
+				if (2 * (size + 1) > keys.length) {
+					grow();
+					index = indexOf(state);
+				}
+				index = ~index;
+				hashes[index] = state.hash;
+				keys[index] = state;
+				size++;
+			}
+			bestLoops[index] = bestLoop;
+		}
+
+		private void grow() {
+			final SearchState[] oldKeys = keys;
+			final SearchState[] oldBestLoops = bestLoops;
+			hashes = new long[oldKeys.length * 2];
+			keys = new SearchState[oldKeys.length * 2];
+			bestLoops = new SearchState[oldKeys.length * 2];
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldKeys[i] != null) {
+					final int index = ~indexOf(oldKeys[i]);
+					hashes[index] = oldKeys[i].hash;
+					keys[index] = oldKeys[i];
+					bestLoops[index] = oldBestLoops[i];
+				}
+			}
 		}
 	}
 
 	public static class AnalysisResult implements Comparable<AnalysisResult> {
 		public final Fraction maxRatio;
 		public final HashSet<TwoSidedGraphEdge> tradesToExecute;
+		// The best distinct loops found, best first. The first entry is the
+		// same loop as maxRatio and tradesToExecute.
+		public final List<AnalysisResult> rankedLoops;
+		// Set if the search ran out of time and this is the best it found
+		// before stopping. Loops are still exact, but better ones may exist.
+		public final boolean partial;
 
 		AnalysisResult(Fraction maxRatio, HashSet<TwoSidedGraphEdge> tradesToExecute) {
+			this(maxRatio, tradesToExecute, false);
+		}
+
+		AnalysisResult(Fraction maxRatio, HashSet<TwoSidedGraphEdge> tradesToExecute, boolean partial) {
 			this.maxRatio = maxRatio;
 			this.tradesToExecute = tradesToExecute;
+			this.rankedLoops = tradesToExecute == null ? Collections.<AnalysisResult> emptyList()
+					: Collections.singletonList(this);
+			this.partial = partial;
+		}
+
+		AnalysisResult(List<AnalysisResult> rankedLoops, boolean partial) {
+			this.maxRatio = rankedLoops.get(0).maxRatio;
+			this.tradesToExecute = rankedLoops.get(0).tradesToExecute;
+			this.rankedLoops = Collections.unmodifiableList(rankedLoops);
+			this.partial = partial;
 		}
 
 		@Override
@@ -110,88 +285,88 @@ public class OrderBookAnalyzer implements OrderGraphChangeHandler {
 
 	protected static class SearchContext {
 		private Stack<SearchState> searchStack = new Stack<SearchState>();
-		private Hashtable<SearchCacheKey, AnalysisResult> maxRatioPerState = new Hashtable<SearchCacheKey, AnalysisResult>();
-		private final Currency destNode;
+		private final SearchMemo maxRatioPerState = new SearchMemo();
+		private final int destNode;
 		private final SearchState sourceState;
-		private final AnalysisResult sentinelRatio = new AnalysisResult(new Fraction(-1), null);
-		private final OrderGraph orderGraphSnapshot;
+		private final IndexedOrderGraph orderGraphSnapshot;
+		// Index of the first edge of each source currency
+		private final int[] edgeIndexOffsets;
+		private final TwoSidedGraphEdge[] edgesByIndex;
 		private final int contextMaxTrades;
+		// Best complete loop seen, reported if the search is cut short
+		private SearchState bestLoopSoFar = null;
 
-		public SearchContext(Currency destNode, SearchState sourceState, OrderGraph orderGraphSnapshot, int maxTrades) {
+		public SearchContext(int destNode, IndexedOrderGraph orderGraphSnapshot, int maxTrades) {
+			final int numVertices = orderGraphSnapshot.getVertexCount();
+			this.edgeIndexOffsets = new int[numVertices + 1];
+			for (int u = 0; u < numVertices; u++) {
+				edgeIndexOffsets[u + 1] = edgeIndexOffsets[u] + orderGraphSnapshot.getEdgeCount(u);
+			}
+			this.edgesByIndex = new TwoSidedGraphEdge[edgeIndexOffsets[numVertices]];
+			for (int u = 0; u < numVertices; u++) {
+				for (int e = 0; e < orderGraphSnapshot.getEdgeCount(u); e++) {
+					edgesByIndex[edgeIndexOffsets[u] + e] = orderGraphSnapshot.getEdge(u, e);
+				}
+			}
 			this.destNode = destNode;
-			this.sourceState = sourceState;
+			this.sourceState = new SearchState(destNode, edgesByIndex.length);
 			this.orderGraphSnapshot = orderGraphSnapshot;
 			this.contextMaxTrades = maxTrades;
 			expandSearchState(sourceState);
 		}
 
 		public void expandSearchState(SearchState searchState) {
-			final boolean isDestNode = searchState.currency.equals(destNode) && searchState.parent != null;
-			final SearchCacheKey searchStateKey = new SearchCacheKey(searchState);
-			if (maxRatioPerState.containsKey(searchStateKey) || isDestNode) {
+			final boolean isDestNode = searchState.currencyId == destNode && searchState.parent != null;
+			if (isDestNode || maxRatioPerState.contains(searchState)) {
 				if (searchState != sourceState) {
 					updateMaxForParent(searchState, isDestNode);
 				}
-			} else if (searchState.visitedEdges.size() < contextMaxTrades) {
-				maxRatioPerState.put(searchStateKey, sentinelRatio);
-				final HashSet<TwoSidedGraphEdge> edgesFromSource = orderGraphSnapshot.getEdges(searchState.currency);
-				if (edgesFromSource != null) {
-					List<SearchState> nextStates = new ArrayList<SearchState>(edgesFromSource.size());
-					for (TwoSidedGraphEdge edge : edgesFromSource) {
-						SearchState maybeNextState = getNextSearchStateIfNotEdgeExists(searchState, edge);
-						if (maybeNextState != null) {
-							nextStates.add(maybeNextState);
-						}
+			} else if (searchState.numVisitedEdges < contextMaxTrades) {
+				maxRatioPerState.put(searchState, null);
+				final int u = searchState.currencyId;
+				final int edgeCount = orderGraphSnapshot.getEdgeCount(u);
+				boolean pushedSelf = false;
+				for (int e = 0; e < edgeCount; e++) {
+					// Cannot use the same edge twice because each edge
+					// represents a possible trade at the current point in time
+					final int edgeIndex = edgeIndexOffsets[u] + e;
+					if (searchState.hasVisited(edgeIndex)) {
+						continue;
 					}
-
-					if (nextStates.size() > 0) {
+					if (!pushedSelf) {
 						// Process this state again once children are expanded
 						searchStack.push(searchState);
-						for (SearchState nextState : nextStates) {
-							searchStack.push(nextState);
-						}
+						pushedSelf = true;
 					}
+					searchStack.push(searchState.withEdge(edgeIndex, orderGraphSnapshot.getEdgeDestId(u, e),
+							edgesByIndex[edgeIndex].graphEdge.ratio));
 				}
 			}
 		}
 
 		private void updateMaxForParent(SearchState child, boolean isDestNode) {
 			final SearchState parent = child.parent;
-			final SearchCacheKey parentKey = new SearchCacheKey(parent);
-			final SearchCacheKey childKey = new SearchCacheKey(child);
-
 			if (parent == null) {
 				throw new IllegalStateException("Parent of input child must be non-null to update its max");
 			}
-			if (!maxRatioPerState.containsKey(parentKey)) {
+			if (!maxRatioPerState.contains(parent)) {
 				throw new IllegalStateException(
 						"Parent must have max ratio cache initialized before children are processed");
 			}
-			if (!maxRatioPerState.containsKey(childKey) && !isDestNode) {
+			if (!isDestNode && !maxRatioPerState.contains(child)) {
 				throw new IllegalStateException(
 						"Child must have max ratio cache initialized before updating parent if not dest node");
 			}
 
-			final AnalysisResult prevMaxRatio = maxRatioPerState.get(parentKey);
-			final AnalysisResult childMaxRatio = isDestNode ? new AnalysisResult(child.ratio, child.visitedEdges)
-					: maxRatioPerState.get(childKey);
-
-			if (childMaxRatio.compareTo(prevMaxRatio) > 0) {
-				maxRatioPerState.put(parentKey, childMaxRatio);
+			if (isDestNode && (bestLoopSoFar == null || child.ratio.compareTo(bestLoopSoFar.ratio) > 0)) {
+				bestLoopSoFar = child;
 			}
-		}
-
-		private SearchState getNextSearchStateIfNotEdgeExists(SearchState parent, TwoSidedGraphEdge edge) {
-			// Cannot use the same edge twice because each edge represents a
-			// possible trade at the current point in time
-			if (!parent.visitedEdges.contains(edge)) {
-				@SuppressWarnings("unchecked")
-				HashSet<TwoSidedGraphEdge> newVisitedEdges = (HashSet<TwoSidedGraphEdge>) parent.visitedEdges.clone();
-				newVisitedEdges.add(edge);
-				return new SearchState(edge.graphEdge.destCurrency, parent, edge.graphEdge.ratio.multiply(parent.ratio),
-						newVisitedEdges);
+			final SearchState prevBestLoop = maxRatioPerState.getBestLoop(parent);
+			final SearchState childBestLoop = isDestNode ? child : maxRatioPerState.getBestLoop(child);
+			if (childBestLoop != null
+					&& (prevBestLoop == null || childBestLoop.ratio.compareTo(prevBestLoop.ratio) > 0)) {
+				maxRatioPerState.put(parent, childBestLoop);
 			}
-			return null;
 		}
 
 		int getStackSize() {
@@ -202,117 +377,1009 @@ public class OrderBookAnalyzer implements OrderGraphChangeHandler {
 			return searchStack.pop();
 		}
 
-		public AnalysisResult getAnalysisResult() {
-			return maxRatioPerState.get(new SearchCacheKey(sourceState));
+		// If partial, the stack has not been emptied and the best loop seen so
+		// far is reported
+		public AnalysisResult getAnalysisResult(boolean partial) {
+			final SearchState bestLoop = partial ? bestLoopSoFar : maxRatioPerState.getBestLoop(sourceState);
+			if (bestLoop == null) {
+				return new AnalysisResult(new Fraction(-1), null, partial);
+			}
+			HashSet<TwoSidedGraphEdge> tradesToExecute = new HashSet<TwoSidedGraphEdge>(
+					bestLoop.numVisitedEdges * 2);
+			for (int word = 0; word < bestLoop.visitedEdges.length; word++) {
+				long bits = bestLoop.visitedEdges[word];
+				while (bits != 0) {
+					tradesToExecute.add(edgesByIndex[word * 64 + Long.numberOfTrailingZeros(bits)]);
+					bits &= bits - 1;
+				}
+			}
+			return new AnalysisResult(bestLoop.ratio, tradesToExecute, partial);
 		}
 	}
 
 	protected AnalysisResult searchForArbitrage() {
-		SearchContext searchCtx = new SearchContext(currencyToAccumulate,
-				new SearchState(currencyToAccumulate, null, new Fraction(1), new HashSet<TwoSidedGraphEdge>()),
-				(OrderGraph) sharedOrderGraph.clone(), maxTrades);
+		return searchBruteForce(sharedOrderGraph.getIndexedSnapshot(), currencyToAccumulate, newLoopCollector());
+	}
+
+	// Reports the best loop even if it is not profitable. Only the trade
+	// limit is taken from loops, ranking and screening are not supported
+	// and the search is exact throughout.
+	private AnalysisResult searchBruteForce(IndexedOrderGraph graph, Currency root, LoopCollector loops) {
+		final int rootId = graph.getCurrencyId(root);
+		if (rootId < 0) {
+			return new AnalysisResult(new Fraction(-1), null);
+		}
+		SearchContext searchCtx = new SearchContext(rootId, graph, loops.getMaxTradesPerLoop());
 
+		int statesExpanded = 0;
 		while (searchCtx.getStackSize() > 0) {
+			if (++statesExpanded % 1024 == 0 && loops.isPastDeadline()) {
+				break;
+			}
 			SearchState curState = searchCtx.popStack();
 			searchCtx.expandSearchState(curState);
 		}
 
-		return searchCtx.getAnalysisResult();
+		return searchCtx.getAnalysisResult(loops.isPartial());
+	}
+
+	// Distances from the root vertex and the edge each vertex was last
+	// reached by. Predecessor edges are kept as references so they stay valid
+	// when the bucket they are in is rebuilt.
+	protected static class ShortestPaths {
+		final double[] distanceToVertex;
+		final int[] predecessorSource;
+		final TwoSidedGraphEdge[] predecessorEdge;
+
+		ShortestPaths(int numVertices, int rootId) {
+			distanceToVertex = new double[numVertices];
+			predecessorSource = new int[numVertices];
+			predecessorEdge = new TwoSidedGraphEdge[numVertices];
+			Arrays.fill(distanceToVertex, Double.POSITIVE_INFINITY);
+			Arrays.fill(predecessorSource, -1);
+			distanceToVertex[rootId] = 0;
+		}
+
+		// Returns true if the distance to the dest of the edge improved
+		boolean relax(IndexedOrderGraph graph, int u, int e) {
+			if (graph.getEdgeQuantity(u, e) <= 0) {
+				return false;
+			}
+			final int v = graph.getEdgeDestId(u, e);
+			final double distanceThroughU = distanceToVertex[u] + graph.getEdgeNegativeLogRatio(u, e);
+			if (distanceThroughU < distanceToVertex[v]) {
+				distanceToVertex[v] = distanceThroughU;
+				predecessorSource[v] = u;
+				predecessorEdge[v] = graph.getEdge(u, e);
+				return true;
+			}
+			return false;
+		}
 	}
 
 	protected AnalysisResult searchForArbitrageBellmanFord() {
-		OrderGraph orderGraphSnapshot = (OrderGraph) sharedOrderGraph.clone();
-
-		HashMap<Currency, Fraction> distanceToVertex = new HashMap<Currency, Fraction>();
-		HashMap<Currency, TwoSidedGraphEdge> predecessor = new HashMap<Currency, TwoSidedGraphEdge>();
-
-		List<Currency> vertices = orderGraphSnapshot.getVertices();
-		for (Currency vertex : vertices) {
-			distanceToVertex.put(vertex, null);
-			predecessor.put(vertex, null);
-		}
-
-		distanceToVertex.put(currencyToAccumulate, new Fraction(0, 1));
-
-		Fraction neg1 = new Fraction(-1);
-		for (int i = 0; i < vertices.size() - 1; ++i) {
-			for (Currency vertex : vertices) {
-				final HashSet<TwoSidedGraphEdge> edgesFromVert = orderGraphSnapshot.getEdgesWithNonzeroQuantity(vertex);
-        if (edgesFromVert == null) {
-            continue;
-        }
-				for (TwoSidedGraphEdge graphEdge : edgesFromVert) {
-					Fraction distanceToU = distanceToVertex.get(vertex);
-					Fraction distanceToV = distanceToVertex.get(graphEdge.graphEdge.destCurrency);
-					Fraction weight = graphEdge.graphEdge.ratio.logLossy().multiply(neg1);
-					if (distanceToU != null) {
-						if (distanceToV == null || distanceToU.add(weight).compareTo(distanceToV) < 0) {
-							distanceToVertex.put(graphEdge.graphEdge.destCurrency, distanceToU.add(weight));
-							predecessor.put(graphEdge.graphEdge.destCurrency, graphEdge);
-						}
-					}
+		return searchBellmanFord(sharedOrderGraph.getIndexedSnapshot(), currencyToAccumulate, newLoopCollector());
+	}
+
+	private AnalysisResult searchBellmanFord(IndexedOrderGraph graph, Currency root, LoopCollector loops) {
+		return searchBellmanFord(graph, root, loops, false);
+	}
+
+	private AnalysisResult searchBellmanFord(IndexedOrderGraph graph, Currency root, LoopCollector loops,
+			boolean keepStateForIncremental) {
+		incrementalState = null;
+		final int numVertices = graph.getVertexCount();
+		final int rootId = graph.getCurrencyId(root);
+		if (rootId < 0) {
+			return new AnalysisResult(new Fraction(0), null);
+		}
+
+		final ShortestPaths paths = new ShortestPaths(numVertices, rootId);
+		for (int i = 0; i < numVertices - 1; ++i) {
+			if (loops.isPastDeadline()) {
+				// Report the loops the predecessors already lead around
+				break;
+			}
+			for (int u = 0; u < numVertices; ++u) {
+				if (paths.distanceToVertex[u] == Double.POSITIVE_INFINITY) {
+					continue;
+				}
+				final int edgeCount = graph.getEdgeCount(u);
+				for (int e = 0; e < edgeCount; ++e) {
+					paths.relax(graph, u, e);
 				}
 			}
 		}
 
-		AnalysisResult analysisResult = null;
-		for (Currency vertex : vertices) {
-			final HashSet<TwoSidedGraphEdge> edgesFromVert = orderGraphSnapshot.getEdgesWithNonzeroQuantity(vertex);
-      if (edgesFromVert == null) {
-          continue;
-      }
-			for (TwoSidedGraphEdge graphEdge : edgesFromVert) {
-				Fraction distanceToU = distanceToVertex.get(vertex);
-				Fraction distanceToV = distanceToVertex.get(graphEdge.graphEdge.destCurrency);
-				Fraction weight = graphEdge.graphEdge.ratio.logLossy().multiply(neg1);
-				if (distanceToU != null && distanceToV != null && distanceToU.add(weight).compareTo(distanceToV) < 0) {
-					// This is a negative weight cycle, profit opportunity.
-					// Start at V and work backwards until we get back to a
-					// vertex we've seen before.
-					// Then start here and work around the loop to build a list
-					// of trades to execute.
-					Currency currentVertex = vertex;
-					HashSet<Currency> vertsVisited = new HashSet<Currency>();
-					while (!vertsVisited.contains(currentVertex)) {
-						vertsVisited.add(currentVertex);
-						currentVertex = predecessor.get(currentVertex).sourceCurrency;
-					}
+		MutableBoolean foundNegativeCycle = new MutableBoolean(false);
+		findLoopsFromViolatedEdges(graph, paths, foundNegativeCycle, loops);
+		if (keepStateForIncremental && foundNegativeCycle.isFalse() && !loops.isPartial()) {
+			// Distances have converged, so the predecessors form a tree
+			incrementalState = IncrementalState.fromConvergedPaths(graph, rootId, paths);
+		}
+		return loops.getResultOrNone();
+	}
+
+	// Checks every edge for a distance that could still be improved, which
+	// means it is downstream of a negative weight cycle, and offers the loops
+	// found from those edges to loops.
+	private static void findLoopsFromViolatedEdges(IndexedOrderGraph graph, ShortestPaths paths,
+			MutableBoolean foundNegativeCycle, LoopCollector loops) {
+		final int numVertices = graph.getVertexCount();
+		final double[] distanceToVertex = paths.distanceToVertex;
+		final int[] predecessorSource = paths.predecessorSource;
+		final TwoSidedGraphEdge[] predecessorEdge = paths.predecessorEdge;
+		final int[] visitedStamp = new int[numVertices];
+		int stamp = 0;
+		for (int u = 0; u < numVertices; ++u) {
+			final double distanceToU = distanceToVertex[u];
+			if (distanceToU == Double.POSITIVE_INFINITY) {
+				continue;
+			}
+			final int edgeCount = graph.getEdgeCount(u);
+			for (int e = 0; e < edgeCount; ++e) {
+				final int v = graph.getEdgeDestId(u, e);
+				if (graph.getEdgeQuantity(u, e) <= 0 || distanceToVertex[v] == Double.POSITIVE_INFINITY
+						|| distanceToU + graph.getEdgeNegativeLogRatio(u, e) >= distanceToVertex[v]) {
+					continue;
+				}
+				// This is a negative weight cycle, profit opportunity.
+				foundNegativeCycle.setTrue();
+				// If V is a short way up the predecessor chain of U, this edge
+				// closes a loop of its own, which may be shorter than the one
+				// the predecessors lead to.
+				int currentVertex = u;
+				int loopLength = 1;
+				while (currentVertex >= 0 && currentVertex != v && loopLength < loops.getMaxTradesPerLoop()) {
+					currentVertex = predecessorSource[currentVertex];
+					loopLength++;
+				}
+				if (currentVertex == v) {
 					HashSet<TwoSidedGraphEdge> tradesToExecute = new HashSet<TwoSidedGraphEdge>();
-					while (true) {
-						TwoSidedGraphEdge tradeToExecute = predecessor.get(currentVertex);
-						if (tradesToExecute.contains(tradeToExecute)) {
-							break;
-						}
-						tradesToExecute.add(tradeToExecute);
-						currentVertex = tradeToExecute.sourceCurrency;
+					tradesToExecute.add(graph.getEdge(u, e));
+					for (currentVertex = u; currentVertex != v; currentVertex = predecessorSource[currentVertex]) {
+						tradesToExecute.add(predecessorEdge[currentVertex]);
 					}
+					loops.offer(tradesToExecute);
+				}
+
+				// Start at U and work backwards until we get back to a
+				// vertex we've seen before.
+				// Then start here and work around the loop to build a list
+				// of trades to execute.
+				stamp++;
+				currentVertex = u;
+				while (currentVertex >= 0 && visitedStamp[currentVertex] != stamp) {
+					visitedStamp[currentVertex] = stamp;
+					currentVertex = predecessorSource[currentVertex];
+				}
+				if (currentVertex < 0) {
+					// Rounding in the double weights can flag an edge that is
+					// not actually downstream of a cycle
+					continue;
+				}
+				HashSet<TwoSidedGraphEdge> tradesToExecute = new HashSet<TwoSidedGraphEdge>();
+				final int cycleStart = currentVertex;
+				do {
+					tradesToExecute.add(predecessorEdge[currentVertex]);
+					currentVertex = predecessorSource[currentVertex];
+				} while (currentVertex != cycleStart);
+				loops.offer(tradesToExecute);
+			}
+		}
+	}
+
+	// Work queue of vertices whose distance improved and whose edges need to
+	// be relaxed again (SPFA). A vertex is in the queue at most once at a
+	// time, so the queue never holds more than V entries.
+	// A shortest path never repeats a vertex, so a path of V or more hops
+	// means there is a negative cycle. The predecessors are also walked every
+	// V relaxations, which usually finds a cycle well before any path gets
+	// that long.
+	protected static class RelaxationQueue {
+		private final IndexedOrderGraph graph;
+		private final ShortestPaths paths;
+		private final int[] hopsFromRoot;
+		private final int[] queue;
+		private final boolean[] isQueued;
+		private int head = 0;
+		private int size = 0;
+		private final int[] walkStamp;
+		private int stamp = 0;
+		private int relaxationsSinceWalk = 0;
+		private boolean foundNegativeCycle = false;
+		// Checked for its deadline along with the predecessor walks
+		private final LoopCollector loops;
+		private boolean pastDeadline = false;
+
+		RelaxationQueue(IndexedOrderGraph graph, ShortestPaths paths, int[] hopsFromRoot, LoopCollector loops) {
+			final int numVertices = graph.getVertexCount();
+			this.graph = graph;
+			this.paths = paths;
+			this.hopsFromRoot = hopsFromRoot;
+			this.loops = loops;
+			queue = new int[numVertices];
+			isQueued = new boolean[numVertices];
+			walkStamp = new int[numVertices];
+		}
+
+		void add(int v) {
+			if (!isQueued[v]) {
+				isQueued[v] = true;
+				queue[(head + size) % queue.length] = v;
+				size++;
+			}
+		}
+
+		void relax(int u, int e) {
+			if (!paths.relax(graph, u, e)) {
+				return;
+			}
+			final int v = graph.getEdgeDestId(u, e);
+			hopsFromRoot[v] = hopsFromRoot[u] + 1;
+			add(v);
+			if (++relaxationsSinceWalk >= queue.length) {
+				relaxationsSinceWalk = 0;
+				if (predecessorsLoop(v)) {
+					foundNegativeCycle = true;
+				}
+				pastDeadline = loops.isPastDeadline();
+			}
+		}
+
+		// Relaxes edges until no distance improves. Returns false, with the
+		// work left unfinished, if a negative cycle is found or the deadline
+		// of loops passes.
+		boolean drain() {
+			while (size > 0 && !foundNegativeCycle && !pastDeadline) {
+				final int u = queue[head];
+				head = (head + 1) % queue.length;
+				size--;
+				isQueued[u] = false;
+				if (hopsFromRoot[u] >= queue.length) {
+					foundNegativeCycle = true;
+					break;
+				}
+				final int edgeCount = graph.getEdgeCount(u);
+				for (int e = 0; e < edgeCount; e++) {
+					relax(u, e);
+				}
+			}
+			return !foundNegativeCycle && !pastDeadline;
+		}
+
+		private boolean predecessorsLoop(int start) {
+			stamp++;
+			int current = start;
+			while (current >= 0 && walkStamp[current] != stamp) {
+				walkStamp[current] = stamp;
+				current = paths.predecessorSource[current];
+			}
+			return current >= 0;
+		}
+	}
+
+	// Same result contract as searchForArbitrageBellmanFord, but only relaxes
+	// edges out of vertices whose distance changed, and stops as soon as
+	// distances converge or a negative cycle is found.
+	private AnalysisResult searchSpfa(IndexedOrderGraph graph, Currency root, LoopCollector loops) {
+		final int rootId = graph.getCurrencyId(root);
+		if (rootId >= 0) {
+			searchSpfaFromRoot(graph, rootId, loops);
+		}
+		return loops.getResultOrNone();
+	}
+
+	private static void searchSpfaFromRoot(IndexedOrderGraph graph, int rootId, LoopCollector loops) {
+		final int numVertices = graph.getVertexCount();
+		final ShortestPaths paths = new ShortestPaths(numVertices, rootId);
+		final RelaxationQueue queue = new RelaxationQueue(graph, paths, new int[numVertices], loops);
+		queue.add(rootId);
+		if (!queue.drain()) {
+			findLoopsFromViolatedEdges(graph, paths, new MutableBoolean(false), loops);
+		}
+	}
+
+	// Splits the roots in half until each task has one root, runs SPFA from
+	// it and merges the loops found on the way back up
+	private static class MultiRootSearchTask extends RecursiveTask<LoopCollector> {
+		private static final long serialVersionUID = 1L;
+		private final IndexedOrderGraph graph;
+		private final int[] rootIds;
+		private final int begin;
+		private final int end;
+		// Only used to create empty collectors with the right limits
+		private final LoopCollector emptyLoops;
+
+		MultiRootSearchTask(IndexedOrderGraph graph, int[] rootIds, int begin, int end, LoopCollector emptyLoops) {
+			this.graph = graph;
+			this.rootIds = rootIds;
+			this.begin = begin;
+			this.end = end;
+			this.emptyLoops = emptyLoops;
+		}
+
+		@Override
+		protected LoopCollector compute() {
+			if (end - begin == 1) {
+				final LoopCollector loops = emptyLoops.newEmptyCopy();
+				if (!loops.isPastDeadline()) {
+					searchSpfaFromRoot(graph, rootIds[begin], loops);
+				}
+				return loops;
+			}
+			final int middle = (begin + end) / 2;
+			MultiRootSearchTask left = new MultiRootSearchTask(graph, rootIds, begin, middle, emptyLoops);
+			left.fork();
+			LoopCollector rightLoops = new MultiRootSearchTask(graph, rootIds, middle, end, emptyLoops).compute();
+			LoopCollector leftLoops = left.join();
+			leftLoops.addAll(rightLoops);
+			return leftLoops;
+		}
+	}
+
+	// Runs SPFA from every root in searchRoots, or from every currency with
+	// trades if it is not set, in parallel over the same snapshot. Finds
+	// loops that do not touch the root's shortest path tree.
+	private AnalysisResult searchParallel(IndexedOrderGraph graph, Currency root, LoopCollector loops) {
+		final List<Currency> roots = searchRoots;
+		final int[] candidateIds;
+		if (roots == null) {
+			candidateIds = new int[graph.getVertexCount()];
+			for (int i = 0; i < candidateIds.length; i++) {
+				candidateIds[i] = i;
+			}
+		} else {
+			candidateIds = new int[roots.size()];
+			for (int i = 0; i < candidateIds.length; i++) {
+				candidateIds[i] = graph.getCurrencyId(roots.get(i));
+			}
+		}
+		// A currency with nothing to trade it for cannot start a loop
+		int numRoots = 0;
+		final int[] rootIds = new int[candidateIds.length];
+		for (int candidateId : candidateIds) {
+			if (candidateId >= 0 && graph.getEdgeCount(candidateId) > 0) {
+				rootIds[numRoots++] = candidateId;
+			}
+		}
+
+		if (numRoots > 0) {
+			loops.addAll(
+					getSearchPool().invoke(new MultiRootSearchTask(graph, rootIds, 0, numRoots, loops.newEmptyCopy())));
+		}
+		return loops.getResultOrNone();
+	}
+
+	private synchronized ForkJoinPool getSearchPool() {
+		if (searchPool == null) {
+			searchPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		}
+		return searchPool;
+	}
+
+	synchronized boolean hasSearchPool() {
+		return searchPool != null;
+	}
+
+	// Roots for the parallel search. Null searches from every currency.
+	public void setSearchRoots(List<Currency> searchRoots) {
+		this.searchRoots = searchRoots == null ? null : new ArrayList<Currency>(searchRoots);
+	}
+
+	// Partial walks kept per vertex and hop count by the depth bounded search.
+	// More than one is kept so that a walk can still be extended with an
+	// edge the best walk into the same vertex has already used.
+	private static final int depthBoundedWalksPerVertex = 4;
+
+	// Walks from the root, one layer per hop, keeping the lowest -log ratio
+	// walks into each vertex for each hop count. Every walk that gets back to
+	// the root within maxTrades hops is a candidate loop, so the best loop of
+	// each length is found rather than whichever cycle Bellman Ford happens to
+	// hit. Like the brute force search, a walk never reuses an edge and ends
+	// as soon as it returns to the root.
+	// Takes O(maxTrades^2 * E * depthBoundedWalksPerVertex). The result is
+	// exact unless every kept walk into some vertex is better than the one
+	// leading to the best loop and also shares an edge with the rest of it.
+	private AnalysisResult searchDepthBounded(IndexedOrderGraph graph, Currency root, LoopCollector loops) {
+		final int rootId = graph.getCurrencyId(root);
+		if (rootId >= 0) {
+			searchDepthBounded(graph, rootId, loops);
+		}
+		return loops.getResultOrNone();
+	}
 
-					if (tradesToExecute.size() <= maxTrades) {
-						Fraction pathProd = new Fraction(1);
-						for (TwoSidedGraphEdge graphEdgeToExecute : tradesToExecute) {
-							pathProd = pathProd.multiply(graphEdgeToExecute.graphEdge.ratio);
+	private static void searchDepthBounded(IndexedOrderGraph graph, int rootId, LoopCollector loops) {
+		final int maxTrades = loops.getMaxTradesPerLoop();
+		final int numVertices = graph.getVertexCount();
+		final int slots = depthBoundedWalksPerVertex;
+		// Walk s into vertex v after k hops is at index v * slots + s of
+		// layer k. Walks into a vertex are sorted best first. The previous
+		// walk is an index into layer k - 1, whose vertex is the source of
+		// the last edge.
+		final double[][] weights = new double[maxTrades][];
+		final int[][] previousWalks = new int[maxTrades][];
+		final int[][] lastEdges = new int[maxTrades][];
+		final int[][] walkCounts = new int[maxTrades][];
+		for (int k = 0; k < maxTrades; k++) {
+			weights[k] = new double[numVertices * slots];
+			previousWalks[k] = new int[numVertices * slots];
+			lastEdges[k] = new int[numVertices * slots];
+			walkCounts[k] = new int[numVertices];
+		}
+		walkCounts[0][rootId] = 1;
+
+		for (int k = 1; k <= maxTrades; k++) {
+			if (loops.isPastDeadline()) {
+				return;
+			}
+			final double[] prevWeights = weights[k - 1];
+			final int[] prevCounts = walkCounts[k - 1];
+			for (int u = 0; u < numVertices; u++) {
+				// Walks that are back at the root have already been offered
+				if (prevCounts[u] == 0 || (u == rootId && k > 1)) {
+					continue;
+				}
+				final int edgeCount = graph.getEdgeCount(u);
+				for (int e = 0; e < edgeCount; e++) {
+					if (graph.getEdgeQuantity(u, e) <= 0) {
+						continue;
+					}
+					final int v = graph.getEdgeDestId(u, e);
+					final double edgeWeight = graph.getEdgeNegativeLogRatio(u, e);
+					for (int s = 0; s < prevCounts[u]; s++) {
+						final int prevWalk = u * slots + s;
+						if (walkUsesEdge(previousWalks, lastEdges, k - 1, prevWalk, u, e)) {
+							continue;
 						}
-						if (pathProd.compareTo(new Fraction(1)) <= 0) {
-							throw new IllegalStateException("We goofed. The above code should never give "
-									+ "us a path with a final ratio that is less than or equal to 1");
+						final double weight = prevWeights[prevWalk] + edgeWeight;
+						if (v == rootId) {
+							if (loops.passesScreen(weight)) {
+								loops.offer(buildDepthBoundedLoop(graph, previousWalks, lastEdges, k - 1, prevWalk,
+										graph.getEdge(u, e)));
+							}
+						} else if (k < maxTrades) {
+							insertWalk(weights[k], previousWalks[k], lastEdges[k], walkCounts[k], v, weight, prevWalk,
+									e);
 						}
+					}
+				}
+			}
+		}
+	}
 
-						final AnalysisResult analysisResultForThisPath = new AnalysisResult(pathProd, tradesToExecute);
-						if (analysisResult == null || analysisResult.compareTo(analysisResultForThisPath) < 0) {
-							analysisResult = analysisResultForThisPath;
-						}
+	// Inserts a walk into v's sorted slots in a layer if it is one of the best
+	private static void insertWalk(double[] weights, int[] previousWalks, int[] lastEdges, int[] walkCounts, int v,
+			double weight, int previousWalk, int lastEdge) {
+		final int slots = depthBoundedWalksPerVertex;
+		final int base = v * slots;
+		int count = walkCounts[v];
+		if (count == slots && weights[base + slots - 1] <= weight) {
+			return;
+		}
+		if (count < slots) {
+			count++;
+			walkCounts[v] = count;
+		}
+		int i = base + count - 1;
+		while (i > base && weights[i - 1] > weight) {
+			weights[i] = weights[i - 1];
+			previousWalks[i] = previousWalks[i - 1];
+			lastEdges[i] = lastEdges[i - 1];
+			i--;
+		}
+		weights[i] = weight;
+		previousWalks[i] = previousWalk;
+		lastEdges[i] = lastEdge;
+	}
+
+	private static boolean walkUsesEdge(int[][] previousWalks, int[][] lastEdges, int layer, int walk, int sourceId,
+			int edgeIndex) {
+		for (int k = layer; k > 0; k--) {
+			final int previousWalk = previousWalks[k][walk];
+			if (lastEdges[k][walk] == edgeIndex && previousWalk / depthBoundedWalksPerVertex == sourceId) {
+				return true;
+			}
+			walk = previousWalk;
+		}
+		return false;
+	}
+
+	private static HashSet<TwoSidedGraphEdge> buildDepthBoundedLoop(IndexedOrderGraph graph, int[][] previousWalks,
+			int[][] lastEdges, int layer, int walk, TwoSidedGraphEdge closingEdge) {
+		HashSet<TwoSidedGraphEdge> tradesToExecute = new HashSet<TwoSidedGraphEdge>();
+		tradesToExecute.add(closingEdge);
+		for (int k = layer; k > 0; k--) {
+			final int previousWalk = previousWalks[k][walk];
+			tradesToExecute.add(graph.getEdge(previousWalk / depthBoundedWalksPerVertex, lastEdges[k][walk]));
+			walk = previousWalk;
+		}
+		return tradesToExecute;
+	}
+
+	// Shortest paths kept between incremental runs, along with the graph
+	// version they were computed for. Only kept while no negative cycle is
+	// reachable from the root, so the distances are exact shortest paths and
+	// the predecessors form a tree.
+	protected static class IncrementalState {
+		final IndexedOrderGraph graph;
+		final int rootId;
+		final ShortestPaths paths;
+		// Number of edges on the path from the root to each vertex
+		final int[] hopsFromRoot;
+
+		IncrementalState(IndexedOrderGraph graph, int rootId, ShortestPaths paths, int[] hopsFromRoot) {
+			this.graph = graph;
+			this.rootId = rootId;
+			this.paths = paths;
+			this.hopsFromRoot = hopsFromRoot;
+		}
+
+		// Returns null if the predecessors do not lead back to the root
+		// without repeating a vertex, which rounding in the weights can
+		// cause even when no negative cycle was detected
+		static IncrementalState fromConvergedPaths(IndexedOrderGraph graph, int rootId, ShortestPaths paths) {
+			final int numVertices = graph.getVertexCount();
+			final int[] hopsFromRoot = new int[numVertices];
+			Arrays.fill(hopsFromRoot, -1);
+			hopsFromRoot[rootId] = 0;
+			for (int v = 0; v < numVertices; v++) {
+				if (paths.distanceToVertex[v] == Double.POSITIVE_INFINITY || hopsFromRoot[v] >= 0) {
+					continue;
+				}
+				int hops = 0;
+				int current = v;
+				while (current >= 0 && hopsFromRoot[current] < 0) {
+					current = paths.predecessorSource[current];
+					if (++hops > numVertices) {
+						return null;
+					}
+				}
+				if (current < 0) {
+					return null;
+				}
+				hops += hopsFromRoot[current];
+				for (current = v; hopsFromRoot[current] < 0; current = paths.predecessorSource[current]) {
+					hopsFromRoot[current] = hops--;
+				}
+			}
+			return new IncrementalState(graph, rootId, paths, hopsFromRoot);
+		}
+	}
+
+	// Above this fraction of edges changed since the last run, a full
+	// recompute is cheaper than repairing the previous result
+	private static final double maxChangedEdgeFractionForIncremental = 0.25;
+
+	// Only used from the analyzer thread
+	protected IncrementalState incrementalState = null;
+
+	// Reuses the shortest paths from the previous run and only re-relaxes from
+	// edges that were added or removed since then. When no negative cycle is
+	// reachable, the repair converges and there is no arbitrage to report.
+	// Falls back to a full Bellman Ford when the repair finds a cycle, when
+	// currencies were added, or when too many edges changed.
+	private AnalysisResult searchIncremental(IndexedOrderGraph graph, Currency root, LoopCollector loops) {
+		final IncrementalState state = incrementalState;
+		if (state == null || state.graph.getVertexCount() != graph.getVertexCount()
+				|| state.rootId != graph.getCurrencyId(root)) {
+			return searchBellmanFord(graph, root, loops, true);
+		}
+		if (state.graph == graph) {
+			return new AnalysisResult(new Fraction(0), null);
+		}
+
+		final int numVertices = graph.getVertexCount();
+		final IndexedOrderGraph prevGraph = state.graph;
+		final ShortestPaths paths = state.paths;
+		final int[] hopsFromRoot = state.hopsFromRoot;
+
+		// Buckets are shared between versions until they change, so only
+		// sources whose bucket was replaced need to be compared
+		int totalEdges = 0;
+		int changedEdges = 0;
+		List<Integer> changedSources = new ArrayList<Integer>();
+		for (int u = 0; u < numVertices; u++) {
+			final int edgeCount = graph.getEdgeCount(u);
+			totalEdges += edgeCount;
+			if (prevGraph.getBucket(u) != graph.getBucket(u)) {
+				changedSources.add(u);
+				changedEdges += edgeCount + prevGraph.getEdgeCount(u);
+			}
+		}
+		if (changedEdges > maxChangedEdgeFractionForIncremental * totalEdges) {
+			return searchBellmanFord(graph, root, loops, true);
+		}
+
+		// Vertices whose tree edge was removed lose their distance, along
+		// with everything reached through them
+		final boolean[] invalidated = new boolean[numVertices];
+		boolean anyInvalidated = false;
+		final RelaxationQueue queue = new RelaxationQueue(graph, paths, hopsFromRoot, loops);
+		for (Integer u : changedSources) {
+			final int prevEdgeCount = prevGraph.getEdgeCount(u);
+			for (int e = 0; e < prevEdgeCount; e++) {
+				final int v = prevGraph.getEdgeDestId(u, e);
+				final TwoSidedGraphEdge prevEdge = prevGraph.getEdge(u, e);
+				final IndexedOrderGraph.EdgeBucket bucket = graph.getBucket(u);
+				if (paths.predecessorEdge[v] == prevEdge && (bucket == null || bucket.indexOfSame(prevEdge) < 0)) {
+					invalidated[v] = true;
+					anyInvalidated = true;
+				}
+			}
+		}
+		if (anyInvalidated) {
+			invalidateSubtrees(paths, hopsFromRoot, invalidated);
+			// Reconnect the invalidated vertices through edges from the rest
+			// of the tree
+			for (int u = 0; u < numVertices; u++) {
+				if (invalidated[u] || paths.distanceToVertex[u] == Double.POSITIVE_INFINITY) {
+					continue;
+				}
+				final int edgeCount = graph.getEdgeCount(u);
+				for (int e = 0; e < edgeCount; e++) {
+					if (invalidated[graph.getEdgeDestId(u, e)]) {
+						queue.relax(u, e);
 					}
 				}
 			}
 		}
+
+		// New edges can only shorten paths from their source
+		for (Integer u : changedSources) {
+			if (paths.distanceToVertex[u] == Double.POSITIVE_INFINITY) {
+				continue;
+			}
+			final IndexedOrderGraph.EdgeBucket prevBucket = prevGraph.getBucket(u);
+			final int edgeCount = graph.getEdgeCount(u);
+			for (int e = 0; e < edgeCount; e++) {
+				if (prevBucket == null || prevBucket.indexOfSame(graph.getEdge(u, e)) < 0) {
+					queue.relax(u, e);
+				}
+			}
+		}
+
+		if (!queue.drain()) {
+			return searchBellmanFord(graph, root, loops, true);
+		}
+
+		incrementalState = new IncrementalState(graph, state.rootId, paths, hopsFromRoot);
+		return new AnalysisResult(new Fraction(0), null);
+	}
+
+	// Extends invalidated to every vertex reached through an invalidated
+	// vertex and resets their distances
+	private static void invalidateSubtrees(ShortestPaths paths, int[] hopsFromRoot, boolean[] invalidated) {
+		final int numVertices = invalidated.length;
+		// Walk up each vertex's chain once, memoizing the answer
+		final byte[] known = new byte[numVertices];
+		final byte unknown = 0, valid = 1, invalid = 2;
+		for (int v = 0; v < numVertices; v++) {
+			if (invalidated[v]) {
+				known[v] = invalid;
+			}
+		}
+		for (int v = 0; v < numVertices; v++) {
+			int current = v;
+			while (known[current] == unknown && paths.predecessorSource[current] >= 0) {
+				current = paths.predecessorSource[current];
+			}
+			final byte result = known[current] == invalid ? invalid : valid;
+			for (current = v; known[current] == unknown; current = paths.predecessorSource[current]) {
+				known[current] = result;
+				if (paths.predecessorSource[current] < 0) {
+					break;
+				}
+			}
+		}
+		for (int v = 0; v < numVertices; v++) {
+			if (known[v] == invalid) {
+				invalidated[v] = true;
+				paths.distanceToVertex[v] = Double.POSITIVE_INFINITY;
+				paths.predecessorSource[v] = -1;
+				paths.predecessorEdge[v] = null;
+				hopsFromRoot[v] = -1;
+			}
+		}
+	}
+
+	// Keeps the best maxLoops distinct profitable loops offered to it. With
+	// maxLoops of 1 only the best loop is kept and no list is built.
+	// Candidates are screened with the double -log weights first, and only
+	// those with a ratio above 1 + screeningSlack, give or take rounding,
+	// have their exact ratio computed.
+	protected static class LoopCollector {
+		// Allowed on top of the slack so rounding does not hide a loop the
+		// exact check would accept. Also used by SpreadDetector.
+		static final double roundingTolerance = 1e-9;
+		private final int maxLoops;
+		private final int maxTradesPerLoop;
+		private final double screeningSlack;
+		// Largest total -log weight that passes the screen
+		private final double maxScreenedWeight;
+		private AnalysisResult best = null;
+		// Best first, only used when maxLoops > 1
+		private final ArrayList<AnalysisResult> ranked;
+		private long loopsVerified = 0;
+		private long falsePositiveLoops = 0;
+		private boolean hasDeadline = false;
+		private long deadlineNanos;
+		private LongSupplier nanoClock = System::nanoTime;
+		private boolean partial = false;
+
+		LoopCollector(int maxLoops, int maxTradesPerLoop, double screeningSlack) {
+			this.maxLoops = maxLoops;
+			this.maxTradesPerLoop = maxTradesPerLoop;
+			this.screeningSlack = screeningSlack;
+			this.maxScreenedWeight = -Math.log1p(screeningSlack) + roundingTolerance;
+			this.ranked = maxLoops > 1 ? new ArrayList<AnalysisResult>(maxLoops + 1) : null;
+		}
+
+		// Empty collector with the same limits, for searching part of the
+		// graph separately and merging with addAll
+		LoopCollector newEmptyCopy() {
+			final LoopCollector copy = new LoopCollector(maxLoops, maxTradesPerLoop, screeningSlack);
+			copy.hasDeadline = hasDeadline;
+			copy.deadlineNanos = deadlineNanos;
+			copy.nanoClock = nanoClock;
+			return copy;
+		}
+
+		// Time, as read from nanoClock, by which the search should stop
+		void setDeadlineNanos(long deadlineNanos, LongSupplier nanoClock) {
+			this.hasDeadline = true;
+			this.deadlineNanos = deadlineNanos;
+			this.nanoClock = nanoClock;
+		}
+
+		// Searches check this now and then and stop once it returns true,
+		// which marks the result as partial
+		boolean isPastDeadline() {
+			if (!partial && hasDeadline && nanoClock.getAsLong() - deadlineNanos >= 0) {
+				partial = true;
+			}
+			return partial;
+		}
+
+		boolean isPartial() {
+			return partial;
+		}
+
+		// For results that leave out part of the search for other reasons
+		void markPartial() {
+			partial = true;
+		}
+
+		// True if a loop with this total -log weight is worth verifying
+		boolean passesScreen(double negativeLogRatio) {
+			return negativeLogRatio < maxScreenedWeight;
+		}
+
+		// Keeps a candidate loop if it is one of the best. The loop is dropped
+		// if it is too long, if its double weight does not pass the screen,
+		// or if its exact ratio shows it is not actually profitable.
+		void offer(HashSet<TwoSidedGraphEdge> tradesToExecute) {
+			if (tradesToExecute.size() > maxTradesPerLoop) {
+				return;
+			}
+			double negativeLogRatio = 0;
+			for (TwoSidedGraphEdge graphEdgeToExecute : tradesToExecute) {
+				negativeLogRatio += graphEdgeToExecute.graphEdge.negativeLogRatio;
+			}
+			if (!passesScreen(negativeLogRatio)) {
+				return;
+			}
+			loopsVerified++;
+			Fraction pathProd = new Fraction(1);
+			for (TwoSidedGraphEdge graphEdgeToExecute : tradesToExecute) {
+				pathProd = pathProd.multiply(graphEdgeToExecute.graphEdge.ratio);
+			}
+			if (pathProd.compareTo(new Fraction(1)) <= 0) {
+				falsePositiveLoops++;
+				return;
+			}
+			offer(new AnalysisResult(pathProd, tradesToExecute));
+		}
+
+		private void offer(AnalysisResult loop) {
+			if (ranked == null) {
+				if (best == null || best.compareTo(loop) < 0) {
+					best = loop;
+				}
+				return;
+			}
+			if (ranked.size() == maxLoops && ranked.get(maxLoops - 1).compareTo(loop) >= 0) {
+				return;
+			}
+			int insertAt = ranked.size();
+			for (int i = ranked.size() - 1; i >= 0; i--) {
+				final AnalysisResult other = ranked.get(i);
+				if (other.tradesToExecute.equals(loop.tradesToExecute)) {
+					return;
+				}
+				if (other.compareTo(loop) < 0) {
+					insertAt = i;
+				}
+			}
+			ranked.add(insertAt, loop);
+			if (ranked.size() > maxLoops) {
+				ranked.remove(maxLoops);
+			}
+		}
+
+		void addAll(LoopCollector other) {
+			loopsVerified += other.loopsVerified;
+			falsePositiveLoops += other.falsePositiveLoops;
+			partial |= other.partial;
+			if (other.ranked == null) {
+				if (other.best != null) {
+					offer(other.best);
+				}
+			} else {
+				for (AnalysisResult loop : other.ranked) {
+					offer(loop);
+				}
+			}
+		}
+
+		int getMaxTradesPerLoop() {
+			return maxTradesPerLoop;
+		}
+
+		// Candidates that passed the screen and had their exact ratio checked
+		long getLoopsVerified() {
+			return loopsVerified;
+		}
+
+		// Candidates that passed the screen but were not profitable
+		long getFalsePositiveLoops() {
+			return falsePositiveLoops;
+		}
+
+		// Null if no profitable loop was offered
+		AnalysisResult getResult() {
+			if (ranked == null) {
+				if (best == null || !partial) {
+					return best;
+				}
+				return new AnalysisResult(Collections.singletonList(best), true);
+			}
+			return ranked.isEmpty() ? null : new AnalysisResult(new ArrayList<AnalysisResult>(ranked), partial);
+		}
+
+		// A ratio of 0 with no trades if no profitable loop was offered
+		AnalysisResult getResultOrNone() {
+			final AnalysisResult result = getResult();
+			return result == null ? new AnalysisResult(new Fraction(0), null, partial) : result;
+		}
+	}
+
+	// Candidate loops must look better than 1 + screeningSlack with double
+	// weights before their exact ratio is computed. A negative slack also
+	// verifies loops that look slightly unprofitable, in case rounding
+	// understates them.
+	public void setScreeningSlack(double screeningSlack) {
+		if (!(screeningSlack > -1)) {
+			throw new IllegalArgumentException("Screening slack must be greater than -1");
+		}
+		this.screeningSlack = screeningSlack;
+	}
+
+	// Time each analysis may take before it stops and reports the best loops
+	// found so far as a partial result. 0 for no limit. Each search cut
+	// short doubles the time the next one gets, until one completes.
+	public void setAnalysisDeadlineMillis(long analysisDeadlineMillis) {
+		if (analysisDeadlineMillis < 0) {
+			throw new IllegalArgumentException("Analysis deadline cannot be negative");
+		}
+		this.analysisDeadlineMillis = analysisDeadlineMillis;
+	}
+
+	void setNanoClock(LongSupplier nanoClock) {
+		this.nanoClock = nanoClock;
+	}
+
+	// Searches only the best edge for each pair of currencies, see
+	// IndexedOrderGraph.getBestEdgeView. On by default. Turning it off
+	// searches every order, which only matters to the brute force search,
+	// as it can use parallel edges as separate trades.
+	public void setBestEdgesOnly(boolean bestEdgesOnly) {
+		this.bestEdgesOnly = bestEdgesOnly;
+	}
+
+	// Checks the triangle index before each search. If it has a profitable
+	// triangle, that is reported straight away as a partial result and the
+	// full search runs on the next pass.
+	public void setTriangleFastPath(boolean triangleFastPath) {
+		this.triangleFastPath = triangleFastPath;
+	}
+
+	// Number of distinct loops to rank in each AnalysisResult. Not supported
+	// by the brute force search, which only reports its best loop.
+	public void setMaxRankedLoops(int maxRankedLoops) {
+		if (maxRankedLoops <= 0) {
+			throw new IllegalArgumentException("Must rank at least one loop");
+		}
+		this.maxRankedLoops = maxRankedLoops;
+	}
+
+	private CycleSearchEngine getBuiltInEngine(SearchAlgorithm searchAlgorithm) {
+		switch (searchAlgorithm) {
+		case BRUTE_FORCE:
+			return this::searchBruteForce;
+		case SPFA:
+			return this::searchSpfa;
+		case INCREMENTAL_BELLMAN_FORD:
+			return this::searchIncremental;
+		case PARALLEL_SPFA:
+			return this::searchParallel;
+		case DEPTH_BOUNDED_DP:
+			return this::searchDepthBounded;
+		case KARP_MIN_MEAN_CYCLE:
+			return new KarpCycleSearch();
+		case HOWARD_POLICY_ITERATION:
+			return new HowardCycleSearch();
+		case TRIANGLES:
+			return this::searchTriangles;
+		case BELLMAN_FORD:
+		default:
+			return this::searchBellmanFord;
+		}
+	}
+
+	private LoopCollector newLoopCollector() {
+		final LoopCollector loops = new LoopCollector(maxRankedLoops, maxTrades, screeningSlack);
+		final long deadlineMillis = analysisDeadlineMillis;
+		if (deadlineMillis > 0) {
+			final LongSupplier clock = nanoClock;
+			loops.setDeadlineNanos(clock.getAsLong() + TimeUnit.MILLISECONDS.toNanos(deadlineMillis * deadlineScale),
+					clock);
+		}
+		return loops;
+	}
+
+	private AnalysisResult searchTriangles(IndexedOrderGraph graph, Currency root, LoopCollector loops) {
+		triangleIndex.update(graph, loops);
+		return loops.getResultOrNone();
+	}
+
+	protected AnalysisResult runSearch() {
+		final IndexedOrderGraph graph = bestEdgesOnly ? sharedOrderGraph.getBestEdgeSnapshot()
+				: sharedOrderGraph.getIndexedSnapshot();
+		LoopCollector loops = newLoopCollector();
+		AnalysisResult analysisResult = null;
+		if (triangleFastPath && !fullSearchPending) {
+			// Report profitable triangles without waiting for the full search,
+			// which then runs on the next pass
+			triangleIndex.update(graph, loops);
+			if (loops.getResult() != null) {
+				loops.markPartial();
+				analysisResult = loops.getResult();
+				fullSearchPending = true;
+			} else {
+				loopsVerified.addAndGet(loops.getLoopsVerified());
+				falsePositiveLoops.addAndGet(loops.getFalsePositiveLoops());
+				loops = newLoopCollector();
+			}
+		}
 		if (analysisResult == null) {
-			analysisResult = new AnalysisResult(new Fraction(0), null);
+			analysisResult = searchEngine.search(graph, currencyToAccumulate, loops);
+			fullSearchPending = false;
+			// A partial search keeps no state for the next one, so a graph
+			// too big to search within the deadline would start over
+			// forever. Giving each retry twice as long lets one complete.
+			deadlineScale = loops.isPartial() ? Math.min(deadlineScale * 2, maxDeadlineScale) : 1;
+		}
+		loopsVerified.addAndGet(loops.getLoopsVerified());
+		falsePositiveLoops.addAndGet(loops.getFalsePositiveLoops());
+		if (analysisResult.partial) {
+			partialAnalyses.incrementAndGet();
 		}
 		return analysisResult;
 	}
 
 	public void onOrderGraphChanged() {
-		semaphore.release();
+		analysisTrigger.trigger();
 	}
 
 	public void startAnalyzingOrderBook() {
@@ -322,8 +1389,16 @@ public class OrderBookAnalyzer implements OrderGraphChangeHandler {
 					shouldExit.setFalse();
 					while (!shouldExit.booleanValue()) {
 						try {
-							semaphore.acquire();
-							analysisHandler.onOrderBookAnalysisComplete(searchForArbitrageBellmanFord());
+							if (!analysisTrigger.awaitRun()) {
+								break;
+							}
+							final AnalysisResult analysisResult = runSearch();
+							analysisHandler.onOrderBookAnalysisComplete(analysisResult);
+							if (analysisResult.partial) {
+								// Search again from the newest graph even if
+								// it has not changed since
+								analysisTrigger.trigger();
+							}
 						} catch (InterruptedException e) {
 							shouldExit.setTrue();
 							;
@@ -338,8 +1413,42 @@ public class OrderBookAnalyzer implements OrderGraphChangeHandler {
 	public void stopAnalyzingOrderBook() throws InterruptedException {
 		if (analyzerThread != null) {
 			shouldExit.setTrue();
-			semaphore.release();
+			analysisTrigger.close();
 			analyzerThread.join();
 		}
+		synchronized (this) {
+			if (searchPool != null) {
+				searchPool.shutdown();
+				searchPool = null;
+			}
+		}
+	}
+
+	// Number of graph changes signalled so far
+	public long getTriggersReceived() {
+		return analysisTrigger.getTriggersReceived();
+	}
+
+	// Number of analyses started so far. The difference from
+	// getTriggersReceived is the number of analyses saved by coalescing.
+	public long getAnalysesRun() {
+		return analysisTrigger.getRunsStarted();
+	}
+
+	// Analyses that hit the deadline and reported a partial result
+	public long getPartialAnalyses() {
+		return partialAnalyses.get();
+	}
+
+	// Candidate loops whose exact ratio has been computed so far
+	public long getLoopsVerified() {
+		return loopsVerified.get();
+	}
+
+	// Candidate loops that looked profitable with double weights but were
+	// not when computed exactly. A high share of getLoopsVerified means the
+	// screening slack is too low.
+	public long getFalsePositiveLoops() {
+		return falsePositiveLoops.get();
 	}
 }
@@ -1,9 +1,16 @@
 package BenTrapani.CryptoArbitrage;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
-import java.util.Hashtable;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.knowm.xchange.currency.Currency;
 
@@ -53,6 +60,11 @@ public class OrderGraph implements Cloneable {
 		public final Fraction price;
 		// Ratio is the amount of dest per unit source
 		public final Fraction ratio;
+		// -log(ratio), so that a profitable loop is a negative weight cycle.
+		// Computed once here because it is lossy and only used to find
+		// candidate loops, which are then checked with the exact ratio.
+		public final double negativeLogRatio;
+		private final int hash;
 
 		// Quantity is specified in amount of base.
 		// Price is specified in amount of counter per unit base.
@@ -91,6 +103,8 @@ public class OrderGraph implements Cloneable {
 			// dest by fee and get the same ratio,
 			// that is computed using formula 1.
 			this.ratio = unadjustedRatio.subtract(unadjustedRatio.multiply(feeFraction));
+			this.negativeLogRatio = -this.ratio.logLossyAsDouble();
+			this.hash = computeHashCode();
 		}
 
 		@Override
@@ -106,6 +120,10 @@ public class OrderGraph implements Cloneable {
 
 		@Override
 		public int hashCode() {
+			return hash;
+		}
+
+		private int computeHashCode() {
 			final int exchangeHashCode = exchangeName.hashCode();
 			final int currencyHashCode = destCurrency.hashCode();
 			final int quantityHashCode = quantity.hashCode();
@@ -146,71 +164,414 @@ public class OrderGraph implements Cloneable {
 		}
 	}
 
-	// Coarse locking on graphSet is used to avoid data races when updating
-	// graph
-	private Hashtable<Currency, HashSet<GraphEdge>> graphSet;
+	// Returned by addEdge and used to remove the same edge later without
+	// rebuilding its GraphEdge. Equal edges share one edge in the graph, which
+	// stays until every handle to it has been removed.
+	public static class EdgeHandle {
+		private final int sourceId;
+		// Guarded by the lock stripe for sourceId. A batch sets the edge again
+		// if an equal one is already in the graph.
+		private TwoSidedGraphEdge edge;
+		private boolean removed = false;
+
+		private EdgeHandle(int sourceId, TwoSidedGraphEdge edge) {
+			this.sourceId = sourceId;
+			this.edge = edge;
+		}
+
+		public TwoSidedGraphEdge getEdge() {
+			return edge;
+		}
+	}
+
+	// Each update publishes a new immutable version of the graph. Readers take
+	// the current version without locking.
+	// Writers lock a stripe picked by the source currency id of the edge, so
+	// the bucket for that currency is only ever rebuilt by one writer at a
+	// time. The new bucket is built once under the stripe lock, then swapped
+	// into the latest version with a compare and set. Updates to unrelated
+	// currencies build their buckets in parallel and only retry the cheap
+	// swap if they race.
+	private static final int numLockStripes = 64;
+	private final AtomicReference<IndexedOrderGraph> currentGraph;
+	private final Object[] lockStripes = new Object[numLockStripes];
+	// Number of handles beyond the first for edges added more than once,
+	// indexed like lockStripes and guarded by the same stripe. Not part of the
+	// published versions, so readers never see them.
+	private final ArrayList<IdentityHashMap<TwoSidedGraphEdge, Integer>> extraHandles =
+			new ArrayList<IdentityHashMap<TwoSidedGraphEdge, Integer>>(numLockStripes);
+
+	// Ids are assigned here rather than per version so that they are stable
+	// while writers race to publish. Registries only grow, and are always
+	// updated before a version that uses the new ids is published.
+	private final Object registryLock = new Object();
+	private volatile IndexedOrderGraph.IdRegistry<Currency> currencyIds;
+	private volatile IndexedOrderGraph.IdRegistry<String> exchangeIds;
 
 	public OrderGraph() {
-		graphSet = new Hashtable<Currency, HashSet<GraphEdge>>();
+		this(new IndexedOrderGraph());
 	}
 
-	public OrderGraph(Hashtable<Currency, HashSet<GraphEdge>> graphSet) {
-		if (graphSet == null) {
-			throw new IllegalArgumentException("initial graph set cannot be null in copy constructor for OrderGraph");
+	private OrderGraph(IndexedOrderGraph snapshot) {
+		currentGraph = new AtomicReference<IndexedOrderGraph>(snapshot);
+		currencyIds = snapshot.getCurrencyRegistry();
+		exchangeIds = snapshot.getExchangeRegistry();
+		for (int i = 0; i < numLockStripes; i++) {
+			lockStripes[i] = new Object();
+			extraHandles.add(new IdentityHashMap<TwoSidedGraphEdge, Integer>());
 		}
-		this.graphSet = graphSet;
+	}
+
+	private int getOrAssignCurrencyId(Currency currency) {
+		final int id = currencyIds.idOf(currency);
+		if (id >= 0) {
+			return id;
+		}
+		synchronized (registryLock) {
+			currencyIds = currencyIds.with(currency);
+			return currencyIds.idOf(currency);
+		}
+	}
+
+	private int getOrAssignExchangeId(String exchangeName) {
+		final int id = exchangeIds.idOf(exchangeName);
+		if (id >= 0) {
+			return id;
+		}
+		synchronized (registryLock) {
+			exchangeIds = exchangeIds.with(exchangeName);
+			return exchangeIds.idOf(exchangeName);
+		}
+	}
+
+	private Object getLockStripe(int sourceId) {
+		return lockStripes[sourceId % numLockStripes];
+	}
+
+	// Caller must hold the lock stripe for sourceId
+	private int getHandleCount(int sourceId, TwoSidedGraphEdge edge) {
+		final Integer extra = extraHandles.get(sourceId % numLockStripes).get(edge);
+		return extra == null ? 1 : extra + 1;
+	}
+
+	// Caller must hold the lock stripe for sourceId. A count of 0 or 1 needs
+	// no entry.
+	private void setHandleCount(int sourceId, TwoSidedGraphEdge edge, int handleCount) {
+		if (handleCount <= 1) {
+			extraHandles.get(sourceId % numLockStripes).remove(edge);
+		} else {
+			extraHandles.get(sourceId % numLockStripes).put(edge, handleCount - 1);
+		}
+	}
+
+	// Caller must hold the lock stripe for sourceId
+	private void publishBucket(int sourceId, IndexedOrderGraph.EdgeBucket newBucket) {
+		IndexedOrderGraph prevGraph;
+		IndexedOrderGraph nextGraph;
+		do {
+			prevGraph = currentGraph.get();
+			// Read the registries after the graph, so they are at least as
+			// new as the ones prevGraph was published with
+			nextGraph = prevGraph.withBucket(currencyIds, exchangeIds, sourceId, newBucket);
+		} while (!currentGraph.compareAndSet(prevGraph, nextGraph));
+	}
+
+	// Caller must hold the lock stripes for all sourceIds
+	private void publishBuckets(int[] sourceIds, IndexedOrderGraph.EdgeBucket[] newBuckets) {
+		IndexedOrderGraph prevGraph;
+		IndexedOrderGraph nextGraph;
+		do {
+			prevGraph = currentGraph.get();
+			nextGraph = prevGraph.withBuckets(currencyIds, exchangeIds, sourceIds, newBuckets);
+		} while (!currentGraph.compareAndSet(prevGraph, nextGraph));
 	}
 
 	// Call this after clearing all edges for an exchange that received an
 	// update. Add edges for all orders.
-	public void addEdge(Currency counter, Currency base, String exchangeName, boolean isBuyOrder, Fraction quantity,
-			Fraction price, Fraction feeFraction) {
+	// If an equal edge is already in the graph, returns another handle for
+	// that edge instead.
+	public EdgeHandle addEdge(Currency counter, Currency base, String exchangeName, boolean isBuyOrder,
+			Fraction quantity, Fraction price, Fraction feeFraction) {
 
 		DirectedCurrencyPair currencyPair = new DirectedCurrencyPair(counter, base, isBuyOrder);
 		GraphEdge newEdge = new GraphEdge(exchangeName, currencyPair.dest, isBuyOrder, quantity, price, feeFraction);
+		final int sourceId = getOrAssignCurrencyId(currencyPair.source);
+		final int destId = getOrAssignCurrencyId(currencyPair.dest);
+		final int exchangeId = getOrAssignExchangeId(exchangeName);
+
+		synchronized (getLockStripe(sourceId)) {
+			IndexedOrderGraph.EdgeBucket bucket = currentGraph.get().getBucket(sourceId);
+			if (bucket == null) {
+				bucket = IndexedOrderGraph.EdgeBucket.empty;
+			} else {
+				final int existingIndex = bucket.indexOf(newEdge);
+				if (existingIndex >= 0) {
+					final TwoSidedGraphEdge existingEdge = bucket.edges[existingIndex];
+					setHandleCount(sourceId, existingEdge, getHandleCount(sourceId, existingEdge) + 1);
+					return new EdgeHandle(sourceId, existingEdge);
+				}
+			}
+			final TwoSidedGraphEdge twoSidedEdge = new TwoSidedGraphEdge(currencyPair.source, newEdge);
+			publishBucket(sourceId, bucket.withEdge(twoSidedEdge, destId, exchangeId));
+			return new EdgeHandle(sourceId, twoSidedEdge);
+		}
+	}
 
-		synchronized (graphSet) {
-			if (!graphSet.containsKey(currencyPair.source)) {
-				graphSet.put(currencyPair.source, new HashSet<GraphEdge>());
+	// Removes the handle, and the edge once no other handle to it is left.
+	// Returns false if the handle or the edge has already been removed.
+	public boolean removeEdge(EdgeHandle handle) {
+		synchronized (getLockStripe(handle.sourceId)) {
+			final IndexedOrderGraph.EdgeBucket bucket = currentGraph.get().getBucket(handle.sourceId);
+			final int edgeIndex = bucket == null ? -1 : bucket.indexOfSame(handle.edge);
+			if (handle.removed || edgeIndex < 0) {
+				return false;
 			}
-			HashSet<GraphEdge> edgesHere = graphSet.get(currencyPair.source);
-			edgesHere.add(newEdge);
+			handle.removed = true;
+			final int handleCount = getHandleCount(handle.sourceId, handle.edge);
+			setHandleCount(handle.sourceId, handle.edge, handleCount - 1);
+			if (handleCount == 1) {
+				publishBucket(handle.sourceId, bucket.withoutEdge(edgeIndex));
+			}
+			return true;
 		}
 	}
 
+	// Removes the equal edge however many handles it has
 	public boolean removeEdge(Currency counter, Currency base, String exchangeName, boolean isBuy, Fraction quantity,
 			Fraction price, Fraction feeFraction) {
 		DirectedCurrencyPair mutablePair = new DirectedCurrencyPair(counter, base, isBuy);
-		synchronized (graphSet) {
-			if (graphSet.containsKey(mutablePair.source)) {
-				HashSet<GraphEdge> edgesHere = graphSet.get(mutablePair.source);
-				GraphEdge edgeToRemove = new GraphEdge(exchangeName, mutablePair.dest, isBuy, quantity, price,
-						feeFraction);
-				return edgesHere.remove(edgeToRemove);
+		GraphEdge edgeToRemove = new GraphEdge(exchangeName, mutablePair.dest, isBuy, quantity, price, feeFraction);
+		final int sourceId = currencyIds.idOf(mutablePair.source);
+		if (sourceId < 0) {
+			return false;
+		}
+		synchronized (getLockStripe(sourceId)) {
+			final IndexedOrderGraph.EdgeBucket bucket = currentGraph.get().getBucket(sourceId);
+			final int edgeIndex = bucket == null ? -1 : bucket.indexOf(edgeToRemove);
+			if (edgeIndex < 0) {
+				return false;
 			}
+			setHandleCount(sourceId, bucket.edges[edgeIndex], 0);
+			publishBucket(sourceId, bucket.withoutEdge(edgeIndex));
+			return true;
 		}
-		return false;
 	}
 
-	public List<Currency> getVertices() {
-		synchronized (graphSet) {
-			return (List<Currency>) Collections.list(graphSet.keys());
+	private static class BatchAddition {
+		private final IndexedOrderGraph.PendingEdge pendingEdge;
+		private final EdgeHandle handle;
+
+		private BatchAddition(IndexedOrderGraph.PendingEdge pendingEdge, EdgeHandle handle) {
+			this.pendingEdge = pendingEdge;
+			this.handle = handle;
 		}
 	}
 
-	public HashSet<TwoSidedGraphEdge> getEdges(Currency source) {
-		synchronized (graphSet) {
-			HashSet<GraphEdge> edgesForCurrency = graphSet.get(source);
-			if (edgesForCurrency == null || edgesForCurrency.size() == 0) {
-				return null;
+	// Collects removals and additions and applies them as one update. The
+	// stripes of all touched currencies are locked once and the result is
+	// published as a single version, so readers see all of the batch or none
+	// of it. Removals are applied before additions.
+	public class Batch {
+		private final TreeMap<Integer, ArrayList<EdgeHandle>> removalsBySource =
+				new TreeMap<Integer, ArrayList<EdgeHandle>>();
+		private final TreeMap<Integer, ArrayList<BatchAddition>> additionsBySource =
+				new TreeMap<Integer, ArrayList<BatchAddition>>();
+		private boolean applied = false;
+
+		private Batch() {
+		}
+
+		public void removeEdge(EdgeHandle handle) {
+			ArrayList<EdgeHandle> removals = removalsBySource.get(handle.sourceId);
+			if (removals == null) {
+				removals = new ArrayList<EdgeHandle>();
+				removalsBySource.put(handle.sourceId, removals);
 			}
+			removals.add(handle);
+		}
 
-			HashSet<TwoSidedGraphEdge> result = new HashSet<TwoSidedGraphEdge>();
-			for (GraphEdge graphEdge : edgesForCurrency) {
-				result.add(new TwoSidedGraphEdge(source, graphEdge));
+		// The handle is valid once the batch is applied. If an equal edge is
+		// already in the graph or earlier in the batch, the handle is another
+		// handle for that edge, as with OrderGraph.addEdge.
+		public EdgeHandle addEdge(Currency counter, Currency base, String exchangeName, boolean isBuyOrder,
+				Fraction quantity, Fraction price, Fraction feeFraction) {
+			DirectedCurrencyPair currencyPair = new DirectedCurrencyPair(counter, base, isBuyOrder);
+			GraphEdge newEdge = new GraphEdge(exchangeName, currencyPair.dest, isBuyOrder, quantity, price,
+					feeFraction);
+			final int sourceId = getOrAssignCurrencyId(currencyPair.source);
+			final TwoSidedGraphEdge twoSidedEdge = new TwoSidedGraphEdge(currencyPair.source, newEdge);
+			ArrayList<BatchAddition> additions = additionsBySource.get(sourceId);
+			if (additions == null) {
+				additions = new ArrayList<BatchAddition>();
+				additionsBySource.put(sourceId, additions);
 			}
-			return result;
+			final EdgeHandle handle = new EdgeHandle(sourceId, twoSidedEdge);
+			additions.add(new BatchAddition(new IndexedOrderGraph.PendingEdge(twoSidedEdge,
+					getOrAssignCurrencyId(currencyPair.dest), getOrAssignExchangeId(exchangeName)), handle));
+			return handle;
 		}
+
+		// Returns false and leaves the graph and handles unchanged if any
+		// removed handle has already been removed or its edge is not in the
+		// graph.
+		public boolean apply() {
+			if (applied) {
+				throw new IllegalStateException("Batch has already been applied");
+			}
+			applied = true;
+
+			TreeSet<Integer> sourceIds = new TreeSet<Integer>(removalsBySource.keySet());
+			sourceIds.addAll(additionsBySource.keySet());
+			TreeSet<Integer> stripes = new TreeSet<Integer>();
+			for (Integer sourceId : sourceIds) {
+				stripes.add(sourceId % numLockStripes);
+			}
+			int[] sortedStripes = new int[stripes.size()];
+			int i = 0;
+			for (Integer stripe : stripes) {
+				sortedStripes[i++] = stripe;
+			}
+			return lockStripesAndApply(sortedStripes, 0, sourceIds);
+		}
+
+		// Stripes are locked in ascending order so that concurrent batches
+		// cannot deadlock.
+		private boolean lockStripesAndApply(int[] sortedStripes, int next, TreeSet<Integer> sourceIds) {
+			if (next == sortedStripes.length) {
+				return applyLocked(sourceIds);
+			}
+			synchronized (lockStripes[sortedStripes[next]]) {
+				return lockStripesAndApply(sortedStripes, next + 1, sourceIds);
+			}
+		}
+
+		// Works out every change before making any, so a failed batch leaves
+		// the handle counts and handles as they were
+		private boolean applyLocked(TreeSet<Integer> sourceIds) {
+			final IndexedOrderGraph graph = currentGraph.get();
+			final int[] changedSourceIds = new int[sourceIds.size()];
+			final IndexedOrderGraph.EdgeBucket[] newBuckets = new IndexedOrderGraph.EdgeBucket[sourceIds.size()];
+			int numChanged = 0;
+			// Handle count of every touched edge once the batch is applied
+			final TreeMap<Integer, IdentityHashMap<TwoSidedGraphEdge, Integer>> handleCountsBySource =
+					new TreeMap<Integer, IdentityHashMap<TwoSidedGraphEdge, Integer>>();
+			final Set<EdgeHandle> removedHandles =
+					Collections.newSetFromMap(new IdentityHashMap<EdgeHandle, Boolean>());
+			// Edge each added handle ends up with
+			final IdentityHashMap<EdgeHandle, TwoSidedGraphEdge> resolvedEdges =
+					new IdentityHashMap<EdgeHandle, TwoSidedGraphEdge>();
+			for (Integer sourceId : sourceIds) {
+				IndexedOrderGraph.EdgeBucket bucket = graph.getBucket(sourceId);
+				if (bucket == null) {
+					bucket = IndexedOrderGraph.EdgeBucket.empty;
+				}
+				final IdentityHashMap<TwoSidedGraphEdge, Integer> handleCounts =
+						new IdentityHashMap<TwoSidedGraphEdge, Integer>();
+				handleCountsBySource.put(sourceId, handleCounts);
+
+				final List<TwoSidedGraphEdge> edgesToRemove = new ArrayList<TwoSidedGraphEdge>();
+				final List<EdgeHandle> removals = removalsBySource.get(sourceId);
+				if (removals != null) {
+					for (EdgeHandle handle : removals) {
+						if (handle.removed || !removedHandles.add(handle)) {
+							return false;
+						}
+						Integer handleCount = handleCounts.get(handle.edge);
+						if (handleCount == null) {
+							if (bucket.indexOfSame(handle.edge) < 0) {
+								return false;
+							}
+							handleCount = getHandleCount(sourceId, handle.edge);
+						}
+						handleCounts.put(handle.edge, handleCount - 1);
+						if (handleCount == 1) {
+							edgesToRemove.add(handle.edge);
+						}
+					}
+				}
+
+				final List<IndexedOrderGraph.PendingEdge> edgesToAdd = new ArrayList<IndexedOrderGraph.PendingEdge>();
+				final List<BatchAddition> additions = additionsBySource.get(sourceId);
+				if (additions != null) {
+					for (BatchAddition addition : additions) {
+						final TwoSidedGraphEdge newEdge = addition.pendingEdge.edge;
+						TwoSidedGraphEdge equalEdge = null;
+						final int existingIndex = bucket.indexOf(newEdge.graphEdge);
+						if (existingIndex >= 0) {
+							final TwoSidedGraphEdge existingEdge = bucket.edges[existingIndex];
+							final Integer handleCount = handleCounts.get(existingEdge);
+							if (handleCount == null || handleCount > 0) {
+								equalEdge = existingEdge;
+							}
+						}
+						for (int i = 0; equalEdge == null && i < edgesToAdd.size(); i++) {
+							if (edgesToAdd.get(i).edge.graphEdge.equals(newEdge.graphEdge)) {
+								equalEdge = edgesToAdd.get(i).edge;
+							}
+						}
+						if (equalEdge == null) {
+							edgesToAdd.add(addition.pendingEdge);
+							handleCounts.put(newEdge, 1);
+							resolvedEdges.put(addition.handle, newEdge);
+						} else {
+							final Integer handleCount = handleCounts.get(equalEdge);
+							handleCounts.put(equalEdge,
+									(handleCount == null ? getHandleCount(sourceId, equalEdge) : handleCount) + 1);
+							resolvedEdges.put(addition.handle, equalEdge);
+						}
+					}
+				}
+
+				final IndexedOrderGraph.EdgeBucket newBucket = bucket.withEdits(edgesToRemove, edgesToAdd);
+				if (newBucket == null) {
+					return false;
+				}
+				if (newBucket != bucket) {
+					changedSourceIds[numChanged] = sourceId;
+					newBuckets[numChanged] = newBucket;
+					numChanged++;
+				}
+			}
+			if (numChanged > 0) {
+				publishBuckets(Arrays.copyOf(changedSourceIds, numChanged), Arrays.copyOf(newBuckets, numChanged));
+			}
+			for (Map.Entry<Integer, IdentityHashMap<TwoSidedGraphEdge, Integer>> sourceCounts : handleCountsBySource
+					.entrySet()) {
+				for (Map.Entry<TwoSidedGraphEdge, Integer> handleCount : sourceCounts.getValue().entrySet()) {
+					setHandleCount(sourceCounts.getKey(), handleCount.getKey(), handleCount.getValue());
+				}
+			}
+			for (EdgeHandle handle : removedHandles) {
+				handle.removed = true;
+			}
+			for (Map.Entry<EdgeHandle, TwoSidedGraphEdge> resolvedEdge : resolvedEdges.entrySet()) {
+				resolvedEdge.getKey().edge = resolvedEdge.getValue();
+			}
+			return true;
+		}
+	}
+
+	public Batch newBatch() {
+		return new Batch();
+	}
+
+	public List<Currency> getVertices() {
+		return currentGraph.get().getSourceVertices();
+	}
+
+	public HashSet<TwoSidedGraphEdge> getEdges(Currency source) {
+		final IndexedOrderGraph graph = currentGraph.get();
+		final int sourceId = graph.getCurrencyId(source);
+		if (sourceId < 0 || graph.getEdgeCount(sourceId) == 0) {
+			return null;
+		}
+
+		final int edgeCount = graph.getEdgeCount(sourceId);
+		HashSet<TwoSidedGraphEdge> result = new HashSet<TwoSidedGraphEdge>(edgeCount * 2);
+		for (int i = 0; i < edgeCount; i++) {
+			result.add(graph.getEdge(sourceId, i));
+		}
+		return result;
 	}
 
 	public HashSet<TwoSidedGraphEdge> getEdgesWithNonzeroQuantity(Currency source) {
@@ -225,15 +586,27 @@ public class OrderGraph implements Cloneable {
 		return unfilteredEdgesFromSource;
 	}
 
-	@SuppressWarnings("unchecked")
+	// Current version of the graph. O(1) and never blocks writers.
+	public IndexedOrderGraph getIndexedSnapshot() {
+		return currentGraph.get();
+	}
+
+	// Current version with only the best edge for each pair of currencies,
+	// see IndexedOrderGraph.getBestEdgeView
+	public IndexedOrderGraph getBestEdgeSnapshot() {
+		return currentGraph.get().getBestEdgeView();
+	}
+
+	// Returns a graph frozen at the current version. Writes to either graph
+	// are not seen by the other.
 	@Override
 	public Object clone() {
-		Hashtable<Currency, HashSet<GraphEdge>> graphSetDup = new Hashtable<Currency, HashSet<GraphEdge>>();
-		synchronized (graphSet) {
-			for (Currency k : graphSet.keySet()) {
-				graphSetDup.put(k, (HashSet<GraphEdge>) graphSet.get(k).clone());
+		final OrderGraph result = new OrderGraph(currentGraph.get());
+		for (int i = 0; i < numLockStripes; i++) {
+			synchronized (lockStripes[i]) {
+				result.extraHandles.get(i).putAll(extraHandles.get(i));
 			}
 		}
-		return new OrderGraph(graphSetDup);
+		return result;
 	}
 }
@@ -0,0 +1,158 @@
+package BenTrapani.CryptoArbitrage;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import org.knowm.xchange.currency.CurrencyPair;
+
+import BenTrapani.CryptoArbitrage.OrderBookAnalyzer.AnalysisResult;
+import BenTrapani.CryptoArbitrage.OrderGraph.TwoSidedGraphEdge;
+
+/***
+ *
+ * Finds the simplest arbitrage without a graph search: buying a currency pair
+ * on one exchange and selling it on another. Keeps the best bid and best ask
+ * of every exchange for each currency pair, and reports a two trade loop as
+ * soon as the best bid on any exchange pays more than the best ask on any
+ * exchange costs, after both fees.
+ *
+ * Runs on the order book threads, or on the ingest writer thread when order
+ * books go through an IngestPipeline. Each order book registers once and gets
+ * a handle holding its slot in the table for its pair, so an update only looks
+ * at the exchanges quoting the same pair.
+ *
+ * Crossed markets are reported from those threads, while the analyzer thread
+ * reports its own results, so the analysis handler can be called from several
+ * threads at once and must be thread safe. ArbitrageExecutor handles one
+ * result at a time.
+ *
+ */
+public class SpreadDetector {
+
+	private static class PairQuotes {
+		private int numExchanges = 0;
+		// Indexed by exchange slot. Null if the exchange has no quote with
+		// quantity left on that side.
+		private TwoSidedGraphEdge[] bids = new TwoSidedGraphEdge[2];
+		private TwoSidedGraphEdge[] asks = new TwoSidedGraphEdge[2];
+		private double[] bidWeights = new double[2];
+		private double[] askWeights = new double[2];
+		// Last loop reported, so an unchanged crossed market is reported once
+		private TwoSidedGraphEdge lastReportedBid;
+		private TwoSidedGraphEdge lastReportedAsk;
+
+		private int addExchange() {
+			if (numExchanges == bids.length) {
+				final int newLength = bids.length * 2;
+				bids = Arrays.copyOf(bids, newLength);
+				asks = Arrays.copyOf(asks, newLength);
+				bidWeights = Arrays.copyOf(bidWeights, newLength);
+				askWeights = Arrays.copyOf(askWeights, newLength);
+			}
+			bidWeights[numExchanges] = Double.POSITIVE_INFINITY;
+			askWeights[numExchanges] = Double.POSITIVE_INFINITY;
+			return numExchanges++;
+		}
+	}
+
+	// Returned by register and passed to every update for the same order
+	// book.
+	public static class QuoteHandle {
+		private final PairQuotes pairQuotes;
+		private final int exchangeSlot;
+
+		private QuoteHandle(PairQuotes pairQuotes, int exchangeSlot) {
+			this.pairQuotes = pairQuotes;
+			this.exchangeSlot = exchangeSlot;
+		}
+	}
+
+	private final OrderGraphAnalysisHandler analysisHandler;
+	private final HashMap<CurrencyPair, PairQuotes> quotesByPair = new HashMap<CurrencyPair, PairQuotes>();
+	private static final Fraction minRatio = new Fraction(1);
+	private static final Fraction zero = new Fraction(0);
+	private long crossedMarketsReported = 0;
+
+	public SpreadDetector(OrderGraphAnalysisHandler analysisHandler) {
+		this.analysisHandler = analysisHandler;
+	}
+
+	public QuoteHandle register(CurrencyPair currencyPair) {
+		synchronized (quotesByPair) {
+			PairQuotes pairQuotes = quotesByPair.get(currencyPair);
+			if (pairQuotes == null) {
+				pairQuotes = new PairQuotes();
+				quotesByPair.put(currencyPair, pairQuotes);
+			}
+			synchronized (pairQuotes) {
+				return new QuoteHandle(pairQuotes, pairQuotes.addExchange());
+			}
+		}
+	}
+
+	// Takes the edges of the best bid and best ask on the handle's exchange,
+	// null for an empty side. Reports the pair's crossed market to the
+	// analysis handler if there is a new one.
+	public void update(QuoteHandle handle, TwoSidedGraphEdge bestBid, TwoSidedGraphEdge bestAsk) {
+		final PairQuotes quotes = handle.pairQuotes;
+		final int slot = handle.exchangeSlot;
+		AnalysisResult crossedMarket = null;
+		synchronized (quotes) {
+			bestBid = hasQuantity(bestBid) ? bestBid : null;
+			bestAsk = hasQuantity(bestAsk) ? bestAsk : null;
+			quotes.bids[slot] = bestBid;
+			quotes.asks[slot] = bestAsk;
+			quotes.bidWeights[slot] = bestBid == null ? Double.POSITIVE_INFINITY : bestBid.graphEdge.negativeLogRatio;
+			quotes.askWeights[slot] = bestAsk == null ? Double.POSITIVE_INFINITY : bestAsk.graphEdge.negativeLogRatio;
+
+			int bestBidSlot = 0;
+			int bestAskSlot = 0;
+			for (int i = 1; i < quotes.numExchanges; i++) {
+				if (quotes.bidWeights[i] < quotes.bidWeights[bestBidSlot]) {
+					bestBidSlot = i;
+				}
+				if (quotes.askWeights[i] < quotes.askWeights[bestAskSlot]) {
+					bestAskSlot = i;
+				}
+			}
+			final TwoSidedGraphEdge bid = quotes.bids[bestBidSlot];
+			final TwoSidedGraphEdge ask = quotes.asks[bestAskSlot];
+			if (bid != null && ask != null && bid.equals(quotes.lastReportedBid)
+					&& ask.equals(quotes.lastReportedAsk)) {
+				return;
+			}
+			quotes.lastReportedBid = null;
+			quotes.lastReportedAsk = null;
+			// Double weights only pick the quotes, the exact ratio decides. A
+			// loop just above 1 can round to a weight just above 0, so allow
+			// for that as the analyzer's screen does.
+			if (bid == null || ask == null || quotes.bidWeights[bestBidSlot]
+					+ quotes.askWeights[bestAskSlot] > OrderBookAnalyzer.LoopCollector.roundingTolerance) {
+				return;
+			}
+			final Fraction ratio = bid.graphEdge.ratio.multiply(ask.graphEdge.ratio);
+			if (ratio.compareTo(minRatio) <= 0) {
+				return;
+			}
+			quotes.lastReportedBid = bid;
+			quotes.lastReportedAsk = ask;
+			HashSet<TwoSidedGraphEdge> tradesToExecute = new HashSet<TwoSidedGraphEdge>();
+			tradesToExecute.add(bid);
+			tradesToExecute.add(ask);
+			crossedMarket = new AnalysisResult(ratio, tradesToExecute);
+		}
+		synchronized (this) {
+			crossedMarketsReported++;
+		}
+		analysisHandler.onOrderBookAnalysisComplete(crossedMarket);
+	}
+
+	private static boolean hasQuantity(TwoSidedGraphEdge edge) {
+		return edge != null && edge.graphEdge.quantity.compareTo(zero) > 0;
+	}
+
+	public synchronized long getCrossedMarketsReported() {
+		return crossedMarketsReported;
+	}
+}
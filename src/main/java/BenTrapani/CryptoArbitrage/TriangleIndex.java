@@ -0,0 +1,226 @@
+package BenTrapani.CryptoArbitrage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import BenTrapani.CryptoArbitrage.OrderBookAnalyzer.LoopCollector;
+import BenTrapani.CryptoArbitrage.OrderGraph.TwoSidedGraphEdge;
+
+/***
+ *
+ * Every 3 trade loop in the order graph, indexed by the currency pairs it
+ * trades through, for finding triangular arbitrage without a full search.
+ *
+ * The index follows the graph one snapshot at a time. Buckets are shared
+ * between versions until they change, so a snapshot only needs its changed
+ * source currencies looked at. Triangles are added and removed as pairs with
+ * trades appear and disappear, and only the triangles through a pair out of
+ * a changed currency are evaluated again. A single order book tick touches
+ * one or two currencies, so an update costs a few triangles rather than a
+ * pass over the graph.
+ *
+ * Each triangle is valued with the best trade for each of its pairs.
+ * Triangles that pass the loop collector's screen are remembered and offered
+ * on every update, so the exact check sees them until they stop being
+ * profitable. Only used from one thread at a time.
+ *
+ */
+public class TriangleIndex {
+
+	// Loop a -> b -> c -> a, stored starting from its smallest currency id so
+	// each loop is stored once. a -> c -> b -> a is a different triangle.
+	static class Triangle {
+		final int a;
+		final int b;
+		final int c;
+		private int dirtyStamp = 0;
+
+		Triangle(int a, int b, int c) {
+			this.a = a;
+			this.b = b;
+			this.c = c;
+		}
+	}
+
+	private IndexedOrderGraph graph = new IndexedOrderGraph();
+	// Present for every pair of currencies with at least one trade
+	private final HashMap<Long, ArrayList<Triangle>> trianglesByPair = new HashMap<Long, ArrayList<Triangle>>();
+	private final HashSet<Triangle> profitableTriangles = new HashSet<Triangle>();
+	private int numTriangles = 0;
+	private int lastEvaluated = 0;
+	private int evaluationStamp = 0;
+	// Marks currencies already seen while scanning a bucket
+	private int[] vertexStamps = new int[0];
+	private int vertexStamp = 0;
+
+	private static long pairKey(int sourceId, int destId) {
+		return ((long) sourceId << 32) | destId;
+	}
+
+	// Brings the index up to newGraph, revalues the triangles through pairs
+	// that changed and offers every triangle that passes the screen to loops
+	public void update(IndexedOrderGraph newGraph, LoopCollector loops) {
+		final IndexedOrderGraph oldGraph = graph;
+		final int numVertices = newGraph.getVertexCount();
+		if (vertexStamps.length < numVertices) {
+			vertexStamps = new int[numVertices];
+		}
+		final ArrayList<Integer> changedSources = new ArrayList<Integer>();
+		final ArrayList<Long> addedPairs = new ArrayList<Long>();
+		for (int u = 0; u < numVertices; u++) {
+			final IndexedOrderGraph.EdgeBucket oldBucket = oldGraph.getBucket(u);
+			final IndexedOrderGraph.EdgeBucket newBucket = newGraph.getBucket(u);
+			if (oldBucket == newBucket) {
+				continue;
+			}
+			changedSources.add(u);
+			// Pairs that still have a trade are stamped, the rest are gone
+			vertexStamp++;
+			if (newBucket != null) {
+				for (int destId : newBucket.destIds) {
+					if (vertexStamps[destId] != vertexStamp) {
+						vertexStamps[destId] = vertexStamp;
+						if (!trianglesByPair.containsKey(pairKey(u, destId))) {
+							addedPairs.add(pairKey(u, destId));
+						}
+					}
+				}
+			}
+			if (oldBucket != null) {
+				for (int destId : oldBucket.destIds) {
+					if (vertexStamps[destId] != vertexStamp && trianglesByPair.containsKey(pairKey(u, destId))) {
+						removePair(u, destId);
+					}
+				}
+			}
+		}
+		graph = newGraph;
+		for (Long pair : addedPairs) {
+			addPair((int) (pair >>> 32), (int) (long) pair);
+		}
+
+		// Revalue each triangle through a pair out of a changed currency once
+		evaluationStamp++;
+		lastEvaluated = 0;
+		for (Integer u : changedSources) {
+			final IndexedOrderGraph.EdgeBucket bucket = newGraph.getBucket(u);
+			if (bucket == null) {
+				continue;
+			}
+			for (int destId : bucket.destIds) {
+				for (Triangle triangle : trianglesByPair.get(pairKey(u, destId))) {
+					if (triangle.dirtyStamp != evaluationStamp) {
+						triangle.dirtyStamp = evaluationStamp;
+						evaluate(triangle, loops);
+					}
+				}
+			}
+		}
+
+		for (Triangle triangle : profitableTriangles) {
+			HashSet<TwoSidedGraphEdge> tradesToExecute = new HashSet<TwoSidedGraphEdge>();
+			tradesToExecute.add(bestEdge(triangle.a, triangle.b));
+			tradesToExecute.add(bestEdge(triangle.b, triangle.c));
+			tradesToExecute.add(bestEdge(triangle.c, triangle.a));
+			loops.offer(tradesToExecute);
+		}
+	}
+
+	private void evaluate(Triangle triangle, LoopCollector loops) {
+		lastEvaluated++;
+		final double negativeLogRatio = bestNegativeLogRatio(triangle.a, triangle.b)
+				+ bestNegativeLogRatio(triangle.b, triangle.c) + bestNegativeLogRatio(triangle.c, triangle.a);
+		if (loops.passesScreen(negativeLogRatio)) {
+			profitableTriangles.add(triangle);
+		} else {
+			profitableTriangles.remove(triangle);
+		}
+	}
+
+	// Infinite if the pair has no trade with quantity left
+	private double bestNegativeLogRatio(int sourceId, int destId) {
+		final int edgeIndex = bestEdgeIndex(sourceId, destId);
+		return edgeIndex < 0 ? Double.POSITIVE_INFINITY : graph.getEdgeNegativeLogRatio(sourceId, edgeIndex);
+	}
+
+	private TwoSidedGraphEdge bestEdge(int sourceId, int destId) {
+		return graph.getEdge(sourceId, bestEdgeIndex(sourceId, destId));
+	}
+
+	private int bestEdgeIndex(int sourceId, int destId) {
+		int bestIndex = -1;
+		final int edgeCount = graph.getEdgeCount(sourceId);
+		for (int e = 0; e < edgeCount; e++) {
+			if (graph.getEdgeDestId(sourceId, e) == destId && graph.getEdgeQuantity(sourceId, e) > 0
+					&& (bestIndex < 0 || graph.getEdgeNegativeLogRatio(sourceId, e) < graph
+							.getEdgeNegativeLogRatio(sourceId, bestIndex))) {
+				bestIndex = e;
+			}
+		}
+		return bestIndex;
+	}
+
+	// Adds the pair and every triangle it completes. Pairs are added one at a
+	// time, so a triangle is only found by the last of its pairs to appear.
+	private void addPair(int u, int v) {
+		final ArrayList<Triangle> triangles = new ArrayList<Triangle>();
+		trianglesByPair.put(pairKey(u, v), triangles);
+		if (u == v) {
+			return;
+		}
+		final IndexedOrderGraph.EdgeBucket bucket = graph.getBucket(v);
+		if (bucket == null) {
+			return;
+		}
+		vertexStamp++;
+		for (int w : bucket.destIds) {
+			if (w == u || w == v || vertexStamps[w] == vertexStamp) {
+				continue;
+			}
+			vertexStamps[w] = vertexStamp;
+			final ArrayList<Triangle> vw = trianglesByPair.get(pairKey(v, w));
+			final ArrayList<Triangle> wu = trianglesByPair.get(pairKey(w, u));
+			if (vw == null || wu == null) {
+				continue;
+			}
+			final Triangle triangle;
+			if (u < v && u < w) {
+				triangle = new Triangle(u, v, w);
+			} else if (v < w) {
+				triangle = new Triangle(v, w, u);
+			} else {
+				triangle = new Triangle(w, u, v);
+			}
+			triangles.add(triangle);
+			vw.add(triangle);
+			wu.add(triangle);
+			numTriangles++;
+		}
+	}
+
+	// Removes the pair and every triangle through it
+	private void removePair(int u, int v) {
+		final ArrayList<Triangle> triangles = trianglesByPair.remove(pairKey(u, v));
+		for (Triangle triangle : triangles) {
+			final int[] ids = new int[] { triangle.a, triangle.b, triangle.c };
+			for (int i = 0; i < 3; i++) {
+				final ArrayList<Triangle> others = trianglesByPair.get(pairKey(ids[i], ids[(i + 1) % 3]));
+				if (others != null) {
+					others.remove(triangle);
+				}
+			}
+			profitableTriangles.remove(triangle);
+			numTriangles--;
+		}
+	}
+
+	public int getTriangleCount() {
+		return numTriangles;
+	}
+
+	// Number of triangles revalued by the last update
+	public int getLastEvaluatedCount() {
+		return lastEvaluated;
+	}
+}
@@ -0,0 +1,122 @@
+package BenTrapani.CryptoArbitrage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.knowm.xchange.currency.Currency;
+
+import BenTrapani.CryptoArbitrage.OrderBookAnalyzer.AnalysisResult;
+import BenTrapani.CryptoArbitrage.OrderBookAnalyzer.SearchAlgorithm;
+
+/***
+ *
+ * Times each analyzer search algorithm on the same random graphs, with and
+ * without an arbitrage loop. Run with main(), not part of the unit tests.
+ *
+ */
+public class AnalyzerBenchmark {
+
+	private static final int maxTrades = 4;
+	private static final long runMillis = 2000;
+
+	// Every currency has a fixed value and every trade pays a fee, so the
+	// graph only has a profitable loop if mispriced is set
+	private static OrderGraph buildGraph(int numCurrencies, int edgesPerCurrency, boolean mispriced, long seed) {
+		Random random = new Random(seed);
+		Currency[] currencies = new Currency[numCurrencies];
+		int[] values = new int[numCurrencies];
+		for (int i = 0; i < numCurrencies; i++) {
+			currencies[i] = Currency.getInstance("ANB" + i);
+			values[i] = 1 + random.nextInt(1000);
+		}
+		OrderGraph graph = new OrderGraph();
+		Fraction fee = new Fraction(2, 1000);
+		for (int u = 0; u < numCurrencies; u++) {
+			for (int i = 0; i < edgesPerCurrency; i++) {
+				int v = random.nextInt(numCurrencies);
+				if (v == u) {
+					v = (v + 1) % numCurrencies;
+				}
+				graph.addEdge(currencies[v], currencies[u], "bench" + random.nextInt(4), false,
+						new Fraction(1 + random.nextInt(10)), new Fraction(values[v], values[u]), fee);
+			}
+		}
+		if (mispriced) {
+			final int u = 1 + random.nextInt(numCurrencies - 1);
+			graph.addEdge(currencies[u], currencies[0], "bench", false, new Fraction(1),
+					new Fraction(values[u] * 11, values[0] * 10), fee);
+			graph.addEdge(currencies[0], currencies[u], "bench", false, new Fraction(1),
+					new Fraction(values[0], values[u]), fee);
+		}
+		return graph;
+	}
+
+	private static void time(String label, OrderGraph graph, SearchAlgorithm algorithm) {
+		time(label, graph, algorithm, maxTrades);
+	}
+
+	private static void time(String label, OrderGraph graph, SearchAlgorithm algorithm, int trades) {
+		OrderBookAnalyzer analyzer = new OrderBookAnalyzer(graph, Currency.getInstance("ANB0"), trades,
+				analysisResult -> {
+				}, algorithm, 0, 0);
+		time(label, analyzer, algorithm);
+	}
+
+	private static void time(String label, OrderBookAnalyzer analyzer, SearchAlgorithm algorithm) {
+		// Warm up
+		AnalysisResult result = null;
+		final long warmupEnd = System.nanoTime() + runMillis * 1000000L / 4;
+		while (System.nanoTime() < warmupEnd) {
+			result = analyzer.runSearch();
+		}
+		long runs = 0;
+		final long start = System.nanoTime();
+		final long end = start + runMillis * 1000000L;
+		while (System.nanoTime() < end) {
+			result = analyzer.runSearch();
+			runs++;
+		}
+		final double microsPerRun = (System.nanoTime() - start) / 1000.0 / runs;
+		System.out.println(label + " " + algorithm + ": " + String.format("%.1f", microsPerRun) + " us/search, ratio "
+				+ result.maxRatio);
+	}
+
+	public static void main(String[] args) {
+		final int[][] sizes = new int[][] { { 10, 3 }, { 40, 6 }, { 150, 10 } };
+		for (int[] size : sizes) {
+			for (boolean mispriced : new boolean[] { false, true }) {
+				OrderGraph graph = buildGraph(size[0], size[1], mispriced, 7);
+				String label = size[0] + " currencies x " + size[1] + " edges" + (mispriced ? " with loop" : "");
+				for (SearchAlgorithm algorithm : SearchAlgorithm.values()) {
+					// Brute force is exponential in maxTrades and the degree
+					if (algorithm == SearchAlgorithm.BRUTE_FORCE && size[0] > 40) {
+						continue;
+					}
+					time(label, graph, algorithm);
+				}
+			}
+		}
+
+		// Brute force at the depths it is used for when exact results matter
+		for (int trades : new int[] { 5, 6 }) {
+			time("40 currencies x 6 edges with loop, " + trades + " trades", buildGraph(40, 6, true, 7),
+					SearchAlgorithm.BRUTE_FORCE, trades);
+		}
+
+		// Parallel search latency as roots are added
+		OrderGraph graph = buildGraph(150, 10, true, 7);
+		OrderBookAnalyzer analyzer = new OrderBookAnalyzer(graph, Currency.getInstance("ANB0"), maxTrades,
+				analysisResult -> {
+				}, SearchAlgorithm.PARALLEL_SPFA, 0, 0);
+		System.out.println("Cores: " + Runtime.getRuntime().availableProcessors());
+		for (int numRoots : new int[] { 1, 4, 16, 64, 150 }) {
+			List<Currency> roots = new ArrayList<Currency>();
+			for (int i = 0; i < numRoots; i++) {
+				roots.add(Currency.getInstance("ANB" + i));
+			}
+			analyzer.setSearchRoots(roots);
+			time("150 currencies x 10 edges, " + numRoots + " roots", analyzer, SearchAlgorithm.PARALLEL_SPFA);
+		}
+	}
+}
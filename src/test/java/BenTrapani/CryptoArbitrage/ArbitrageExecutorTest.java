@@ -12,6 +12,7 @@ import java.util.List;
 import org.junit.Test;
 import org.knowm.xchange.currency.Currency;
 
+import BenTrapani.CryptoArbitrage.OrderBookAnalyzer.AnalysisResult;
 import BenTrapani.CryptoArbitrage.OrderGraph.GraphEdge;
 import BenTrapani.CryptoArbitrage.OrderGraph.TwoSidedGraphEdge;
 import BenTrapani.CryptoArbitrage.ArbitrageExecutor.ExecutableTrade;
@@ -254,4 +255,40 @@ public class ArbitrageExecutorTest {
 		verifyExecutableTradesWithExpectedUSDFlow(executableTrades, expectedPathFlowInUSD, testExch1, testExch2,
 				testExch3, testExch4, someGraphEdge.price, secondEdge.price, thirdEdge.price, fourthEdge.price);
 	}
+	
+	@Test
+	public void testSelectDisjointLoops() {
+		Fraction fee = new Fraction(0);
+		TwoSidedGraphEdge usdBtc = new TwoSidedGraphEdge(Currency.USD,
+				new GraphEdge("testExch1", Currency.BTC, true, new Fraction(1), new Fraction(1000), fee));
+		TwoSidedGraphEdge btcUsd = new TwoSidedGraphEdge(Currency.BTC,
+				new GraphEdge("testExch2", Currency.USD, false, new Fraction(1), new Fraction(1100), fee));
+		TwoSidedGraphEdge btcUsd2 = new TwoSidedGraphEdge(Currency.BTC,
+				new GraphEdge("testExch3", Currency.USD, false, new Fraction(1), new Fraction(1050), fee));
+		TwoSidedGraphEdge usdEth = new TwoSidedGraphEdge(Currency.USD,
+				new GraphEdge("testExch1", Currency.ETH, true, new Fraction(1), new Fraction(100), fee));
+		TwoSidedGraphEdge ethUsd = new TwoSidedGraphEdge(Currency.ETH,
+				new GraphEdge("testExch2", Currency.USD, false, new Fraction(1), new Fraction(102), fee));
+		TwoSidedGraphEdge ethUsd2 = new TwoSidedGraphEdge(Currency.ETH,
+				new GraphEdge("testExch3", Currency.USD, false, new Fraction(1), new Fraction(1001, 10), fee));
+
+		List<AnalysisResult> rankedLoops = Arrays.asList(
+				new AnalysisResult(new Fraction(11, 10), new HashSet<TwoSidedGraphEdge>(Arrays.asList(usdBtc, btcUsd))),
+				new AnalysisResult(new Fraction(21, 20), new HashSet<TwoSidedGraphEdge>(Arrays.asList(usdBtc, btcUsd2))),
+				new AnalysisResult(new Fraction(51, 50), new HashSet<TwoSidedGraphEdge>(Arrays.asList(usdEth, ethUsd))),
+				new AnalysisResult(new Fraction(1001, 1000),
+						new HashSet<TwoSidedGraphEdge>(Arrays.asList(usdEth, ethUsd2))));
+
+		// Second loop shares the USD -> BTC order with the first
+		List<AnalysisResult> selected = ArbitrageExecutor.selectDisjointLoops(rankedLoops, new Fraction(1));
+		assertEquals(2, selected.size());
+		assertSame(rankedLoops.get(0), selected.get(0));
+		assertSame(rankedLoops.get(2), selected.get(1));
+
+		// Loops at or below the minimum ratio are not taken
+		selected = ArbitrageExecutor.selectDisjointLoops(rankedLoops, new Fraction(51, 50));
+		assertEquals(1, selected.size());
+		assertSame(rankedLoops.get(0), selected.get(0));
+		assertTrue(ArbitrageExecutor.selectDisjointLoops(new ArrayList<AnalysisResult>(), new Fraction(1)).isEmpty());
+	}
 }
@@ -0,0 +1,63 @@
+package BenTrapani.CryptoArbitrage;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class CoalescingTriggerTest {
+
+	@Test
+	public void testTriggersCoalesce() throws InterruptedException {
+		CoalescingTrigger trigger = new CoalescingTrigger(0, 0);
+		for (int i = 0; i < 100; i++) {
+			trigger.trigger();
+		}
+		assertTrue(trigger.awaitRun());
+		assertEquals(100, trigger.getTriggersReceived());
+		assertEquals(1, trigger.getRunsStarted());
+
+		// A trigger during a run causes exactly one more run
+		trigger.trigger();
+		trigger.trigger();
+		assertTrue(trigger.awaitRun());
+		assertEquals(2, trigger.getRunsStarted());
+
+		trigger.close();
+		assertFalse(trigger.awaitRun());
+		assertEquals(2, trigger.getRunsStarted());
+	}
+
+	@Test
+	public void testMinIntervalAndDebounce() throws InterruptedException {
+		CoalescingTrigger trigger = new CoalescingTrigger(50, 0);
+		trigger.trigger();
+		assertTrue(trigger.awaitRun());
+		final long firstRun = System.nanoTime();
+		trigger.trigger();
+		assertTrue(trigger.awaitRun());
+		assertTrue(System.nanoTime() - firstRun >= 50 * 1000000L);
+
+		CoalescingTrigger debounced = new CoalescingTrigger(0, 30);
+		final long triggerTime = System.nanoTime();
+		debounced.trigger();
+		assertTrue(debounced.awaitRun());
+		assertTrue(System.nanoTime() - triggerTime >= 30 * 1000000L);
+	}
+
+	@Test
+	public void testCloseWakesWaiter() throws InterruptedException {
+		final CoalescingTrigger trigger = new CoalescingTrigger(0, 0);
+		final boolean[] result = new boolean[] { true };
+		Thread waiter = new Thread(() -> {
+			try {
+				result[0] = trigger.awaitRun();
+			} catch (InterruptedException e) {
+			}
+		});
+		waiter.start();
+		trigger.close();
+		waiter.join(5000);
+		assertFalse(waiter.isAlive());
+		assertFalse(result[0]);
+	}
+}
@@ -4,6 +4,7 @@ import static org.junit.Assert.assertEquals;
 
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.util.Random;
 
 import org.junit.Test;
 
@@ -12,24 +13,24 @@ public class FractionTest {
 	@Test
 	public void testInitAndReduce() {
 		Fraction longInit = new Fraction(1025);
-		assertEquals(BigInteger.valueOf(1025), longInit.numerator);
-		assertEquals(BigInteger.ONE, longInit.denominator);
+		assertEquals(BigInteger.valueOf(1025), longInit.getNumerator());
+		assertEquals(BigInteger.ONE, longInit.getDenominator());
 
 		Fraction bigIntInit = new Fraction(BigInteger.valueOf(20145));
-		assertEquals(BigInteger.valueOf(20145), bigIntInit.numerator);
-		assertEquals(BigInteger.ONE, bigIntInit.denominator);
+		assertEquals(BigInteger.valueOf(20145), bigIntInit.getNumerator());
+		assertEquals(BigInteger.ONE, bigIntInit.getDenominator());
 
 		Fraction unreduceableInit = new Fraction(BigInteger.valueOf(1284018), BigInteger.valueOf(12839));
-		assertEquals(BigInteger.valueOf(1284018), unreduceableInit.numerator);
-		assertEquals(BigInteger.valueOf(12839), unreduceableInit.denominator);
+		assertEquals(BigInteger.valueOf(1284018), unreduceableInit.getNumerator());
+		assertEquals(BigInteger.valueOf(12839), unreduceableInit.getDenominator());
 
 		Fraction reduceableInit = new Fraction(BigInteger.valueOf(123821120), BigInteger.valueOf(12845));
-		assertEquals(BigInteger.valueOf(123821120).divide(BigInteger.valueOf(5)), reduceableInit.numerator);
-		assertEquals(BigInteger.valueOf(12845).divide(BigInteger.valueOf(5)), reduceableInit.denominator);
+		assertEquals(BigInteger.valueOf(123821120).divide(BigInteger.valueOf(5)), reduceableInit.getNumerator());
+		assertEquals(BigInteger.valueOf(12845).divide(BigInteger.valueOf(5)), reduceableInit.getDenominator());
 
 		Fraction reduceableLargeDenom = new Fraction(BigInteger.valueOf(-5), BigInteger.valueOf(25));
-		assertEquals(BigInteger.valueOf(-1), reduceableLargeDenom.numerator);
-		assertEquals(BigInteger.valueOf(5), reduceableLargeDenom.denominator);
+		assertEquals(BigInteger.valueOf(-1), reduceableLargeDenom.getNumerator());
+		assertEquals(BigInteger.valueOf(5), reduceableLargeDenom.getDenominator());
 	}
 
 	@Test
@@ -41,8 +42,8 @@ public class FractionTest {
 		assertEquals(product1, product2);
 		// Result is 1024 * 51 / 1280 * 101 = 52,224 / 129,280
 		// GCD = 256, so result is 204 / 505
-		assertEquals(BigInteger.valueOf(204), product1.numerator);
-		assertEquals(BigInteger.valueOf(505), product1.denominator);
+		assertEquals(BigInteger.valueOf(204), product1.getNumerator());
+		assertEquals(BigInteger.valueOf(505), product1.getDenominator());
 
 		Fraction div1 = product1.divide(arg2);
 		Fraction div2 = product2.divide(arg1);
@@ -122,4 +123,56 @@ public class FractionTest {
 		BigDecimal testValBack = fracRep.convertToBigDecimal(CryptoConfigs.decimalScale, BigDecimal.ROUND_DOWN);
 		assertEquals(valueToTest, testValBack);
 	}
+
+	private static void assertReducedEquals(BigInteger num, BigInteger denom, Fraction actual) {
+		BigInteger gcd = num.abs().gcd(denom.abs());
+		BigInteger expectedNum = num.divide(gcd);
+		BigInteger expectedDenom = denom.divide(gcd);
+		assertEquals(expectedNum, actual.getNumerator());
+		assertEquals(expectedDenom, actual.getDenominator());
+		assertEquals(expectedNum.hashCode() + expectedDenom.hashCode() * 51, actual.hashCode());
+		assertEquals(expectedNum.toString() + " / " + expectedDenom.toString(), actual.toString());
+	}
+
+	@Test
+	public void testCompactArithmeticMatchesBigInteger() {
+		Random random = new Random(1234);
+		long[] interestingValues = new long[] { 0, 1, -1, 2, 7, 1000, 99999989, 3037000499L, 3037000500L,
+				Integer.MAX_VALUE, Integer.MIN_VALUE, Long.MAX_VALUE, Long.MAX_VALUE - 1, Long.MIN_VALUE + 1,
+				1L << 62, -(1L << 62) };
+		for (int i = 0; i < 20000; i++) {
+			long n1 = i % 4 == 0 ? interestingValues[random.nextInt(interestingValues.length)]
+					: random.nextLong() >> random.nextInt(64);
+			long d1 = random.nextLong() >> random.nextInt(64);
+			long n2 = random.nextLong() >> random.nextInt(64);
+			long d2 = i % 3 == 0 ? interestingValues[random.nextInt(interestingValues.length)]
+					: random.nextLong() >> random.nextInt(64);
+			if (d1 == 0 || d2 == 0) {
+				continue;
+			}
+			Fraction f1 = new Fraction(n1, d1);
+			Fraction f2 = new Fraction(n2, d2);
+			BigInteger bn1 = f1.getNumerator();
+			BigInteger bd1 = f1.getDenominator();
+			BigInteger bn2 = f2.getNumerator();
+			BigInteger bd2 = f2.getDenominator();
+			assertReducedEquals(BigInteger.valueOf(n1), BigInteger.valueOf(d1), f1);
+
+			assertReducedEquals(bn1.multiply(bn2), bd1.multiply(bd2), f1.multiply(f2));
+			assertReducedEquals(bn1.multiply(bd2).add(bn2.multiply(bd1)), bd1.multiply(bd2), f1.add(f2));
+			assertReducedEquals(bn1.multiply(bd2).subtract(bn2.multiply(bd1)), bd1.multiply(bd2), f1.subtract(f2));
+			if (n2 != 0) {
+				assertReducedEquals(bn1.multiply(bd2), bd1.multiply(bn2), f1.divide(f2));
+			}
+			assertEquals(bn1.multiply(bd2).compareTo(bn2.multiply(bd1)), f1.compareTo(f2));
+
+			// Promoted results must compare equal to the same value built from
+			// BigIntegers
+			Fraction product = f1.multiply(f2).multiply(f1);
+			assertEquals(new Fraction(product.getNumerator(), product.getDenominator()), product);
+			if (n1 != 0) {
+				assertEquals(0, product.compareTo(product.divide(f1).multiply(f1)));
+			}
+		}
+	}
 }
@@ -0,0 +1,130 @@
+package BenTrapani.CryptoArbitrage;
+
+import static org.junit.Assert.*;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.knowm.xchange.currency.Currency;
+import org.knowm.xchange.currency.CurrencyPair;
+import org.knowm.xchange.dto.Order.OrderType;
+import org.knowm.xchange.dto.marketdata.OrderBook;
+import org.knowm.xchange.dto.trade.LimitOrder;
+
+import BenTrapani.CryptoArbitrage.OrderBookAggregator.KBestOrders;
+
+public class IncrementalOrderBookTest {
+
+	private static LimitOrder level(OrderType type, int amount, int price) {
+		return new LimitOrder(type, new BigDecimal(amount), CurrencyPair.BTC_USD, null, null, new BigDecimal(price));
+	}
+
+	@Test
+	public void testMatchesFullBook() {
+		Random random = new Random(11);
+		IncrementalOrderBook incrementalOrderBook = new IncrementalOrderBook(3, 2);
+		// Every level of the book, by price
+		HashMap<Integer, LimitOrder> bids = new HashMap<Integer, LimitOrder>();
+		HashMap<Integer, LimitOrder> asks = new HashMap<Integer, LimitOrder>();
+		for (int round = 0; round < 2000; round++) {
+			final boolean isBid = random.nextBoolean();
+			final int price = isBid ? 90 + random.nextInt(20) : 100 + random.nextInt(20);
+			// Zero removes the level
+			final LimitOrder level = level(isBid ? OrderType.BID : OrderType.ASK, random.nextInt(4), price);
+			final HashMap<Integer, LimitOrder> side = isBid ? bids : asks;
+			if (level.getOriginalAmount().signum() == 0) {
+				side.remove(price);
+			} else {
+				side.put(price, level);
+			}
+			final KBestOrders prevKBest = incrementalOrderBook.getKBest();
+			incrementalOrderBook.applyLevel(level);
+			final KBestOrders kBest = incrementalOrderBook.getKBest();
+
+			KBestOrders expected = new KBestOrders(new ArrayList<LimitOrder>(bids.values()),
+					new ArrayList<LimitOrder>(asks.values()), 3, 2);
+			assertEquals(expected.kBestBids, kBest.kBestBids);
+			assertEquals(expected.kBestAsks, kBest.kBestAsks);
+			if (!expected.kBestBids.equals(prevKBest.kBestBids) || !expected.kBestAsks.equals(prevKBest.kBestAsks)) {
+				assertNotSame(prevKBest, kBest);
+			}
+		}
+	}
+
+	@Test
+	public void testOnlyBestLevelsUpdateGraph() throws Exception {
+		Fraction fee = new Fraction(0);
+		OrderGraph orderGraph = new OrderGraph();
+		final int[] graphChanges = new int[1];
+		OrderBookAggregator.OrderBookConsumer consumer = new OrderBookAggregator.OrderBookConsumer(1, 1, orderGraph,
+				"exch", fee, CurrencyPair.BTC_USD, () -> graphChanges[0]++);
+		consumer.accept(new OrderBook(new Date(), Arrays.asList(level(OrderType.ASK, 1, 101)),
+				Arrays.asList(level(OrderType.BID, 1, 99))));
+		assertEquals(1, graphChanges[0]);
+
+		List<LimitOrder> deepLevels = Arrays.asList(level(OrderType.BID, 2, 95), level(OrderType.ASK, 2, 105));
+		consumer.acceptLevelUpdates(deepLevels);
+		assertEquals(1, graphChanges[0]);
+		// A new best bid replaces the old one in the graph
+		consumer.acceptLevelUpdates(Arrays.asList(level(OrderType.BID, 3, 100)));
+		assertEquals(2, graphChanges[0]);
+		assertEquals(new Fraction(100), orderGraph.getEdges(Currency.BTC).iterator().next().graphEdge.price);
+		// Removing it brings back the next level
+		consumer.acceptLevelUpdates(Arrays.asList(level(OrderType.BID, 0, 100)));
+		assertEquals(3, graphChanges[0]);
+		assertEquals(new Fraction(99), orderGraph.getEdges(Currency.BTC).iterator().next().graphEdge.price);
+		consumer.acceptLevelUpdates(Arrays.asList(level(OrderType.BID, 0, 99)));
+		assertEquals(new Fraction(95), orderGraph.getEdges(Currency.BTC).iterator().next().graphEdge.price);
+		assertEquals(1, orderGraph.getEdges(Currency.BTC).size());
+	}
+
+	@Test
+	public void testLevelUpdatesStartFromFullBook() throws Exception {
+		Fraction fee = new Fraction(0);
+		OrderGraph orderGraph = new OrderGraph();
+		OrderBookAggregator.OrderBookConsumer consumer = new OrderBookAggregator.OrderBookConsumer(1, 1, orderGraph,
+				"exch", fee, CurrencyPair.BTC_USD, () -> {
+				});
+		try {
+			consumer.acceptLevelUpdates(Arrays.asList(level(OrderType.BID, 1, 99)));
+			fail("Level updates need a full book first");
+		} catch (IllegalStateException e) {
+		}
+
+		// Only the best bid becomes an edge, but the level behind it is kept
+		consumer.accept(new OrderBook(new Date(), Arrays.asList(level(OrderType.ASK, 1, 101)),
+				Arrays.asList(level(OrderType.BID, 1, 99), level(OrderType.BID, 1, 95))));
+		assertEquals(new Fraction(99), orderGraph.getEdges(Currency.BTC).iterator().next().graphEdge.price);
+		consumer.acceptLevelUpdates(Arrays.asList(level(OrderType.BID, 0, 99)));
+		assertEquals(1, orderGraph.getEdges(Currency.BTC).size());
+		assertEquals(new Fraction(95), orderGraph.getEdges(Currency.BTC).iterator().next().graphEdge.price);
+
+		// A later full book replaces every level
+		consumer.accept(new OrderBook(new Date(), Arrays.asList(level(OrderType.ASK, 1, 101)),
+				Arrays.asList(level(OrderType.BID, 1, 98), level(OrderType.BID, 1, 97))));
+		consumer.acceptLevelUpdates(Arrays.asList(level(OrderType.BID, 0, 98)));
+		assertEquals(1, orderGraph.getEdges(Currency.BTC).size());
+		assertEquals(new Fraction(97), orderGraph.getEdges(Currency.BTC).iterator().next().graphEdge.price);
+	}
+
+	@Test
+	public void testDeepLevelsKeepKBest() {
+		IncrementalOrderBook incrementalOrderBook = new IncrementalOrderBook(1, 1);
+		incrementalOrderBook.reset(new OrderBook(new Date(), Arrays.asList(level(OrderType.ASK, 1, 101)),
+				Arrays.asList(level(OrderType.BID, 1, 99))));
+		KBestOrders kBest = incrementalOrderBook.getKBest();
+		incrementalOrderBook.applyLevel(level(OrderType.BID, 2, 95));
+		incrementalOrderBook.applyLevel(level(OrderType.ASK, 2, 105));
+		incrementalOrderBook.applyLevel(level(OrderType.ASK, 0, 110));
+		assertSame(kBest, incrementalOrderBook.getKBest());
+		incrementalOrderBook.applyLevel(level(OrderType.ASK, 3, 101));
+		assertNotSame(kBest, incrementalOrderBook.getKBest());
+		assertEquals(new BigDecimal(3), incrementalOrderBook.getKBest().kBestAsks.get(0).getOriginalAmount());
+	}
+}
@@ -0,0 +1,236 @@
+package BenTrapani.CryptoArbitrage;
+
+import static org.junit.Assert.*;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.knowm.xchange.currency.Currency;
+import org.knowm.xchange.currency.CurrencyPair;
+import org.knowm.xchange.dto.Order.OrderType;
+import org.knowm.xchange.dto.marketdata.OrderBook;
+import org.knowm.xchange.dto.trade.LimitOrder;
+
+import BenTrapani.CryptoArbitrage.OrderBookAggregator.KBestOrders;
+import BenTrapani.CryptoArbitrage.OrderBookAggregator.OrderBookConsumer;
+import BenTrapani.CryptoArbitrage.OrderGraph.TwoSidedGraphEdge;
+
+public class IngestPipelineTest {
+
+	private static OrderBook book(CurrencyPair currencyPair, int bidPrice, int askPrice) {
+		return new OrderBook(new Date(),
+				Arrays.asList(new LimitOrder(OrderType.ASK, new BigDecimal(1), currencyPair, null, null,
+						new BigDecimal(askPrice))),
+				Arrays.asList(new LimitOrder(OrderType.BID, new BigDecimal(1), currencyPair, null, null,
+						new BigDecimal(bidPrice))));
+	}
+
+	private static OrderBookConsumer consumer(OrderGraph orderGraph, String exchangeName, CurrencyPair currencyPair,
+			IngestPipeline ingestPipeline) {
+		return new OrderBookConsumer(1, 1, orderGraph, exchangeName, new Fraction(0), currencyPair, () -> {
+		}, null, ingestPipeline);
+	}
+
+	@Test
+	public void testBatchesBooks() throws Exception {
+		OrderGraph orderGraph = new OrderGraph();
+		AtomicInteger graphChanges = new AtomicInteger(0);
+		IngestPipeline ingestPipeline = new IngestPipeline(orderGraph, () -> graphChanges.incrementAndGet(), 6);
+		assertEquals(8, ingestPipeline.getCapacity());
+		OrderBookConsumer btcConsumer = consumer(orderGraph, "exch", CurrencyPair.BTC_USD, ingestPipeline);
+		OrderBookConsumer ethConsumer = consumer(orderGraph, "exch", CurrencyPair.ETH_USD, ingestPipeline);
+
+		btcConsumer.accept(book(CurrencyPair.BTC_USD, 99, 101));
+		ethConsumer.accept(book(CurrencyPair.ETH_USD, 9, 11));
+		// Nothing reaches the graph until the writer runs
+		assertEquals(2, ingestPipeline.getQueueDepth());
+		assertNull(orderGraph.getEdges(Currency.BTC));
+		assertEquals(2, ingestPipeline.drain());
+		assertEquals(0, ingestPipeline.getQueueDepth());
+		assertEquals(1, ingestPipeline.getBatchesApplied());
+		assertEquals(1, graphChanges.get());
+		assertEquals(2, orderGraph.getEdges(Currency.USD).size());
+
+		// Books not applied yet are replaced by newer ones for the same pair
+		btcConsumer.accept(book(CurrencyPair.BTC_USD, 98, 101));
+		btcConsumer.accept(book(CurrencyPair.BTC_USD, 97, 101));
+		btcConsumer.accept(book(CurrencyPair.BTC_USD, 96, 101));
+		assertEquals(1, ingestPipeline.getQueueDepth());
+		assertEquals(1, ingestPipeline.drain());
+		assertEquals(2, ingestPipeline.getBatchesApplied());
+		assertEquals(new Fraction(96), orderGraph.getEdges(Currency.BTC).iterator().next().graphEdge.price);
+		assertEquals(3, ingestPipeline.getEventsApplied());
+		assertEquals(2, ingestPipeline.getConflatedUpdates());
+		assertEquals(2, btcConsumer.getConflatedUpdates());
+		assertEquals(0, ethConsumer.getConflatedUpdates());
+		assertEquals(2, ingestPipeline.getMaxQueueDepth());
+	}
+
+	@Test
+	public void testSameBookTwiceInOneDrain() throws Exception {
+		OrderGraph orderGraph = new OrderGraph();
+		AtomicInteger graphChanges = new AtomicInteger(0);
+		IngestPipeline ingestPipeline = new IngestPipeline(orderGraph, () -> graphChanges.incrementAndGet(), 4);
+		// Publishes a newer book while the writer is taking the first one, as
+		// an exchange thread can once the writer has taken the pending update
+		OrderBookConsumer btcConsumer = new OrderBookConsumer(1, 1, orderGraph, "exch", new Fraction(0),
+				CurrencyPair.BTC_USD, () -> {
+				}, null, ingestPipeline) {
+			private boolean republished = false;
+
+			@Override
+			boolean addToBatch(KBestOrders newKBest, OrderGraph.Batch batch) {
+				if (!republished) {
+					republished = true;
+					try {
+						accept(book(CurrencyPair.BTC_USD, 97, 101));
+					} catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+				}
+				return super.addToBatch(newKBest, batch);
+			}
+		};
+		OrderBookConsumer ethConsumer = consumer(orderGraph, "exch", CurrencyPair.ETH_USD, ingestPipeline);
+
+		btcConsumer.accept(book(CurrencyPair.BTC_USD, 99, 101));
+		ethConsumer.accept(book(CurrencyPair.ETH_USD, 9, 11));
+		// The second BTC book needs the first one's edges in the graph, so it
+		// goes in a second batch
+		assertEquals(3, ingestPipeline.drain());
+		assertEquals(2, ingestPipeline.getBatchesApplied());
+		assertEquals(2, graphChanges.get());
+		assertEquals(0, ingestPipeline.getConflatedUpdates());
+		assertEquals(0, ingestPipeline.getFailedUpdates());
+		assertEquals(1, orderGraph.getEdges(Currency.BTC).size());
+		assertEquals(new Fraction(97), orderGraph.getEdges(Currency.BTC).iterator().next().graphEdge.price);
+		assertEquals(new Fraction(9), orderGraph.getEdges(Currency.ETH).iterator().next().graphEdge.price);
+		assertEquals(2, orderGraph.getEdges(Currency.USD).size());
+	}
+
+	@Test
+	public void testEqualOrders() throws Exception {
+		OrderGraph orderGraph = new OrderGraph();
+		IngestPipeline ingestPipeline = new IngestPipeline(orderGraph, () -> {
+		}, 4);
+		ingestPipeline.start();
+		OrderBookConsumer btcConsumer = new OrderBookConsumer(2, 2, orderGraph, "exch", new Fraction(0),
+				CurrencyPair.BTC_USD, () -> {
+				}, null, ingestPipeline);
+		OrderBookConsumer ethConsumer = consumer(orderGraph, "exch", CurrencyPair.ETH_USD, ingestPipeline);
+		// Two bids with the same price and amount map to one graph edge
+		OrderBook equalBids = new OrderBook(new Date(),
+				Arrays.asList(new LimitOrder(OrderType.ASK, new BigDecimal(1), CurrencyPair.BTC_USD, "id1", null,
+						new BigDecimal(101))),
+				Arrays.asList(
+						new LimitOrder(OrderType.BID, new BigDecimal(1), CurrencyPair.BTC_USD, "id2", null,
+								new BigDecimal(99)),
+						new LimitOrder(OrderType.BID, new BigDecimal(1), CurrencyPair.BTC_USD, "id3", null,
+								new BigDecimal(99))));
+		btcConsumer.accept(equalBids);
+		ethConsumer.accept(book(CurrencyPair.ETH_USD, 9, 11));
+		btcConsumer.accept(book(CurrencyPair.BTC_USD, 98, 101));
+		ethConsumer.accept(book(CurrencyPair.ETH_USD, 8, 11));
+		btcConsumer.accept(equalBids);
+		ingestPipeline.stop();
+
+		assertEquals(0, ingestPipeline.getFailedUpdates());
+		assertEquals(1, orderGraph.getEdges(Currency.BTC).size());
+		assertEquals(new Fraction(99), orderGraph.getEdges(Currency.BTC).iterator().next().graphEdge.price);
+		assertEquals(new Fraction(8), orderGraph.getEdges(Currency.ETH).iterator().next().graphEdge.price);
+		assertEquals(2, orderGraph.getEdges(Currency.USD).size());
+	}
+
+	@Test
+	public void testFailedBatchResyncs() throws Exception {
+		OrderGraph orderGraph = new OrderGraph();
+		AtomicInteger graphChanges = new AtomicInteger(0);
+		IngestPipeline ingestPipeline = new IngestPipeline(orderGraph, () -> graphChanges.incrementAndGet(), 4);
+		OrderBookConsumer btcConsumer = consumer(orderGraph, "exch", CurrencyPair.BTC_USD, ingestPipeline);
+		OrderBookConsumer ethConsumer = consumer(orderGraph, "exch", CurrencyPair.ETH_USD, ingestPipeline);
+		btcConsumer.accept(book(CurrencyPair.BTC_USD, 99, 101));
+		ethConsumer.accept(book(CurrencyPair.ETH_USD, 9, 11));
+		ingestPipeline.drain();
+
+		// Remove the BTC bid's edge behind its consumer's back, so removing
+		// it fails the next batch
+		assertTrue(orderGraph.removeEdge(CurrencyPair.BTC_USD.counter, CurrencyPair.BTC_USD.base, "exch", false,
+				new Fraction(1), new Fraction(99), new Fraction(0)));
+		btcConsumer.accept(book(CurrencyPair.BTC_USD, 98, 102));
+		ethConsumer.accept(book(CurrencyPair.ETH_USD, 8, 11));
+		assertEquals(2, ingestPipeline.drain());
+		assertEquals(1, ingestPipeline.getBatchesApplied());
+		assertEquals(2, ingestPipeline.getFailedUpdates());
+		assertEquals(2, graphChanges.get());
+
+		// Both books were rebuilt from their newest orders
+		assertEquals(new Fraction(98), orderGraph.getEdges(Currency.BTC).iterator().next().graphEdge.price);
+		assertEquals(1, orderGraph.getEdges(Currency.BTC).size());
+		assertEquals(new Fraction(8), orderGraph.getEdges(Currency.ETH).iterator().next().graphEdge.price);
+		HashSet<Fraction> askPrices = new HashSet<Fraction>();
+		for (TwoSidedGraphEdge edge : orderGraph.getEdges(Currency.USD)) {
+			askPrices.add(edge.graphEdge.price);
+		}
+		assertEquals(new HashSet<Fraction>(Arrays.asList(new Fraction(102), new Fraction(11))), askPrices);
+
+		// And later updates apply as diffs again
+		btcConsumer.accept(book(CurrencyPair.BTC_USD, 97, 102));
+		ingestPipeline.drain();
+		assertEquals(2, ingestPipeline.getBatchesApplied());
+		assertEquals(2, ingestPipeline.getFailedUpdates());
+		assertEquals(new Fraction(97), orderGraph.getEdges(Currency.BTC).iterator().next().graphEdge.price);
+		assertEquals(2, orderGraph.getEdges(Currency.USD).size());
+	}
+
+	@Test
+	public void testConcurrentPublishers() throws Exception {
+		final OrderGraph orderGraph = new OrderGraph();
+		final IngestPipeline ingestPipeline = new IngestPipeline(orderGraph, () -> {
+		}, 4);
+		ingestPipeline.start();
+		final CurrencyPair[] currencyPairs = new CurrencyPair[] { CurrencyPair.BTC_USD, CurrencyPair.ETH_USD,
+				CurrencyPair.LTC_USD, CurrencyPair.XRP_USD };
+		final int booksPerThread = 500;
+		Thread[] threads = new Thread[currencyPairs.length];
+		for (int t = 0; t < threads.length; t++) {
+			final OrderBookConsumer consumer = consumer(orderGraph, "exch", currencyPairs[t], ingestPipeline);
+			final CurrencyPair currencyPair = currencyPairs[t];
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						for (int i = 1; i <= booksPerThread; i++) {
+							consumer.accept(book(currencyPair, i, i + 1));
+						}
+					} catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		ingestPipeline.stop();
+
+		assertEquals(0, ingestPipeline.getQueueDepth());
+		assertEquals(booksPerThread * threads.length,
+				ingestPipeline.getEventsApplied() + ingestPipeline.getConflatedUpdates());
+		// At most one event per book is ever queued
+		assertTrue(ingestPipeline.getMaxQueueDepth() <= currencyPairs.length);
+		assertEquals(0, ingestPipeline.getPublishWaits());
+		// Only each pair's last book is left in the graph
+		HashSet<TwoSidedGraphEdge> usdEdges = orderGraph.getEdges(Currency.USD);
+		assertEquals(currencyPairs.length, usdEdges.size());
+		for (TwoSidedGraphEdge edge : usdEdges) {
+			assertEquals(new Fraction(booksPerThread + 1), edge.graphEdge.price);
+		}
+		for (CurrencyPair currencyPair : currencyPairs) {
+			assertEquals(1, orderGraph.getEdges(currencyPair.base).size());
+		}
+	}
+}
@@ -9,14 +9,17 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
 import java.util.Set;
 
 import org.junit.Test;
 import org.knowm.xchange.currency.CurrencyPair;
 import org.knowm.xchange.dto.Order.OrderType;
+import org.knowm.xchange.dto.marketdata.OrderBook;
 import org.knowm.xchange.dto.trade.LimitOrder;
 
 import BenTrapani.CryptoArbitrage.OrderBookAggregator.OrderBookDiff;
+import BenTrapani.CryptoArbitrage.OrderBookAnalyzer.AnalysisResult;
 import BenTrapani.CryptoArbitrage.OrderBookAggregator.KBestOrders;
 
 public class OrderBookAggregatorTest {
@@ -71,6 +74,45 @@ public class OrderBookAggregatorTest {
 		assertEquals(sortedAsks, unorderedAsks);
 	}
 	
+	@Test
+	public void testKBestOrdersMatchesSort() {
+		Date sharedTimestamp = new Date();
+		Random random = new Random(5);
+		for (int round = 0; round < 200; round++) {
+			List<LimitOrder> bids = new ArrayList<LimitOrder>();
+			List<LimitOrder> asks = new ArrayList<LimitOrder>();
+			final int numOrders = random.nextInt(60);
+			for (int i = 0; i < numOrders; i++) {
+				// Few distinct prices, so there are plenty of ties
+				bids.add(new LimitOrder(OrderType.BID, new BigDecimal(1 + random.nextInt(5)), CurrencyPair.BTC_USD,
+						"bid" + i, sharedTimestamp, new BigDecimal(100 + random.nextInt(20))));
+				asks.add(new LimitOrder(OrderType.ASK, new BigDecimal(1 + random.nextInt(5)), CurrencyPair.BTC_USD,
+						"ask" + i, sharedTimestamp, new BigDecimal(120 + random.nextInt(20))));
+			}
+			if (round % 4 == 0) {
+				// Exchanges that send their levels already sorted
+				Collections.sort(bids);
+				Collections.sort(asks);
+			}
+			List<LimitOrder> sortedBids = new ArrayList<LimitOrder>(bids);
+			List<LimitOrder> sortedAsks = new ArrayList<LimitOrder>(asks);
+			Collections.sort(sortedBids);
+			Collections.sort(sortedAsks);
+			final int k = 1 + random.nextInt(8);
+			KBestOrders kBest = new KBestOrders(new ArrayList<LimitOrder>(bids), new ArrayList<LimitOrder>(asks), k, k);
+			// Compared by identity, since equal orders are not interchangeable
+			assertOrdersSame(sortedBids.subList(0, Math.min(k, numOrders)), kBest.kBestBids);
+			assertOrdersSame(sortedAsks.subList(0, Math.min(k, numOrders)), kBest.kBestAsks);
+		}
+	}
+
+	private void assertOrdersSame(List<LimitOrder> expected, List<LimitOrder> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertSame(expected.get(i), actual.get(i));
+		}
+	}
+
 	@Test
 	public void testOneSidedOrderBookDiff() {
 		Date sharedTimestamp = new Date();
@@ -182,4 +224,139 @@ public class OrderBookAggregatorTest {
 		assertEquals(expectedAdditionSet, additionsSet);
 		assertEquals(expectedDeletionSet, deletionsSet);
 	}
+
+	@Test
+	public void testDiffByPriceLevel() throws Exception {
+		Date firstTimestamp = new Date(1000);
+		Date secondTimestamp = new Date(2000);
+		List<LimitOrder> prevOrders = new ArrayList<LimitOrder>(Arrays.asList(
+				new LimitOrder(OrderType.BID, new BigDecimal(2), CurrencyPair.BTC_USD, "id1", firstTimestamp,
+						new BigDecimal(1500)),
+				new LimitOrder(OrderType.BID, new BigDecimal(3), CurrencyPair.BTC_USD, "id2", firstTimestamp,
+						new BigDecimal(1400))));
+		// Same price and amount with a new id and timestamp, and a changed
+		// amount at the second level
+		List<LimitOrder> newOrders = new ArrayList<LimitOrder>(Arrays.asList(
+				new LimitOrder(OrderType.BID, new BigDecimal("2.0"), CurrencyPair.BTC_USD, "id3", secondTimestamp,
+						new BigDecimal(1500)),
+				new LimitOrder(OrderType.BID, new BigDecimal(4), CurrencyPair.BTC_USD, "id4", secondTimestamp,
+						new BigDecimal(1400))));
+		OrderBookAggregator.OneSidedOrderBookDiff diff = new OrderBookAggregator.OneSidedOrderBookDiff(prevOrders,
+				newOrders);
+		assertEquals(Arrays.asList(newOrders.get(1)), diff.getAdditions());
+		assertEquals(Arrays.asList(prevOrders.get(1)), diff.getDeletions());
+		assertSame(prevOrders.get(0), diff.getRetainedSources().get(0));
+		assertSame(newOrders.get(0), diff.getRetainedDests().get(0));
+
+		// A book that only changed ids and timestamps does not touch the
+		// graph, and later changes still find the retained orders' edges
+		OrderGraph orderGraph = new OrderGraph();
+		final int[] graphChanges = new int[1];
+		OrderBookAggregator.OrderBookConsumer consumer = new OrderBookAggregator.OrderBookConsumer(2, 2, orderGraph,
+				"exch", new Fraction(0), CurrencyPair.BTC_USD, () -> graphChanges[0]++);
+		consumer.accept(new OrderBook(firstTimestamp, new ArrayList<LimitOrder>(), prevOrders));
+		final long version = orderGraph.getIndexedSnapshot().getVersion();
+		consumer.accept(new OrderBook(secondTimestamp, new ArrayList<LimitOrder>(),
+				Arrays.asList(newOrders.get(0), prevOrders.get(1))));
+		assertEquals(1, graphChanges[0]);
+		assertEquals(version, orderGraph.getIndexedSnapshot().getVersion());
+		consumer.accept(new OrderBook(secondTimestamp, new ArrayList<LimitOrder>(), new ArrayList<LimitOrder>()));
+		assertEquals(2, graphChanges[0]);
+		assertNull(orderGraph.getEdges(CurrencyPair.BTC_USD.base));
+	}
+
+	@Test
+	public void testEqualOrders() throws Exception {
+		Date timestamp = new Date();
+		// Same price and amount, so both orders map to one graph edge
+		List<LimitOrder> equalBids = Arrays.asList(
+				new LimitOrder(OrderType.BID, new BigDecimal(2), CurrencyPair.BTC_USD, "id1", timestamp,
+						new BigDecimal(1500)),
+				new LimitOrder(OrderType.BID, new BigDecimal(2), CurrencyPair.BTC_USD, "id2", timestamp,
+						new BigDecimal(1500)));
+		OrderGraph orderGraph = new OrderGraph();
+		OrderBookAggregator.OrderBookConsumer consumer = new OrderBookAggregator.OrderBookConsumer(2, 2, orderGraph,
+				"exch", new Fraction(0), CurrencyPair.BTC_USD, () -> {
+				});
+		consumer.accept(new OrderBook(timestamp, new ArrayList<LimitOrder>(), equalBids));
+		assertEquals(1, orderGraph.getEdges(CurrencyPair.BTC_USD.base).size());
+		// The edge stays while either order is left
+		consumer.accept(new OrderBook(timestamp, new ArrayList<LimitOrder>(), equalBids.subList(0, 1)));
+		assertEquals(1, orderGraph.getEdges(CurrencyPair.BTC_USD.base).size());
+		consumer.accept(new OrderBook(timestamp, new ArrayList<LimitOrder>(), equalBids));
+		consumer.accept(new OrderBook(timestamp, new ArrayList<LimitOrder>(), new ArrayList<LimitOrder>()));
+		assertNull(orderGraph.getEdges(CurrencyPair.BTC_USD.base));
+	}
+
+	@Test
+	public void testSpreadDetector() throws Exception {
+		Date sharedTimestamp = new Date();
+		List<AnalysisResult> reported = new ArrayList<AnalysisResult>();
+		SpreadDetector spreadDetector = new SpreadDetector(analysisResult -> reported.add(analysisResult));
+		OrderGraph orderGraph = new OrderGraph();
+		Fraction fee = new Fraction(1, 100);
+		OrderBookAggregator.OrderBookConsumer firstExchange = new OrderBookAggregator.OrderBookConsumer(1, 1,
+				orderGraph, "exch1", fee, CurrencyPair.BTC_USD, () -> {
+				}, spreadDetector);
+		OrderBookAggregator.OrderBookConsumer secondExchange = new OrderBookAggregator.OrderBookConsumer(1, 1,
+				orderGraph, "exch2", fee, CurrencyPair.BTC_USD, () -> {
+				}, spreadDetector);
+		LimitOrder firstAsk = new LimitOrder(OrderType.ASK, new BigDecimal(1), CurrencyPair.BTC_USD, "id1",
+				sharedTimestamp, new BigDecimal(100));
+		LimitOrder firstBid = new LimitOrder(OrderType.BID, new BigDecimal(1), CurrencyPair.BTC_USD, "id2",
+				sharedTimestamp, new BigDecimal(99));
+		LimitOrder secondAsk = new LimitOrder(OrderType.ASK, new BigDecimal(1), CurrencyPair.BTC_USD, "id3",
+				sharedTimestamp, new BigDecimal(111));
+		LimitOrder crossedBid = new LimitOrder(OrderType.BID, new BigDecimal(1), CurrencyPair.BTC_USD, "id4",
+				sharedTimestamp, new BigDecimal(110));
+		LimitOrder uncrossedBid = new LimitOrder(OrderType.BID, new BigDecimal(1), CurrencyPair.BTC_USD, "id5",
+				sharedTimestamp, new BigDecimal(100));
+
+		firstExchange.accept(new OrderBook(sharedTimestamp, Arrays.asList(firstAsk), Arrays.asList(firstBid)));
+		assertEquals(0, reported.size());
+		// Buy for 100 on the first exchange and sell for 110 on the second,
+		// paying 1% each time
+		secondExchange.accept(new OrderBook(sharedTimestamp, Arrays.asList(secondAsk), Arrays.asList(crossedBid)));
+		assertEquals(1, reported.size());
+		assertEquals(new Fraction(107811, 100000), reported.get(0).maxRatio);
+		assertEquals(2, reported.get(0).tradesToExecute.size());
+		assertEquals(1, spreadDetector.getCrossedMarketsReported());
+
+		// The same crossed market is only reported once
+		firstExchange.accept(new OrderBook(sharedTimestamp, Arrays.asList(firstAsk), Arrays.asList(firstBid)));
+		assertEquals(1, reported.size());
+
+		// Fees outweigh the spread
+		secondExchange.accept(new OrderBook(sharedTimestamp, Arrays.asList(secondAsk), Arrays.asList(uncrossedBid)));
+		assertEquals(1, reported.size());
+
+		secondExchange.accept(new OrderBook(sharedTimestamp, Arrays.asList(secondAsk), Arrays.asList(crossedBid)));
+		assertEquals(2, reported.size());
+		assertEquals(reported.get(0).tradesToExecute, reported.get(1).tradesToExecute);
+	}
+
+	@Test
+	public void testSpreadDetectorRoundingTolerance() throws Exception {
+		Date sharedTimestamp = new Date();
+		List<AnalysisResult> reported = new ArrayList<AnalysisResult>();
+		SpreadDetector spreadDetector = new SpreadDetector(analysisResult -> reported.add(analysisResult));
+		OrderGraph orderGraph = new OrderGraph();
+		Fraction fee = new Fraction(0);
+		OrderBookAggregator.OrderBookConsumer firstExchange = new OrderBookAggregator.OrderBookConsumer(1, 1,
+				orderGraph, "exch1", fee, CurrencyPair.BTC_USD, () -> {
+				}, spreadDetector);
+		OrderBookAggregator.OrderBookConsumer secondExchange = new OrderBookAggregator.OrderBookConsumer(1, 1,
+				orderGraph, "exch2", fee, CurrencyPair.BTC_USD, () -> {
+				}, spreadDetector);
+		LimitOrder ask = new LimitOrder(OrderType.ASK, new BigDecimal(1), CurrencyPair.BTC_USD, "id1",
+				sharedTimestamp, new BigDecimal(7));
+		LimitOrder bid = new LimitOrder(OrderType.BID, new BigDecimal(1), CurrencyPair.BTC_USD, "id2",
+				sharedTimestamp, new BigDecimal(7).add(new BigDecimal("1e-25")));
+
+		// The double weights of this loop add up to just above 0
+		firstExchange.accept(new OrderBook(sharedTimestamp, Arrays.asList(ask), new ArrayList<LimitOrder>()));
+		secondExchange.accept(new OrderBook(sharedTimestamp, new ArrayList<LimitOrder>(), Arrays.asList(bid)));
+		assertEquals(1, reported.size());
+		assertTrue(reported.get(0).maxRatio.compareTo(new Fraction(1)) > 0);
+	}
 }
@@ -1,11 +1,17 @@
 package BenTrapani.CryptoArbitrage;
 
 import static org.junit.Assert.*;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import BenTrapani.CryptoArbitrage.OrderBookAnalyzer;
 import BenTrapani.CryptoArbitrage.OrderBookAnalyzer.AnalysisResult;
+import BenTrapani.CryptoArbitrage.OrderGraph.EdgeHandle;
 import BenTrapani.CryptoArbitrage.OrderGraph.TwoSidedGraphEdge;
 import BenTrapani.CryptoArbitrage.OrderGraph.GraphEdge;
 
@@ -238,4 +244,491 @@ public class OrderBookAnalyzerTest {
 		assertNull(analysisResult.tradesToExecute);
 		assertEquals(new Fraction(0), analysisResult.maxRatio);
 	}
+	
+	@Test
+	public void testSpfaMatchesBellmanFord() {
+		OrderGraph[] graphs = new OrderGraph[] { buildTestOrderGraph1(), buildTestOrderGraph1WithPositiveShortPath(),
+				buildTestOrderGraph2(), buildLeafyTestGraph(), buildDisjointLoopsTestGraph() };
+		Currency[] roots = new Currency[] { Currency.USD, Currency.XRP, Currency.EUR };
+		for (OrderGraph graph : graphs) {
+			for (Currency root : roots) {
+				AnalysisResult expected = new OrderBookAnalyzer(graph, root, 100, new MockAnalysisHandler())
+						.searchForArbitrageBellmanFord();
+				AnalysisResult actual = new OrderBookAnalyzer(graph, root, 100, new MockAnalysisHandler(),
+						OrderBookAnalyzer.SearchAlgorithm.SPFA, 0, 0).runSearch();
+				assertEquals(expected.maxRatio, actual.maxRatio);
+				assertEquals(expected.tradesToExecute, actual.tradesToExecute);
+
+				// With a trade limit either search can miss loops, but SPFA
+				// stops before its predecessors wander around longer cycles
+				expected = new OrderBookAnalyzer(graph, root, 2, new MockAnalysisHandler())
+						.searchForArbitrageBellmanFord();
+				actual = new OrderBookAnalyzer(graph, root, 2, new MockAnalysisHandler(),
+						OrderBookAnalyzer.SearchAlgorithm.SPFA, 0, 0).runSearch();
+				if (expected.tradesToExecute != null) {
+					assertNotNull(actual.tradesToExecute);
+				}
+				if (actual.tradesToExecute != null) {
+					assertTrue(actual.tradesToExecute.size() <= 2);
+					assertTrue(actual.maxRatio.compareTo(new Fraction(1)) > 0);
+				}
+			}
+		}
+		// ETH -> XPM -> ETH is found by SPFA even though Bellman Ford's
+		// predecessors lead around a longer loop
+		AnalysisResult shortLoop = new OrderBookAnalyzer(buildTestOrderGraph2(), Currency.USD, 2,
+				new MockAnalysisHandler(), OrderBookAnalyzer.SearchAlgorithm.SPFA, 0, 0).runSearch();
+		assertEquals(new Fraction(3), shortLoop.maxRatio);
+	}
+	
+	@Test
+	public void testDepthBoundedMatchesBruteForce() {
+		OrderGraph[] graphs = new OrderGraph[] { buildTestOrderGraph1(), buildTestOrderGraph1WithPositiveShortPath(),
+				buildTestOrderGraph2(), buildLeafyTestGraph(), buildDisjointLoopsTestGraph() };
+		Currency[] roots = new Currency[] { Currency.USD, Currency.XRP, Currency.ETH, Currency.EUR };
+		for (OrderGraph graph : graphs) {
+			for (Currency root : roots) {
+				for (int maxTrades : new int[] { 1, 2, 3, 6 }) {
+					assertDepthBoundedMatchesBruteForce(graph, root, maxTrades);
+				}
+			}
+		}
+		// Best 2 trade loop, which Bellman Ford misses
+		AnalysisResult shortLoop = new OrderBookAnalyzer(buildTestOrderGraph2(), Currency.ETH, 2,
+				new MockAnalysisHandler(), OrderBookAnalyzer.SearchAlgorithm.DEPTH_BOUNDED_DP, 0, 0).runSearch();
+		assertEquals(new Fraction(3), shortLoop.maxRatio);
+
+		// Random graphs with many parallel edges between the same currencies
+		Random random = new Random(11);
+		for (int round = 0; round < 20; round++) {
+			final int numCurrencies = 5;
+			Currency[] currencies = new Currency[numCurrencies];
+			for (int i = 0; i < numCurrencies; i++) {
+				currencies[i] = Currency.getInstance("DPB" + i);
+			}
+			OrderGraph graph = new OrderGraph();
+			for (int i = 0; i < 14; i++) {
+				final int u = random.nextInt(numCurrencies);
+				final int v = (u + 1 + random.nextInt(numCurrencies - 1)) % numCurrencies;
+				graph.addEdge(currencies[v], currencies[u], "dpExch" + random.nextInt(2), false, new Fraction(1),
+						new Fraction(1 + random.nextInt(12), 1 + random.nextInt(12)), new Fraction(0));
+			}
+			for (int maxTrades = 2; maxTrades <= 5; maxTrades++) {
+				assertDepthBoundedMatchesBruteForce(graph, currencies[0], maxTrades);
+			}
+		}
+	}
+
+	private void assertDepthBoundedMatchesBruteForce(OrderGraph graph, Currency root, int maxTrades) {
+		AnalysisResult expected = new OrderBookAnalyzer(graph, root, maxTrades, new MockAnalysisHandler())
+				.searchForArbitrage();
+		AnalysisResult actual = new OrderBookAnalyzer(graph, root, maxTrades, new MockAnalysisHandler(),
+				OrderBookAnalyzer.SearchAlgorithm.DEPTH_BOUNDED_DP, 0, 0).runSearch();
+		// Brute force also reports its best loop when it is not profitable
+		if (expected.maxRatio.compareTo(new Fraction(1)) > 0) {
+			assertEquals(expected.maxRatio, actual.maxRatio);
+			assertTrue(actual.tradesToExecute.size() <= maxTrades);
+		} else {
+			assertNull(actual.tradesToExecute);
+			assertEquals(new Fraction(0), actual.maxRatio);
+		}
+	}
+	
+	@Test
+	public void testMinMeanCycleEngines() {
+		OrderGraph[] graphs = new OrderGraph[] { buildTestOrderGraph1(), buildTestOrderGraph1WithPositiveShortPath(),
+				buildTestOrderGraph2(), buildLeafyTestGraph(), buildDisjointLoopsTestGraph() };
+		Currency[] roots = new Currency[] { Currency.USD, Currency.XRP, Currency.EUR };
+		for (OrderGraph graph : graphs) {
+			for (Currency root : roots) {
+				AnalysisResult bellmanFord = new OrderBookAnalyzer(graph, root, 100, new MockAnalysisHandler())
+						.searchForArbitrageBellmanFord();
+				AnalysisResult karp = new OrderBookAnalyzer(graph, root, 100, new MockAnalysisHandler(),
+						OrderBookAnalyzer.SearchAlgorithm.KARP_MIN_MEAN_CYCLE, 0, 0).runSearch();
+				AnalysisResult howard = new OrderBookAnalyzer(graph, root, 100, new MockAnalysisHandler(),
+						OrderBookAnalyzer.SearchAlgorithm.HOWARD_POLICY_ITERATION, 0, 0).runSearch();
+				assertMinMeanCycleResultsAgree(bellmanFord, karp, howard);
+			}
+		}
+		for (OrderBookAnalyzer.SearchAlgorithm algorithm : new OrderBookAnalyzer.SearchAlgorithm[] {
+				OrderBookAnalyzer.SearchAlgorithm.KARP_MIN_MEAN_CYCLE,
+				OrderBookAnalyzer.SearchAlgorithm.HOWARD_POLICY_ITERATION }) {
+			// 400 over 3 trades has the best return per trade
+			AnalysisResult result = new OrderBookAnalyzer(buildTestOrderGraph2(), Currency.USD, 100,
+					new MockAnalysisHandler(), algorithm, 0, 0).runSearch();
+			assertEquals(new Fraction(400), result.maxRatio);
+		}
+
+		// Random graphs with a fee on every trade and a few mispriced edges
+		Random random = new Random(5);
+		for (int round = 0; round < 20; round++) {
+			final int numCurrencies = 12;
+			Currency[] currencies = new Currency[numCurrencies];
+			int[] values = new int[numCurrencies];
+			for (int i = 0; i < numCurrencies; i++) {
+				currencies[i] = Currency.getInstance("MMC" + i);
+				values[i] = 1 + random.nextInt(50);
+			}
+			OrderGraph graph = new OrderGraph();
+			for (int i = 0; i < 40; i++) {
+				final int u = random.nextInt(numCurrencies);
+				final int v = (u + 1 + random.nextInt(numCurrencies - 1)) % numCurrencies;
+				final int mispricing = random.nextInt(8) == 0 ? 1 + random.nextInt(20) : 0;
+				graph.addEdge(currencies[v], currencies[u], "mmcExch", false, new Fraction(1),
+						new Fraction(values[v] * (100 + mispricing), values[u] * 100), new Fraction(1, 100));
+			}
+			AnalysisResult karpResult = new OrderBookAnalyzer(graph, currencies[0], 100, new MockAnalysisHandler(),
+					OrderBookAnalyzer.SearchAlgorithm.KARP_MIN_MEAN_CYCLE, 0, 0).runSearch();
+			AnalysisResult howardResult = new OrderBookAnalyzer(graph, currencies[0], 100,
+					new MockAnalysisHandler(), OrderBookAnalyzer.SearchAlgorithm.HOWARD_POLICY_ITERATION, 0, 0)
+							.runSearch();
+			AnalysisResult bellmanFordResult = new OrderBookAnalyzer(graph, currencies[0], 100,
+					new MockAnalysisHandler()).searchForArbitrageBellmanFord();
+			assertMinMeanCycleResultsAgree(bellmanFordResult, karpResult, howardResult);
+		}
+	}
+
+	// Karp and Howard find a loop whenever Bellman Ford does. They can
+	// report different loops, since Karp offers a cycle from every currency
+	// on one and Howard only the cycles of its final policy.
+	private void assertMinMeanCycleResultsAgree(AnalysisResult bellmanFord, AnalysisResult karp,
+			AnalysisResult howard) {
+		assertEquals(bellmanFord.tradesToExecute == null, karp.tradesToExecute == null);
+		assertEquals(bellmanFord.tradesToExecute == null, howard.tradesToExecute == null);
+		for (AnalysisResult result : new AnalysisResult[] { karp, howard }) {
+			if (result.tradesToExecute != null) {
+				Fraction product = new Fraction(1);
+				for (TwoSidedGraphEdge edge : result.tradesToExecute) {
+					product = product.multiply(edge.graphEdge.ratio);
+				}
+				assertEquals(product, result.maxRatio);
+				assertTrue(result.maxRatio.compareTo(new Fraction(1)) > 0);
+			}
+		}
+	}
+
+	@Test
+	public void testCustomSearchEngine() {
+		final AnalysisResult fixedResult = new AnalysisResult(new Fraction(5), null);
+		final List<Currency> searchedRoots = new ArrayList<Currency>();
+		CycleSearchEngine engine = (graph, root, loops) -> {
+			searchedRoots.add(root);
+			assertEquals(3, loops.getMaxTradesPerLoop());
+			return fixedResult;
+		};
+		OrderBookAnalyzer analyzer = new OrderBookAnalyzer(buildTestOrderGraph1(), Currency.USD, 3,
+				new MockAnalysisHandler(), engine, 0, 0);
+		assertSame(fixedResult, analyzer.runSearch());
+		assertEquals(Arrays.asList(Currency.USD), searchedRoots);
+	}
+
+	@Test
+	public void testScreeningCounters() {
+		// A loop that breaks even exactly, but whose double weights can round
+		// either way
+		Fraction fee = new Fraction(0);
+		OrderGraph orderGraph = new OrderGraph();
+		orderGraph.addEdge(Currency.BTC, Currency.USD, "testExch", false, new Fraction(1), new Fraction(1, 3), fee);
+		orderGraph.addEdge(Currency.ETH, Currency.BTC, "testExch", false, new Fraction(1), new Fraction(3, 7), fee);
+		orderGraph.addEdge(Currency.USD, Currency.ETH, "testExch", false, new Fraction(1), new Fraction(7), fee);
+		OrderBookAnalyzer analyzer = new OrderBookAnalyzer(orderGraph, Currency.USD, 3, new MockAnalysisHandler(),
+				OrderBookAnalyzer.SearchAlgorithm.DEPTH_BOUNDED_DP, 0, 0);
+
+		// With no slack, rounding does not keep it from the exact check,
+		// which rejects it
+		AnalysisResult analysisResult = analyzer.runSearch();
+		assertNull(analysisResult.tradesToExecute);
+		assertEquals(1, analyzer.getLoopsVerified());
+		assertEquals(1, analyzer.getFalsePositiveLoops());
+
+		// Let everything near break even through to the exact check
+		analyzer.setScreeningSlack(-1e-6);
+		assertNull(analyzer.runSearch().tradesToExecute);
+		assertEquals(2, analyzer.getLoopsVerified());
+		assertEquals(2, analyzer.getFalsePositiveLoops());
+
+		// A profitable loop above the slack is verified and kept
+		orderGraph.addEdge(Currency.USD, Currency.ETH, "otherExch", false, new Fraction(1), new Fraction(8), fee);
+		analyzer.setScreeningSlack(0.1);
+		analysisResult = analyzer.runSearch();
+		assertEquals(new Fraction(8, 7), analysisResult.maxRatio);
+		assertEquals(3, analyzer.getLoopsVerified());
+		assertEquals(2, analyzer.getFalsePositiveLoops());
+
+		// Below the slack it never reaches the exact check
+		analyzer.setScreeningSlack(0.2);
+		assertNull(analyzer.runSearch().tradesToExecute);
+		assertEquals(3, analyzer.getLoopsVerified());
+		assertEquals(2, analyzer.getFalsePositiveLoops());
+	}
+	
+	@Test
+	public void testDeadlineGivesPartialResult() {
+		// Big enough that a 6 trade brute force search takes far longer than
+		// the deadline
+		final int numCurrencies = 40;
+		Currency[] currencies = new Currency[numCurrencies];
+		for (int i = 0; i < numCurrencies; i++) {
+			currencies[i] = Currency.getInstance("DLN" + i);
+		}
+		Random random = new Random(3);
+		OrderGraph orderGraph = new OrderGraph();
+		for (int u = 0; u < numCurrencies; u++) {
+			for (int i = 0; i < 6; i++) {
+				final int v = (u + 1 + random.nextInt(numCurrencies - 1)) % numCurrencies;
+				orderGraph.addEdge(currencies[v], currencies[u], "dlnExch", false, new Fraction(1),
+						new Fraction(1 + random.nextInt(10), 1 + random.nextInt(10)), new Fraction(0));
+			}
+		}
+		OrderBookAnalyzer analyzer = new OrderBookAnalyzer(orderGraph, currencies[0], 6, new MockAnalysisHandler(),
+				OrderBookAnalyzer.SearchAlgorithm.BRUTE_FORCE, 0, 0);
+		analyzer.setAnalysisDeadlineMillis(1);
+		AnalysisResult analysisResult = analyzer.runSearch();
+		assertTrue(analysisResult.partial);
+		assertEquals(1, analyzer.getPartialAnalyses());
+		// Whatever was found is still an exact loop
+		if (analysisResult.tradesToExecute != null) {
+			Fraction product = new Fraction(1);
+			for (TwoSidedGraphEdge edge : analysisResult.tradesToExecute) {
+				product = product.multiply(edge.graphEdge.ratio);
+			}
+			assertEquals(product, analysisResult.maxRatio);
+		}
+
+		// Fast searches finish well within the deadline
+		analyzer = new OrderBookAnalyzer(buildTestOrderGraph2(), Currency.USD, 100, new MockAnalysisHandler(),
+				OrderBookAnalyzer.SearchAlgorithm.SPFA, 0, 0);
+		analyzer.setAnalysisDeadlineMillis(10000);
+		analysisResult = analyzer.runSearch();
+		assertFalse(analysisResult.partial);
+		assertEquals(new Fraction(400), analysisResult.maxRatio);
+		assertEquals(0, analyzer.getPartialAnalyses());
+	}
+
+	@Test
+	public void testDeadlineGrowsUntilSearchCompletes() {
+		// Takes 8ms of clock time whatever the deadline, checking it the way
+		// the built in searches do
+		final AtomicLong clock = new AtomicLong(0);
+		final long stepNanos = TimeUnit.MILLISECONDS.toNanos(1);
+		CycleSearchEngine engine = (graph, root, loops) -> {
+			for (int step = 0; step < 8 && !loops.isPastDeadline(); step++) {
+				clock.addAndGet(stepNanos);
+			}
+			return loops.getResultOrNone();
+		};
+		OrderBookAnalyzer analyzer = new OrderBookAnalyzer(buildTestOrderGraph1(), Currency.USD, 3,
+				new MockAnalysisHandler(), engine, 0, 0);
+		analyzer.setNanoClock(clock::get);
+		analyzer.setAnalysisDeadlineMillis(1);
+		// 1, 2 and 4ms are too short, 8ms is enough
+		for (int pass = 0; pass < 3; pass++) {
+			assertTrue(analyzer.runSearch().partial);
+		}
+		assertFalse(analyzer.runSearch().partial);
+		assertEquals(3, analyzer.getPartialAnalyses());
+		// A complete search puts the deadline back
+		final long start = clock.get();
+		assertTrue(analyzer.runSearch().partial);
+		assertEquals(stepNanos, clock.get() - start);
+	}
+
+	@Test
+	public void testIncrementalSearchConvergesUnderDeadline() {
+		// Prices consistent across every pair and a fee on each trade, so
+		// there is no profitable loop and a complete pass keeps its state.
+		// Big enough that a full Bellman Ford pass takes longer than 1ms.
+		final int numCurrencies = 400;
+		Currency[] currencies = new Currency[numCurrencies];
+		int[] prices = new int[numCurrencies];
+		Random random = new Random(5);
+		for (int i = 0; i < numCurrencies; i++) {
+			currencies[i] = Currency.getInstance("CNV" + i);
+			prices[i] = 1 + random.nextInt(1000);
+		}
+		OrderGraph orderGraph = new OrderGraph();
+		for (int u = 0; u < numCurrencies; u++) {
+			for (int i = 0; i < 8; i++) {
+				final int v = (u + 1 + random.nextInt(numCurrencies - 1)) % numCurrencies;
+				orderGraph.addEdge(currencies[v], currencies[u], "cnvExch", false, new Fraction(1),
+						new Fraction(prices[u], prices[v]), new Fraction(1, 100));
+			}
+		}
+		OrderBookAnalyzer analyzer = new OrderBookAnalyzer(orderGraph, currencies[0], 6, new MockAnalysisHandler(),
+				OrderBookAnalyzer.SearchAlgorithm.INCREMENTAL_BELLMAN_FORD, 0, 0);
+		analyzer.setAnalysisDeadlineMillis(1);
+		int passes = 0;
+		AnalysisResult analysisResult;
+		do {
+			analysisResult = analyzer.runSearch();
+			passes++;
+		} while (analysisResult.partial && passes < 30);
+		assertFalse(analysisResult.partial);
+		assertNull(analysisResult.tradesToExecute);
+		// The next pass repairs the kept state instead of starting over
+		assertFalse(analyzer.runSearch().partial);
+		assertEquals(passes - 1, analyzer.getPartialAnalyses());
+	}
+
+	@Test
+	public void testTriangleFastPath() {
+		Fraction fee = new Fraction(0);
+		Fraction oneFrac = new Fraction(1);
+		OrderGraph orderGraph = new OrderGraph();
+		// USD -> BTC -> ETH -> USD for 6/5, and a better 4 trade loop through
+		// LTC for 2
+		orderGraph.addEdge(Currency.BTC, Currency.USD, "testExch", false, oneFrac, new Fraction(1, 250), fee);
+		orderGraph.addEdge(Currency.ETH, Currency.BTC, "testExch", false, oneFrac, new Fraction(10), fee);
+		orderGraph.addEdge(Currency.USD, Currency.ETH, "testExch", false, oneFrac, new Fraction(30), fee);
+		orderGraph.addEdge(Currency.LTC, Currency.ETH, "testExch", false, oneFrac, new Fraction(2), fee);
+		orderGraph.addEdge(Currency.USD, Currency.LTC, "testExch", false, oneFrac, new Fraction(25), fee);
+		OrderBookAnalyzer analyzer = new OrderBookAnalyzer(orderGraph, Currency.USD, 4, new MockAnalysisHandler(),
+				OrderBookAnalyzer.SearchAlgorithm.BELLMAN_FORD, 0, 0);
+		analyzer.setTriangleFastPath(true);
+
+		AnalysisResult analysisResult = analyzer.runSearch();
+		assertTrue(analysisResult.partial);
+		assertEquals(new Fraction(6, 5), analysisResult.maxRatio);
+
+		// The full search follows even though the triangle is still there
+		analysisResult = analyzer.runSearch();
+		assertFalse(analysisResult.partial);
+		assertEquals(new Fraction(2), analysisResult.maxRatio);
+		assertEquals(4, analysisResult.tradesToExecute.size());
+
+		analysisResult = analyzer.runSearch();
+		assertTrue(analysisResult.partial);
+	}
+	
+	@Test
+	public void testParallelMultiRootSearch() throws InterruptedException {
+		OrderGraph orderGraph = buildDisjointLoopsTestGraph();
+		OrderBookAnalyzer analyzer = new OrderBookAnalyzer(orderGraph, Currency.USD, 100, new MockAnalysisHandler(),
+				OrderBookAnalyzer.SearchAlgorithm.PARALLEL_SPFA, 0, 0);
+		// No threads until the first parallel search
+		assertFalse(analyzer.hasSearchPool());
+		// The XRP loop is not reachable from USD
+		analyzer.setSearchRoots(Arrays.asList(Currency.USD, Currency.EUR));
+		AnalysisResult analysisResult = analyzer.runSearch();
+		assertNull(analysisResult.tradesToExecute);
+		assertEquals(new Fraction(0), analysisResult.maxRatio);
+
+		analyzer.setSearchRoots(Arrays.asList(Currency.USD, Currency.XRP));
+		analysisResult = analyzer.runSearch();
+		assertEquals(new Fraction(11, 10), analysisResult.maxRatio);
+
+		// All currencies, same loop as a single search from XRP
+		analyzer.setSearchRoots(null);
+		analysisResult = analyzer.runSearch();
+		AnalysisResult expected = new OrderBookAnalyzer(orderGraph, Currency.XRP, 100, new MockAnalysisHandler())
+				.searchForArbitrageBellmanFord();
+		assertEquals(expected.maxRatio, analysisResult.maxRatio);
+		assertEquals(expected.tradesToExecute, analysisResult.tradesToExecute);
+		assertTrue(analyzer.hasSearchPool());
+		analyzer.stopAnalyzingOrderBook();
+		assertFalse(analyzer.hasSearchPool());
+
+		// Best loop across roots wins
+		analyzer = new OrderBookAnalyzer(buildTestOrderGraph2(), Currency.USD, 100, new MockAnalysisHandler(),
+				OrderBookAnalyzer.SearchAlgorithm.PARALLEL_SPFA, 0, 0);
+		assertEquals(new Fraction(400), analyzer.runSearch().maxRatio);
+		analyzer.stopAnalyzingOrderBook();
+	}
+	
+	@Test
+	public void testRankedLoops() throws InterruptedException {
+		OrderGraph orderGraph = buildTestOrderGraph2();
+		for (OrderBookAnalyzer.SearchAlgorithm algorithm : new OrderBookAnalyzer.SearchAlgorithm[] {
+				OrderBookAnalyzer.SearchAlgorithm.BELLMAN_FORD, OrderBookAnalyzer.SearchAlgorithm.PARALLEL_SPFA }) {
+			OrderBookAnalyzer analyzer = new OrderBookAnalyzer(orderGraph, Currency.USD, 100,
+					new MockAnalysisHandler(), algorithm, 0, 0);
+			AnalysisResult single = analyzer.runSearch();
+			assertEquals(1, single.rankedLoops.size());
+			assertSame(single, single.rankedLoops.get(0));
+
+			analyzer.setMaxRankedLoops(3);
+			AnalysisResult ranked = analyzer.runSearch();
+			assertEquals(single.maxRatio, ranked.maxRatio);
+			assertEquals(single.tradesToExecute, ranked.tradesToExecute);
+			assertEquals(ranked.tradesToExecute, ranked.rankedLoops.get(0).tradesToExecute);
+			HashSet<HashSet<TwoSidedGraphEdge>> distinctLoops = new HashSet<HashSet<TwoSidedGraphEdge>>();
+			for (int i = 0; i < ranked.rankedLoops.size(); i++) {
+				AnalysisResult loop = ranked.rankedLoops.get(i);
+				assertTrue(distinctLoops.add(loop.tradesToExecute));
+				assertTrue(loop.maxRatio.compareTo(new Fraction(1)) > 0);
+				if (i > 0) {
+					assertTrue(ranked.rankedLoops.get(i - 1).compareTo(loop) >= 0);
+				}
+			}
+			if (algorithm == OrderBookAnalyzer.SearchAlgorithm.PARALLEL_SPFA) {
+				// Every loop in the graph is reachable from some root
+				assertEquals(3, ranked.rankedLoops.size());
+				assertEquals(new Fraction(200), ranked.rankedLoops.get(1).maxRatio);
+				assertEquals(new Fraction(3), ranked.rankedLoops.get(2).maxRatio);
+			} else {
+				assertFalse(analyzer.hasSearchPool());
+			}
+			analyzer.stopAnalyzingOrderBook();
+		}
+	}
+	
+	@Test
+	public void testIncrementalMatchesFullBellmanFord() {
+		final int numCurrencies = 8;
+		Currency[] currencies = new Currency[numCurrencies];
+		int[] values = new int[numCurrencies];
+		Random random = new Random(42);
+		for (int i = 0; i < numCurrencies; i++) {
+			currencies[i] = Currency.getInstance("INC" + i);
+			values[i] = 1 + random.nextInt(20);
+		}
+		// Ratios follow a fixed value per currency and every trade pays a fee,
+		// so no loop is profitable
+		Fraction fee = new Fraction(1, 100);
+		OrderGraph orderGraph = new OrderGraph();
+		List<EdgeHandle> handles = new ArrayList<EdgeHandle>();
+		for (int i = 0; i < numCurrencies; i++) {
+			handles.add(orderGraph.addEdge(currencies[(i + 1) % numCurrencies], currencies[i], "incExch", false,
+					new Fraction(1), new Fraction(values[(i + 1) % numCurrencies], values[i]), fee));
+		}
+		OrderBookAnalyzer incremental = new OrderBookAnalyzer(orderGraph, currencies[0], 100,
+				new MockAnalysisHandler(), OrderBookAnalyzer.SearchAlgorithm.INCREMENTAL_BELLMAN_FORD, 0, 0);
+		for (int round = 0; round < 300; round++) {
+			if (random.nextInt(3) == 0 && handles.size() > numCurrencies) {
+				assertTrue(orderGraph.removeEdge(handles.remove(random.nextInt(handles.size()))));
+			} else {
+				final int u = random.nextInt(numCurrencies);
+				final int v = random.nextInt(numCurrencies);
+				if (u == v) {
+					continue;
+				}
+				// Extra fee on some edges so that tree edges get replaced
+				Fraction edgeFee = fee.add(new Fraction(random.nextInt(5), 100));
+				handles.add(orderGraph.addEdge(currencies[v], currencies[u], "incExch" + random.nextInt(3), false,
+						new Fraction(1 + random.nextInt(3)), new Fraction(values[v], values[u]), edgeFee));
+			}
+			AnalysisResult incrementalResult = incremental.runSearch();
+			assertNull(incrementalResult.tradesToExecute);
+
+			OrderBookAnalyzer full = new OrderBookAnalyzer(orderGraph, currencies[0], 100,
+					new MockAnalysisHandler(), OrderBookAnalyzer.SearchAlgorithm.INCREMENTAL_BELLMAN_FORD, 0, 0);
+			assertNull(full.runSearch().tradesToExecute);
+			double[] expectedDistances = full.incrementalState.paths.distanceToVertex;
+			double[] actualDistances = incremental.incrementalState.paths.distanceToVertex;
+			assertEquals(expectedDistances.length, actualDistances.length);
+			for (int i = 0; i < expectedDistances.length; i++) {
+				assertEquals(expectedDistances[i], actualDistances[i], 1e-9);
+			}
+		}
+
+		// A mispriced edge creates a loop, found the same way as a full search
+		orderGraph.addEdge(currencies[0], currencies[1], "incExch", false, new Fraction(1),
+				new Fraction(2 * values[0], values[1]), fee);
+		AnalysisResult incrementalResult = incremental.runSearch();
+		AnalysisResult fullResult = new OrderBookAnalyzer(orderGraph, currencies[0], 100, new MockAnalysisHandler())
+				.searchForArbitrageBellmanFord();
+		assertNotNull(incrementalResult.tradesToExecute);
+		assertEquals(fullResult.maxRatio, incrementalResult.maxRatio);
+		assertNull(incremental.incrementalState);
+	}
 }
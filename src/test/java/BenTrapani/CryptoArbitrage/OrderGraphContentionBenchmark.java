@@ -0,0 +1,80 @@
+package BenTrapani.CryptoArbitrage;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.knowm.xchange.currency.Currency;
+
+/***
+ *
+ * Measures OrderGraph update throughput with several writer threads. Each
+ * thread adds and removes edges on its own source currencies, which is the
+ * pattern seen when order books for different pairs update at the same time.
+ * Run with main(), not part of the unit tests.
+ *
+ */
+public class OrderGraphContentionBenchmark {
+
+	private static final int currenciesPerThread = 8;
+	private static final int edgesPerCurrency = 16;
+	private static final long warmupMillis = 1000;
+	private static final long runMillis = 3000;
+
+	private static long runWriters(int numThreads, long durationMillis) throws InterruptedException {
+		final OrderGraph graph = new OrderGraph();
+		final Fraction fee = new Fraction(1, 1000);
+		final Currency dest = Currency.getInstance("BENCHDEST");
+		final AtomicBoolean stop = new AtomicBoolean(false);
+		final AtomicLong totalOps = new AtomicLong(0);
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] writers = new Thread[numThreads];
+		for (int t = 0; t < numThreads; t++) {
+			final Currency[] sources = new Currency[currenciesPerThread];
+			for (int i = 0; i < currenciesPerThread; i++) {
+				sources[i] = Currency.getInstance("BENCH" + t + "X" + i);
+			}
+			writers[t] = new Thread(() -> {
+				try {
+					start.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+				long ops = 0;
+				int round = 0;
+				while (!stop.get()) {
+					for (Currency source : sources) {
+						for (int i = 0; i < edgesPerCurrency; i++) {
+							graph.addEdge(dest, source, "bench", false, new Fraction(i + 1), new Fraction(round + 1),
+									fee);
+						}
+						for (int i = 0; i < edgesPerCurrency; i++) {
+							graph.removeEdge(dest, source, "bench", false, new Fraction(i + 1),
+									new Fraction(round + 1), fee);
+						}
+						ops += 2 * edgesPerCurrency;
+					}
+					round = (round + 1) % 1000;
+				}
+				totalOps.addAndGet(ops);
+			});
+			writers[t].start();
+		}
+		start.countDown();
+		Thread.sleep(durationMillis);
+		stop.set(true);
+		for (Thread writer : writers) {
+			writer.join();
+		}
+		return totalOps.get();
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		runWriters(Runtime.getRuntime().availableProcessors(), warmupMillis);
+		for (int numThreads : new int[] { 1, 2, 4, 8 }) {
+			final long ops = runWriters(numThreads, runMillis);
+			System.out.println(
+					"threads: " + numThreads + " updates/sec: " + (ops * 1000 / runMillis));
+		}
+	}
+}
@@ -2,10 +2,12 @@ package BenTrapani.CryptoArbitrage;
 
 import static org.junit.Assert.*;
 import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 import org.knowm.xchange.currency.Currency;
 
+import BenTrapani.CryptoArbitrage.OrderGraph.EdgeHandle;
 import BenTrapani.CryptoArbitrage.OrderGraph.GraphEdge;
 import BenTrapani.CryptoArbitrage.OrderGraph.TwoSidedGraphEdge;
 
@@ -55,6 +57,8 @@ public class OrderGraphTest {
 	    assertEquals(new Fraction(9975, 10000000), graphEdgeNot2.ratio);
 	    // 997.5
 	    assertEquals(new Fraction(9975, 10), graphEdgeNot3.ratio);
+	    assertEquals(-Math.log(997.5), graphEdgeNot3.negativeLogRatio, 1e-12);
+	    assertEquals(-Math.log(0.0009975), graphEdgeNot2.negativeLogRatio, 1e-12);
 	}
 	
 	@Test
@@ -131,4 +135,289 @@ public class OrderGraphTest {
 		assertTrue(edges.contains(e1));
 		assertFalse(edges.contains(e2));
 	}
+
+	@Test
+	public void testRemoveEdgeByHandle() {
+		Fraction fee = new Fraction(0);
+		OrderGraph graph = new OrderGraph();
+		EdgeHandle h1 = graph.addEdge(Currency.USD, Currency.BTC, "poloniex", true, new Fraction(2),
+				new Fraction(1500), fee);
+		EdgeHandle h2 = graph.addEdge(Currency.USD, Currency.BTC, "bitmex", true, new Fraction(4), new Fraction(750),
+				fee);
+		// Duplicate edge returns a handle to the edge already in the graph
+		EdgeHandle h2Duplicate = graph.addEdge(Currency.USD, Currency.BTC, "bitmex", true, new Fraction(4),
+				new Fraction(750), fee);
+		assertSame(h2.getEdge(), h2Duplicate.getEdge());
+		assertEquals(new TwoSidedGraphEdge(Currency.USD,
+				new GraphEdge("poloniex", Currency.BTC, true, new Fraction(2), new Fraction(1500), fee)),
+				h1.getEdge());
+
+		// The edge stays until both handles are removed
+		assertTrue(graph.removeEdge(h2));
+		assertFalse(graph.removeEdge(h2));
+		assertEquals(2, graph.getEdges(Currency.USD).size());
+		assertTrue(graph.removeEdge(h2Duplicate));
+		HashSet<TwoSidedGraphEdge> edges = graph.getEdges(Currency.USD);
+		assertEquals(1, edges.size());
+		assertTrue(edges.contains(h1.getEdge()));
+
+		// An equal edge added later is a different edge, the old handle does
+		// not remove it
+		EdgeHandle h2Again = graph.addEdge(Currency.USD, Currency.BTC, "bitmex", true, new Fraction(4),
+				new Fraction(750), fee);
+		assertFalse(graph.removeEdge(h2));
+		assertTrue(graph.removeEdge(h1));
+		assertTrue(graph.removeEdge(h2Again));
+		assertNull(graph.getEdges(Currency.USD));
+
+		// Removing by value removes the edge whatever its handles
+		EdgeHandle h3 = graph.addEdge(Currency.USD, Currency.BTC, "bitmex", true, new Fraction(4),
+				new Fraction(750), fee);
+		graph.addEdge(Currency.USD, Currency.BTC, "bitmex", true, new Fraction(4), new Fraction(750), fee);
+		assertTrue(graph.removeEdge(Currency.USD, Currency.BTC, "bitmex", true, new Fraction(4), new Fraction(750),
+				fee));
+		assertNull(graph.getEdges(Currency.USD));
+		assertFalse(graph.removeEdge(h3));
+	}
+
+	@Test
+	public void testIndexedSnapshot() {
+		Fraction fee = new Fraction(0);
+		OrderGraph graph = new OrderGraph();
+		graph.addEdge(Currency.USD, Currency.BTC, "poloniex", true, new Fraction(2), new Fraction(1500), fee);
+		graph.addEdge(Currency.USD, Currency.BTC, "bitmex", true, new Fraction(4), new Fraction(750), fee);
+		graph.addEdge(Currency.USD, Currency.BTC, "bitmex", true, new Fraction(4), new Fraction(750), fee);
+		graph.addEdge(Currency.USD, Currency.BTC, "bitmex", false, new Fraction(3), new Fraction(700), fee);
+
+		IndexedOrderGraph snapshot = graph.getIndexedSnapshot();
+		assertEquals(2, snapshot.getVertexCount());
+		assertEquals(2, snapshot.getExchangeCount());
+		final int usdId = snapshot.getCurrencyId(Currency.USD);
+		final int btcId = snapshot.getCurrencyId(Currency.BTC);
+		assertEquals(Currency.USD, snapshot.getCurrency(usdId));
+		assertEquals(Currency.BTC, snapshot.getCurrency(btcId));
+		assertEquals(-1, snapshot.getCurrencyId(Currency.EUR));
+		assertEquals(2, snapshot.getEdgeCount(usdId));
+		assertEquals(1, snapshot.getEdgeCount(btcId));
+
+		for (int i = 0; i < snapshot.getEdgeCount(usdId); i++) {
+			TwoSidedGraphEdge edge = snapshot.getEdge(usdId, i);
+			assertEquals(Currency.USD, edge.sourceCurrency);
+			assertEquals(btcId, snapshot.getEdgeDestId(usdId, i));
+			assertEquals(edge.graphEdge.negativeLogRatio, snapshot.getEdgeNegativeLogRatio(usdId, i), 0);
+			assertEquals(edge.graphEdge.quantity.doubleValueLossy(), snapshot.getEdgeQuantity(usdId, i), 0);
+			assertEquals(edge.graphEdge.exchangeName,
+					snapshot.getExchangeName(snapshot.getEdgeExchangeId(usdId, i)));
+		}
+		TwoSidedGraphEdge sellEdge = snapshot.getEdge(btcId, 0);
+		assertEquals(usdId, snapshot.getEdgeDestId(btcId, 0));
+		assertEquals(new Fraction(700), sellEdge.graphEdge.ratio);
+
+		// Snapshot does not see later updates
+		assertTrue(graph.removeEdge(Currency.USD, Currency.BTC, "bitmex", false, new Fraction(3), new Fraction(700),
+				fee));
+		assertEquals(1, snapshot.getEdgeCount(btcId));
+		assertEquals(0, graph.getIndexedSnapshot().getEdgeCount(btcId));
+		assertNull(graph.getEdges(Currency.BTC));
+	}
+
+	@Test
+	public void testSnapshotVersions() {
+		Fraction fee = new Fraction(0);
+		OrderGraph graph = new OrderGraph();
+		IndexedOrderGraph emptySnapshot = graph.getIndexedSnapshot();
+		graph.addEdge(Currency.USD, Currency.BTC, "poloniex", true, new Fraction(2), new Fraction(1500), fee);
+		IndexedOrderGraph firstSnapshot = graph.getIndexedSnapshot();
+		assertEquals(emptySnapshot.getVersion() + 1, firstSnapshot.getVersion());
+		assertEquals(0, emptySnapshot.getVertexCount());
+
+		// Updates that do not change the graph do not publish a new version
+		graph.addEdge(Currency.USD, Currency.BTC, "poloniex", true, new Fraction(2), new Fraction(1500), fee);
+		assertFalse(graph.removeEdge(Currency.USD, Currency.BTC, "poloniex", true, new Fraction(3),
+				new Fraction(1500), fee));
+		assertSame(firstSnapshot, graph.getIndexedSnapshot());
+
+		OrderGraph frozenGraph = (OrderGraph) graph.clone();
+		graph.addEdge(Currency.USD, Currency.ETH, "poloniex", true, new Fraction(2), new Fraction(200), fee);
+		assertEquals(2, graph.getEdges(Currency.USD).size());
+		assertEquals(1, frozenGraph.getEdges(Currency.USD).size());
+		frozenGraph.addEdge(Currency.BTC, Currency.ETH, "poloniex", true, new Fraction(2), new Fraction(20), fee);
+		assertNull(graph.getEdges(Currency.BTC));
+		assertEquals(firstSnapshot.getVersion() + 1, graph.getIndexedSnapshot().getVersion());
+	}
+
+	@Test
+	public void testBestEdgeView() {
+		Fraction fee = new Fraction(0);
+		OrderGraph graph = new OrderGraph();
+		graph.addEdge(Currency.USD, Currency.BTC, "poloniex", true, new Fraction(2), new Fraction(1500), fee);
+		graph.addEdge(Currency.USD, Currency.BTC, "bitmex", true, new Fraction(4), new Fraction(1400), fee);
+		// Best price, but nothing left to trade
+		graph.addEdge(Currency.USD, Currency.BTC, "kraken", true, new Fraction(0), new Fraction(1300), fee);
+		graph.addEdge(Currency.USD, Currency.ETH, "bitmex", true, new Fraction(4), new Fraction(100), fee);
+		graph.addEdge(Currency.USD, Currency.BTC, "bitmex", false, new Fraction(3), new Fraction(1200), fee);
+
+		IndexedOrderGraph snapshot = graph.getIndexedSnapshot();
+		IndexedOrderGraph view = graph.getBestEdgeSnapshot();
+		assertSame(view, snapshot.getBestEdgeView());
+		assertSame(view, view.getBestEdgeView());
+		assertEquals(snapshot.getVersion(), view.getVersion());
+		final int usdId = view.getCurrencyId(Currency.USD);
+		final int btcId = view.getCurrencyId(Currency.BTC);
+		final int ethId = view.getCurrencyId(Currency.ETH);
+		assertEquals(4, snapshot.getEdgeCount(usdId));
+		assertEquals(2, view.getEdgeCount(usdId));
+		for (int i = 0; i < view.getEdgeCount(usdId); i++) {
+			TwoSidedGraphEdge edge = view.getEdge(usdId, i);
+			if (view.getEdgeDestId(usdId, i) == btcId) {
+				assertEquals("bitmex", edge.graphEdge.exchangeName);
+				assertEquals(new Fraction(1, 1400), edge.graphEdge.ratio);
+			} else {
+				assertEquals(ethId, view.getEdgeDestId(usdId, i));
+			}
+			assertEquals(edge.graphEdge.negativeLogRatio, view.getEdgeNegativeLogRatio(usdId, i), 0);
+		}
+		// Buckets without parallel edges are shared with the full graph
+		assertSame(snapshot.getBucket(btcId), view.getBucket(btcId));
+
+		// Only the changed source is pruned again
+		graph.addEdge(Currency.USD, Currency.BTC, "poloniex", false, new Fraction(1), new Fraction(1250), fee);
+		IndexedOrderGraph nextView = graph.getBestEdgeSnapshot();
+		assertSame(view.getBucket(usdId), nextView.getBucket(usdId));
+		assertNotSame(view.getBucket(btcId), nextView.getBucket(btcId));
+		assertEquals(1, nextView.getEdgeCount(btcId));
+		assertEquals(new Fraction(1250), nextView.getEdge(btcId, 0).graphEdge.ratio);
+	}
+
+	@Test
+	public void testBatch() {
+		Fraction fee = new Fraction(0);
+		OrderGraph graph = new OrderGraph();
+		EdgeHandle usdBtc = graph.addEdge(Currency.USD, Currency.BTC, "poloniex", true, new Fraction(2),
+				new Fraction(1500), fee);
+		EdgeHandle btcUsd = graph.addEdge(Currency.USD, Currency.BTC, "poloniex", false, new Fraction(1),
+				new Fraction(1400), fee);
+		final long versionBefore = graph.getIndexedSnapshot().getVersion();
+
+		OrderGraph.Batch batch = graph.newBatch();
+		batch.removeEdge(usdBtc);
+		batch.removeEdge(btcUsd);
+		EdgeHandle newUsdBtc = batch.addEdge(Currency.USD, Currency.BTC, "poloniex", true, new Fraction(3),
+				new Fraction(1510), fee);
+		EdgeHandle usdEth = batch.addEdge(Currency.USD, Currency.ETH, "poloniex", true, new Fraction(3),
+				new Fraction(200), fee);
+		// Duplicate within the batch shares the edge
+		EdgeHandle usdEthDuplicate = batch.addEdge(Currency.USD, Currency.ETH, "poloniex", true, new Fraction(3),
+				new Fraction(200), fee);
+		// Nothing is visible until the batch is applied
+		assertEquals(versionBefore, graph.getIndexedSnapshot().getVersion());
+		assertTrue(batch.apply());
+
+		// All changes are published as one version
+		assertEquals(versionBefore + 1, graph.getIndexedSnapshot().getVersion());
+		assertNull(graph.getEdges(Currency.BTC));
+		HashSet<TwoSidedGraphEdge> edges = graph.getEdges(Currency.USD);
+		assertEquals(2, edges.size());
+		assertTrue(edges.contains(newUsdBtc.getEdge()));
+		assertTrue(edges.contains(usdEth.getEdge()));
+		assertSame(usdEth.getEdge(), usdEthDuplicate.getEdge());
+
+		// A batch with a missing edge changes nothing
+		IndexedOrderGraph snapshot = graph.getIndexedSnapshot();
+		batch = graph.newBatch();
+		batch.removeEdge(usdEth);
+		batch.removeEdge(usdBtc);
+		batch.addEdge(Currency.ETH, Currency.BTC, "poloniex", true, new Fraction(1), new Fraction(20), fee);
+		assertFalse(batch.apply());
+		assertSame(snapshot, graph.getIndexedSnapshot());
+		assertTrue(graph.removeEdge(usdEth));
+		assertTrue(graph.removeEdge(usdEthDuplicate));
+		assertEquals(1, graph.getEdges(Currency.USD).size());
+	}
+
+	@Test
+	public void testBatchEqualEdges() {
+		Fraction fee = new Fraction(0);
+		OrderGraph graph = new OrderGraph();
+		EdgeHandle first = graph.addEdge(Currency.USD, Currency.BTC, "poloniex", true, new Fraction(2),
+				new Fraction(1500), fee);
+
+		// An equal edge already in the graph gets another handle
+		OrderGraph.Batch batch = graph.newBatch();
+		EdgeHandle second = batch.addEdge(Currency.USD, Currency.BTC, "poloniex", true, new Fraction(2),
+				new Fraction(1500), fee);
+		EdgeHandle third = batch.addEdge(Currency.USD, Currency.BTC, "poloniex", true, new Fraction(2),
+				new Fraction(1500), fee);
+		final IndexedOrderGraph snapshot = graph.getIndexedSnapshot();
+		assertTrue(batch.apply());
+		assertSame(snapshot, graph.getIndexedSnapshot());
+		assertSame(first.getEdge(), second.getEdge());
+		assertSame(first.getEdge(), third.getEdge());
+
+		// Each handle can be removed once, and the last one removes the edge
+		batch = graph.newBatch();
+		batch.removeEdge(first);
+		batch.removeEdge(second);
+		assertTrue(batch.apply());
+		assertEquals(1, graph.getEdges(Currency.USD).size());
+		batch = graph.newBatch();
+		batch.removeEdge(first);
+		assertFalse(batch.apply());
+		batch = graph.newBatch();
+		batch.removeEdge(third);
+		batch.removeEdge(third);
+		assertFalse(batch.apply());
+		assertEquals(1, graph.getEdges(Currency.USD).size());
+
+		// Removing the last handle and adding an equal edge in one batch
+		// replaces the edge
+		batch = graph.newBatch();
+		batch.removeEdge(third);
+		EdgeHandle fourth = batch.addEdge(Currency.USD, Currency.BTC, "poloniex", true, new Fraction(2),
+				new Fraction(1500), fee);
+		assertTrue(batch.apply());
+		assertNotSame(third.getEdge(), fourth.getEdge());
+		assertEquals(1, graph.getEdges(Currency.USD).size());
+		assertTrue(graph.removeEdge(fourth));
+		assertNull(graph.getEdges(Currency.USD));
+	}
+
+	@Test
+	public void testConcurrentWriters() throws InterruptedException {
+		final Fraction fee = new Fraction(0);
+		final OrderGraph graph = new OrderGraph();
+		final int numThreads = 4;
+		final int edgesPerThread = 200;
+		final AtomicInteger successfulRemoves = new AtomicInteger(0);
+		Thread[] writers = new Thread[numThreads];
+		for (int t = 0; t < numThreads; t++) {
+			// Every other thread shares a source currency with its neighbour
+			final Currency source = Currency.getInstance("CONC" + (t / 2));
+			final int offset = t * edgesPerThread;
+			writers[t] = new Thread(() -> {
+				for (int i = 0; i < edgesPerThread; i++) {
+					graph.addEdge(Currency.USD, source, "poloniex", false, new Fraction(offset + i + 1),
+							new Fraction(2), fee);
+				}
+				for (int i = 0; i < edgesPerThread; i += 2) {
+					if (graph.removeEdge(Currency.USD, source, "poloniex", false, new Fraction(offset + i + 1),
+							new Fraction(2), fee)) {
+						successfulRemoves.incrementAndGet();
+					}
+				}
+			});
+		}
+		for (Thread writer : writers) {
+			writer.start();
+		}
+		for (Thread writer : writers) {
+			writer.join();
+		}
+		for (int c = 0; c < numThreads / 2; c++) {
+			assertEquals(edgesPerThread, graph.getEdges(Currency.getInstance("CONC" + c)).size());
+		}
+		assertEquals(numThreads * edgesPerThread / 2, successfulRemoves.get());
+		// One version per add and per remove, none lost to a racing publish
+		assertEquals(numThreads * edgesPerThread * 3 / 2, graph.getIndexedSnapshot().getVersion());
+	}
 }
@@ -0,0 +1,133 @@
+package BenTrapani.CryptoArbitrage;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.knowm.xchange.currency.Currency;
+
+import BenTrapani.CryptoArbitrage.OrderBookAnalyzer.AnalysisResult;
+import BenTrapani.CryptoArbitrage.OrderBookAnalyzer.LoopCollector;
+import BenTrapani.CryptoArbitrage.OrderGraph.EdgeHandle;
+import BenTrapani.CryptoArbitrage.OrderGraph.TwoSidedGraphEdge;
+
+public class TriangleIndexTest {
+
+	@Test
+	public void testTriangleUpdates() {
+		Fraction fee = new Fraction(0);
+		Fraction oneFrac = new Fraction(1);
+		OrderGraph orderGraph = new OrderGraph();
+		orderGraph.addEdge(Currency.ETH, Currency.BTC, "testExch", false, oneFrac, new Fraction(10), fee);
+		orderGraph.addEdge(Currency.USD, Currency.ETH, "testExch", false, oneFrac, new Fraction(30), fee);
+		EdgeHandle closingEdge = orderGraph.addEdge(Currency.BTC, Currency.USD, "testExch", false, oneFrac,
+				new Fraction(1, 250), fee);
+		// Unrelated pair
+		orderGraph.addEdge(Currency.XRP, Currency.LTC, "testExch", false, oneFrac, new Fraction(2), fee);
+
+		TriangleIndex triangleIndex = new TriangleIndex();
+		AnalysisResult analysisResult = update(triangleIndex, orderGraph);
+		assertEquals(1, triangleIndex.getTriangleCount());
+		assertEquals(new Fraction(6, 5), analysisResult.maxRatio);
+		assertEquals(3, analysisResult.tradesToExecute.size());
+
+		// A better trade on one pair is used, and only the triangles through
+		// pairs out of the changed currency are revalued
+		orderGraph.addEdge(Currency.BTC, Currency.USD, "otherExch", false, oneFrac, new Fraction(1, 200), fee);
+		analysisResult = update(triangleIndex, orderGraph);
+		assertEquals(new Fraction(3, 2), analysisResult.maxRatio);
+		assertEquals(1, triangleIndex.getLastEvaluatedCount());
+
+		// Unrelated change, nothing to revalue but the triangle is still
+		// profitable
+		orderGraph.addEdge(Currency.XRP, Currency.LTC, "otherExch", false, oneFrac, new Fraction(3), fee);
+		analysisResult = update(triangleIndex, orderGraph);
+		assertEquals(0, triangleIndex.getLastEvaluatedCount());
+		assertEquals(new Fraction(3, 2), analysisResult.maxRatio);
+
+		// Removing every trade on a pair removes the triangle
+		assertTrue(orderGraph.removeEdge(closingEdge));
+		orderGraph.removeEdge(Currency.BTC, Currency.USD, "otherExch", false, oneFrac, new Fraction(1, 200), fee);
+		analysisResult = update(triangleIndex, orderGraph);
+		assertEquals(0, triangleIndex.getTriangleCount());
+		assertNull(analysisResult.tradesToExecute);
+	}
+
+	@Test
+	public void testMatchesFullEnumeration() {
+		final int numCurrencies = 7;
+		Currency[] currencies = new Currency[numCurrencies];
+		for (int i = 0; i < numCurrencies; i++) {
+			currencies[i] = Currency.getInstance("TRI" + i);
+		}
+		Random random = new Random(9);
+		OrderGraph orderGraph = new OrderGraph();
+		List<EdgeHandle> handles = new ArrayList<EdgeHandle>();
+		TriangleIndex triangleIndex = new TriangleIndex();
+		for (int round = 0; round < 300; round++) {
+			if (random.nextInt(3) == 0 && !handles.isEmpty()) {
+				assertTrue(orderGraph.removeEdge(handles.remove(random.nextInt(handles.size()))));
+			} else {
+				final int u = random.nextInt(numCurrencies);
+				final int v = (u + 1 + random.nextInt(numCurrencies - 1)) % numCurrencies;
+				// Some trades have no quantity left
+				handles.add(orderGraph.addEdge(currencies[v], currencies[u], "triExch" + random.nextInt(3), false,
+						new Fraction(random.nextInt(4)), new Fraction(1 + random.nextInt(20), 1 + random.nextInt(20)),
+						new Fraction(0)));
+			}
+			AnalysisResult analysisResult = update(triangleIndex, orderGraph);
+
+			// Best trade per pair, then every ordered triple of currencies
+			IndexedOrderGraph graph = orderGraph.getIndexedSnapshot();
+			final int numVertices = graph.getVertexCount();
+			boolean[][] hasPair = new boolean[numVertices][numVertices];
+			Fraction[][] bestRatios = new Fraction[numVertices][numVertices];
+			for (int u = 0; u < numVertices; u++) {
+				for (int e = 0; e < graph.getEdgeCount(u); e++) {
+					final int v = graph.getEdgeDestId(u, e);
+					final TwoSidedGraphEdge edge = graph.getEdge(u, e);
+					hasPair[u][v] = true;
+					if (edge.graphEdge.quantity.compareTo(new Fraction(0)) > 0
+							&& (bestRatios[u][v] == null || edge.graphEdge.ratio.compareTo(bestRatios[u][v]) > 0)) {
+						bestRatios[u][v] = edge.graphEdge.ratio;
+					}
+				}
+			}
+			int numTriangles = 0;
+			Fraction bestRatio = null;
+			for (int a = 0; a < numVertices; a++) {
+				for (int b = 0; b < numVertices; b++) {
+					for (int c = 0; c < numVertices; c++) {
+						if (a == b || b == c || a == c || !hasPair[a][b] || !hasPair[b][c] || !hasPair[c][a]) {
+							continue;
+						}
+						numTriangles++;
+						if (bestRatios[a][b] == null || bestRatios[b][c] == null || bestRatios[c][a] == null) {
+							continue;
+						}
+						Fraction ratio = bestRatios[a][b].multiply(bestRatios[b][c]).multiply(bestRatios[c][a]);
+						if (ratio.compareTo(new Fraction(1)) > 0 && (bestRatio == null || ratio.compareTo(bestRatio) > 0)) {
+							bestRatio = ratio;
+						}
+					}
+				}
+			}
+			// Each triangle was counted once per rotation
+			assertEquals(numTriangles / 3, triangleIndex.getTriangleCount());
+			if (bestRatio == null) {
+				assertNull(analysisResult.tradesToExecute);
+			} else {
+				assertEquals(bestRatio, analysisResult.maxRatio);
+			}
+		}
+	}
+
+	private AnalysisResult update(TriangleIndex triangleIndex, OrderGraph orderGraph) {
+		LoopCollector loops = new LoopCollector(1, 3, 0);
+		triangleIndex.update(orderGraph.getIndexedSnapshot(), loops);
+		return loops.getResultOrNone();
+	}
+}